@@ -38,6 +38,8 @@ chmod 755 $PKGDIR/opt/lc19/lc19-*-full.jar
 cp app.properties $PKGDIR/opt/lc19
 cp LICENSE.txt $PKGDIR/opt/lc19
 cp serverkeystore.jks $PKGDIR/opt/lc19
+cp package-files/lc19-loadgen package-files/lc19-pack $PKGDIR/opt/lc19
+chmod 755 $PKGDIR/opt/lc19/lc19-loadgen $PKGDIR/opt/lc19/lc19-pack
 mkdir $PKGDIR/opt/lc19/public
 cp public/index.gmi $PKGDIR/opt/lc19/public
 
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+/**
+ * BenchCapsule is the capsule used by the benchmarks. It's picked up by
+ * the capsule scan when the TLS benchmark starts a Server.
+ */
+@Capsule(path = "/bench/{name}")
+public class BenchCapsule implements CapsuleInt {
+    @Override
+    public GeminiResponse handle(GeminiRequest req) {
+        GeminiResponse resp = new GeminiResponse();
+        resp.setData("# Hello " + req.getPathParam("name") + "\n\nThis is the benchmark capsule.\n");
+        return resp;
+    }
+}
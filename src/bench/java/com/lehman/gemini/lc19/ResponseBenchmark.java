@@ -0,0 +1,83 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Response encoding, building the String form and writing the bytes
+ * the transports send.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class ResponseBenchmark {
+    @Param({ "64", "16384" })
+    public int bodySize;
+
+    private String data;
+    private final ResponseOutput out = new StreamResponseOutput(OutputStream.nullOutputStream());
+
+    @Setup
+    public void setup() {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < this.bodySize) {
+            sb.append("* a line of gemtext\n");
+        }
+        this.data = sb.substring(0, this.bodySize);
+    }
+
+    @Benchmark
+    public String build() {
+        GeminiResponse resp = new GeminiResponse();
+        resp.setData(this.data);
+        return resp.build();
+    }
+
+    @Benchmark
+    public byte[] getBytes() {
+        GeminiResponse resp = new GeminiResponse();
+        resp.setData(this.data);
+        return resp.getBytes();
+    }
+
+    @Benchmark
+    public GeminiResponse writeTo() throws IOException {
+        GeminiResponse resp = new GeminiResponse();
+        resp.setData(this.data);
+        resp.writeTo(this.out);
+        return resp;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Capsule route lookup with a growing number of routes, and a capsule
+ * request through RequestHandler including the capsule call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class RouteBenchmark {
+    @Param({ "10", "1000" })
+    public int routes;
+
+    private CapsuleRouter router;
+    private RequestHandler handler;
+    private GeminiRequest capsuleRequest;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        List<CapsuleHandler> handlers = new ArrayList<CapsuleHandler>();
+        for (int i = 0; i < this.routes; i++) {
+            handlers.add(new CapsuleHandler(BenchCapsule.class, "/section" + i + "/page", CapsuleScope.POOLED, 0));
+            handlers.add(new CapsuleHandler(BenchCapsule.class, "/section" + i + "/users/{id}", CapsuleScope.POOLED, 0));
+        }
+        handlers.add(new CapsuleHandler(BenchCapsule.class, "/docs/*", CapsuleScope.POOLED, 0));
+        handlers.add(new CapsuleHandler(BenchCapsule.class, "/bench/{name}", CapsuleScope.SINGLETON, 0));
+        this.router = new CapsuleRouter(handlers);
+
+        ServerInfo info = new ServerInfo();
+        info.setHost("localhost");
+        this.handler = new RequestHandler(info, this.router, null, new Metrics());
+        this.capsuleRequest = new GeminiRequest("gemini://localhost/bench/world");
+    }
+
+    @Benchmark
+    public Object literal() {
+        return this.router.match("/section7/page");
+    }
+
+    @Benchmark
+    public Object param() {
+        return this.router.match("/section7/users/42");
+    }
+
+    @Benchmark
+    public Object mount() {
+        return this.router.match("/docs/guide/install/linux");
+    }
+
+    @Benchmark
+    public Object miss() {
+        return this.router.match("/section7/nothing/here");
+    }
+
+    @Benchmark
+    public GeminiResponse capsule() {
+        return this.handler.handle(this.capsuleRequest);
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full round trip over TLS on loopback: connect, handshake, send the
+ * request line and read the response until the server closes. A Server
+ * is started in process on an ephemeral port with a keystore generated
+ * by the JDK's keytool, so nothing outside the JDK is needed.
+ * Throughput gives requests per second and SampleTime gives the p50
+ * and p99 latency. The server is shut down after the trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn" })
+public class TlsRoundTripBenchmark {
+    private final static String PASSWORD = "benchmark";
+
+    @Param({ "blocking", "nio" })
+    public String transport;
+
+    private Path dir;
+    private Server server;
+    private SSLSocketFactory factory;
+    private int port;
+    private byte[] fileRequest;
+    private byte[] capsuleRequest;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        this.dir = Files.createTempDirectory("lc19-bench");
+        Path keyStore = this.dir.resolve("keystore.p12");
+        createKeyStore(keyStore);
+
+        Path hostDir = Files.createDirectory(this.dir.resolve("public"));
+        StringBuilder sb = new StringBuilder("# Benchmark\n\n");
+        while (sb.length() < 4096) {
+            sb.append("* a line of gemtext in the static page\n");
+        }
+        Files.writeString(hostDir.resolve("index.gmi"), sb.toString());
+
+        Server server = new Server();
+        this.server = server;
+        server.setKeyStore(keyStore.toString());
+        server.setKeyStorePassword(PASSWORD);
+        server.setHost("localhost");
+        server.setPort(0);
+        server.setHostDir(hostDir.toString());
+        server.setTransport(this.transport);
+        // Every request comes from localhost.
+        server.setClientMaxConnections(0);
+        server.setClientRequestRate(0);
+        server.init();
+        this.port = server.getLocalPort();
+
+        Thread t = new Thread(server::run, "lc19-bench-server");
+        t.setDaemon(true);
+        t.start();
+
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(null, new TrustManager[] { new TrustAll() }, null);
+        this.factory = ctx.getSocketFactory();
+
+        this.fileRequest = "gemini://localhost/\r\n".getBytes(StandardCharsets.UTF_8);
+        this.capsuleRequest = "gemini://localhost/bench/world\r\n".getBytes(StandardCharsets.UTF_8);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.server.shutdown(Duration.ofSeconds(5));
+        try (Stream<Path> paths = Files.walk(this.dir)) {
+            for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+
+    @Benchmark
+    public int staticFile() throws IOException {
+        return this.roundTrip(this.fileRequest);
+    }
+
+    @Benchmark
+    public int capsule() throws IOException {
+        return this.roundTrip(this.capsuleRequest);
+    }
+
+    /**
+     * Sends the request on a new connection and reads the response.
+     * @param request is the request line.
+     * @return An int with the number of bytes received.
+     * @throws IOException
+     */
+    private int roundTrip(byte[] request) throws IOException {
+        try (SSLSocket soc = (SSLSocket) this.factory.createSocket("localhost", this.port)) {
+            // Otherwise the request waits on the ACK for the client's
+            // Finished message and that delay is what gets measured.
+            soc.setTcpNoDelay(true);
+            OutputStream out = soc.getOutputStream();
+            out.write(request);
+            out.flush();
+
+            InputStream in = soc.getInputStream();
+            byte[] buf = new byte[8192];
+            int status = in.read();
+            int total = 1;
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                total += n;
+            }
+            if (status != '2') {
+                throw new IOException("Unexpected response.");
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Generates a self signed keystore with the JDK's keytool.
+     * @param keyStore is the Path to create it at.
+     * @throws Exception
+     */
+    private static void createKeyStore(Path keyStore) throws Exception {
+        String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        Process p = new ProcessBuilder(keytool, "-genkeypair", "-alias", "lc19",
+                "-keyalg", "EC", "-groupname", "secp256r1", "-validity", "1",
+                "-dname", "CN=localhost", "-storetype", "PKCS12",
+                "-keystore", keyStore.toString(),
+                "-storepass", PASSWORD, "-keypass", PASSWORD)
+                .inheritIO()
+                .start();
+        if (p.waitFor() != 0) {
+            throw new IOException("keytool failed with exit code " + p.exitValue());
+        }
+    }
+
+    /**
+     * Accepts the generated self signed certificate.
+     */
+    private static class TrustAll implements X509TrustManager {
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) { }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) { }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+}
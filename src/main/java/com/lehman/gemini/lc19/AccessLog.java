@@ -0,0 +1,335 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * AccessLog writes one line per response to a rotating file without
+ * doing any I/O or formatting on the request path. Responses are put in
+ * a preallocated ring of Records by claiming a sequence number, and a
+ * single background thread formats and writes them in batches. If the
+ * writer falls a whole ring behind new records are dropped and counted
+ * rather than making requests wait on the disk.
+ *
+ * Each line is the timestamp, peer address, status, bytes written,
+ * duration in milliseconds and the request line, including any query.
+ */
+public class AccessLog implements Runnable {
+    private final static Logger log = LoggerFactory.getLogger(Main.class);
+
+    // How long the writer sleeps when there's nothing to write.
+    private final static long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    // Max records written before the writer is flushed.
+    private final static int BATCH = 1024;
+
+    private final Path file;
+    private final long maxBytes;
+    private final int maxFiles;
+
+    private final Record[] ring;
+    private final int mask;
+
+    // Next sequence to claim and next sequence the writer will read.
+    private final AtomicLong claimed = new AtomicLong(0);
+    private volatile long consumed = 0;
+
+    private final LongAdder dropped = new LongAdder();
+
+    private Writer out = null;
+    private long written = 0;
+
+    private Thread thread = null;
+    private volatile boolean closed = false;
+    private final StringBuilder line = new StringBuilder(256);
+
+    /**
+     * Default constructor.
+     * @param File is the access log file.
+     * @param MaxBytes is the size the file is rotated at.
+     * @param MaxFiles is the number of rotated files kept.
+     * @param BufferSize is the number of records in the ring, rounded
+     * up to a power of two.
+     */
+    public AccessLog(String File, long MaxBytes, int MaxFiles, int BufferSize) {
+        this.file = Paths.get(File).toAbsolutePath();
+        this.maxBytes = MaxBytes;
+        this.maxFiles = MaxFiles;
+
+        int size = Integer.highestOneBit(Math.max(2, BufferSize) * 2 - 1);
+        this.ring = new Record[size];
+        for (int i = 0; i < size; i++) {
+            this.ring[i] = new Record();
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * Opens the file and starts the writer thread.
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        log.info("Writing access log to '" + this.file + "'.");
+        this.written = Files.exists(this.file) ? Files.size(this.file) : 0;
+        this.out = this.open();
+        this.thread = new Thread(this, "lc19-access-log");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Writes the records already in the ring, closes the file and stops
+     * the writer thread. Records added after this are not written.
+     */
+    public void close() {
+        this.closed = true;
+        if (this.thread == null) return;
+        LockSupport.unpark(this.thread);
+        try {
+            this.thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Adds a record for a response. Never blocks.
+     * @param peer is the client address.
+     * @param req is the GeminiRequest or null if none was read.
+     * @param status is the response status.
+     * @param bytes is the number of bytes written.
+     * @param nanos is the time from accept to the response being written.
+     */
+    public void log(InetAddress peer, GeminiRequest req, GeminiStatusCodeDetail status, long bytes, long nanos) {
+        long seq;
+        do {
+            seq = this.claimed.get();
+            if (seq - this.consumed >= this.ring.length) {
+                this.dropped.increment();
+                return;
+            }
+        } while (!this.claimed.compareAndSet(seq, seq + 1));
+
+        Record r = this.ring[(int) seq & this.mask];
+        r.time = System.currentTimeMillis();
+        r.peer = peer;
+        r.req = req;
+        r.status = status;
+        r.bytes = bytes;
+        r.nanos = nanos;
+        r.published = seq;
+    }
+
+    /**
+     * Gets the number of records dropped because the ring was full.
+     * @return A long with the count.
+     */
+    public long getDroppedCount() {
+        return this.dropped.sum();
+    }
+
+    /**
+     * Writer loop, drains the ring in order until closed.
+     */
+    @Override
+    public void run() {
+        long next = this.consumed;
+        int batch = 0;
+        while (true) {
+            Record r = this.ring[(int) next & this.mask];
+            if (r.published == next && batch < BATCH) {
+                this.format(r);
+                r.peer = null;
+                r.req = null;
+                next++;
+                this.consumed = next;
+                batch++;
+                try {
+                    this.write();
+                } catch (IOException e) {
+                    log.error("Access log write failed: " + e.getMessage());
+                }
+                continue;
+            }
+
+            try {
+                if (batch > 0) {
+                    this.out.flush();
+                    if (this.written >= this.maxBytes) {
+                        this.rotate();
+                    }
+                }
+            } catch (IOException e) {
+                log.error("Access log write failed: " + e.getMessage());
+            }
+            if (batch == 0) {
+                // Check the ring again after seeing closed so nothing
+                // published before close() is left behind.
+                if (this.closed && this.ring[(int) next & this.mask].published != next) {
+                    break;
+                }
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+            batch = 0;
+        }
+
+        try {
+            this.out.close();
+        } catch (IOException e) {
+            log.error("Access log close failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Formats the record into the line buffer.
+     * @param r is the Record.
+     */
+    private void format(Record r) {
+        StringBuilder sb = this.line;
+        sb.setLength(0);
+        DateTimeFormatter.ISO_INSTANT.formatTo(Instant.ofEpochMilli(r.time), sb);
+        sb.append(' ').append(r.peer == null ? "-" : r.peer.getHostAddress());
+        sb.append(' ').append(r.status.getValue());
+        sb.append(' ').append(r.bytes);
+        long micros = TimeUnit.NANOSECONDS.toMicros(r.nanos);
+        sb.append(' ').append(micros / 1000).append('.');
+        long frac = micros % 1000;
+        if (frac < 100) sb.append('0');
+        if (frac < 10) sb.append('0');
+        sb.append(frac);
+        sb.append(' ');
+        String raw = r.req == null ? "" : r.req.getRawRequest();
+        if (raw.isEmpty()) {
+            sb.append('-');
+        } else {
+            for (int i = 0; i < raw.length(); i++) {
+                char c = raw.charAt(i);
+                sb.append(c < ' ' || c == 0x7f ? '?' : c);
+            }
+        }
+        sb.append('\n');
+    }
+
+    /**
+     * Writes the line buffer.
+     * @throws IOException
+     */
+    private void write() throws IOException {
+        this.out.append(this.line);
+        this.written += utf8Length(this.line);
+    }
+
+    /**
+     * Gets the number of bytes the text takes in UTF-8.
+     * @param text is the CharSequence to measure.
+     * @return A long with the byte count.
+     */
+    private static long utf8Length(CharSequence text) {
+        long len = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                len += 1;
+            } else if (c < 0x800) {
+                len += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                len += 4;
+                i++;
+            } else {
+                len += 3;
+            }
+        }
+        return len;
+    }
+
+    /**
+     * Opens the log file for appending.
+     * @return A Writer for the file.
+     * @throws IOException
+     */
+    private Writer open() throws IOException {
+        if (this.file.getParent() != null) {
+            Files.createDirectories(this.file.getParent());
+        }
+        return new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(this.file.toFile(), true), StandardCharsets.UTF_8), 64 * 1024);
+    }
+
+    /**
+     * Moves file to file.1, file.1 to file.2 and so on, dropping the
+     * oldest, and opens a new file. The current writer is only replaced
+     * once the new file is open, so if any step fails logging carries on
+     * where it was and rotation is tried again after the next batch.
+     * @throws IOException
+     */
+    private void rotate() throws IOException {
+        this.out.flush();
+        for (int i = this.maxFiles - 1; i >= 1; i--) {
+            Path src = Paths.get(this.file + "." + i);
+            if (Files.exists(src)) {
+                Files.move(src, Paths.get(this.file + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (this.maxFiles > 0) {
+            Files.move(this.file, Paths.get(this.file + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(this.file);
+        }
+        Writer next = this.open();
+        Writer prev = this.out;
+        this.out = next;
+        this.written = 0;
+        prev.close();
+    }
+
+    /**
+     * A slot in the ring.
+     */
+    private static class Record {
+        // Sequence of the record in this slot, written last.
+        private volatile long published = -1;
+
+        private long time;
+        private InetAddress peer;
+        private GeminiRequest req;
+        private GeminiStatusCodeDetail status;
+        private long bytes;
+        private long nanos;
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * AdmissionControl decides what happens to a connection when the thread
+ * pool can't take it. It never blocks the caller. Connections that don't
+ * fit in the queue are answered with 44 SLOW DOWN and connections that sat
+ * in the queue longer than queueTimeout are answered with 41 SERVER
+ * UNAVAILABLE. The shed responses are written from a couple of dedicated
+ * threads so the accept loop only ever does a queue offer.
+ *
+ * It also holds the timeouts for each phase of a connection, see
+ * TimeoutPhase.
+ */
+public class AdmissionControl implements RejectedExecutionHandler {
+    private final static Logger log = LoggerFactory.getLogger(Main.class);
+
+    // Number of threads and queued connections used to write shed responses.
+    private final static int SHED_THREADS = 2;
+    private final static int SHED_QUEUE = 256;
+
+    // Max number of connections waiting for a pool thread.
+    protected int queueDepth = 100;
+
+    // Max time in milliseconds a connection may wait in the queue.
+    protected long queueTimeout = 5000;
+
+    // Max time in milliseconds for a TLS handshake.
+    protected int handshakeTimeout = 10000;
+
+    // Max time in milliseconds to receive the request line after the
+    // handshake, and for a client to go without reading any of the
+    // response. 0 for none.
+    protected int requestTimeout = 10000;
+    protected int writeTimeout = 30000;
+
+    // Seconds sent as the meta value of a 44 SLOW DOWN response.
+    protected int slowDownSeconds = 5;
+
+    private ThreadPoolExecutor shedPool;
+
+    // Number of connections shed with 44 and with 41.
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+
+    /**
+     * Default constructor.
+     * @param QueueDepth is the max number of queued connections.
+     * @param QueueTimeout is the max queue wait in milliseconds.
+     * @param HandshakeTimeout is the handshake timeout in milliseconds.
+     * @param SlowDownSeconds is the retry delay sent with 44 SLOW DOWN.
+     */
+    public AdmissionControl(int QueueDepth, long QueueTimeout, int HandshakeTimeout, int SlowDownSeconds) {
+        this(QueueDepth, QueueTimeout, HandshakeTimeout, 10000, 30000, SlowDownSeconds);
+    }
+
+    /**
+     * Creates admission control with every timeout.
+     * @param QueueDepth is the max number of queued connections.
+     * @param QueueTimeout is the max queue wait in milliseconds.
+     * @param HandshakeTimeout is the handshake timeout in milliseconds.
+     * @param RequestTimeout is the request line timeout in milliseconds.
+     * @param WriteTimeout is the response write stall timeout in milliseconds.
+     * @param SlowDownSeconds is the retry delay sent with 44 SLOW DOWN.
+     */
+    public AdmissionControl(int QueueDepth, long QueueTimeout, int HandshakeTimeout, int RequestTimeout, int WriteTimeout, int SlowDownSeconds) {
+        this.queueDepth = QueueDepth;
+        this.queueTimeout = QueueTimeout;
+        this.handshakeTimeout = HandshakeTimeout;
+        this.requestTimeout = RequestTimeout;
+        this.writeTimeout = WriteTimeout;
+        this.slowDownSeconds = SlowDownSeconds;
+
+        AtomicInteger count = new AtomicInteger(0);
+        this.shedPool = new ThreadPoolExecutor(SHED_THREADS, SHED_THREADS, 10, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(SHED_QUEUE), r -> {
+            Thread t = new Thread(r, "lc19-shed-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }, new RejectedExecutionHandler()
+        {
+            @Override
+            public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                // Too busy to even say so, just hang up.
+                ((ShedTask) runnable).sheddable.abort();
+            }
+        });
+    }
+
+    /**
+     * Called by the thread pool when a task can't be run or queued.
+     * @param runnable is the rejected task.
+     * @param executor is the ThreadPoolExecutor that rejected it.
+     */
+    @Override
+    public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+        if (!executor.isShutdown() && executor.getQueue() instanceof AdmissionQueue) {
+            if (((AdmissionQueue) executor.getQueue()).force(runnable)) {
+                return;
+            }
+        }
+        log.warn("Thread pool saturated, shedding connection.");
+        this.rejected.increment();
+        this.shed(runnable, this.slowDown());
+    }
+
+    /**
+     * Checks if a task has waited in the queue longer than queueTimeout.
+     * @param enqueuedNanos is the System.nanoTime() the task was queued at.
+     * @return A boolean with true if the task should be shed.
+     */
+    public boolean isExpired(long enqueuedNanos) {
+        if (this.queueTimeout > 0
+                && System.nanoTime() - enqueuedNanos > TimeUnit.MILLISECONDS.toNanos(this.queueTimeout)) {
+            this.expired.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sheds the task by sending it the provided response from the
+     * shed threads.
+     * @param runnable is the task to shed.
+     * @param resp is the GeminiResponse to send.
+     */
+    public void shed(Runnable runnable, GeminiResponse resp) {
+        if (runnable instanceof Sheddable) {
+            this.shedPool.execute(new ShedTask((Sheddable) runnable, resp));
+        } else {
+            log.warn("Dropping task that can't be shed: " + runnable.getClass().getName());
+        }
+    }
+
+    /**
+     * Stops the shed threads. Connections still waiting for their shed
+     * response are closed without one. Called on shutdown.
+     */
+    public void stop() {
+        for (Runnable r : this.shedPool.shutdownNow()) {
+            ((ShedTask) r).sheddable.abort();
+        }
+    }
+
+    /**
+     * Builds a 44 SLOW DOWN response.
+     * @return A GeminiResponse object.
+     */
+    public GeminiResponse slowDown() {
+        return this.slowDown(this.slowDownSeconds);
+    }
+
+    /**
+     * Builds a 44 SLOW DOWN response.
+     * @param seconds is the number of seconds the client should wait.
+     * @return A GeminiResponse object.
+     */
+    public GeminiResponse slowDown(int seconds) {
+        GeminiResponse resp = new GeminiResponse();
+        resp.setStatus(GeminiStatusCodeDetail.SLOW_DOWN);
+        resp.setMeta("" + seconds);
+        return resp;
+    }
+
+    /**
+     * Builds a 41 SERVER UNAVAILABLE response.
+     * @return A GeminiResponse object.
+     */
+    public GeminiResponse unavailable() {
+        GeminiResponse resp = new GeminiResponse();
+        resp.setStatus(GeminiStatusCodeDetail.SERVER_UNAVAILABLE);
+        return resp;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public long getQueueTimeout() {
+        return queueTimeout;
+    }
+
+    public int getHandshakeTimeout() {
+        return handshakeTimeout;
+    }
+
+    public int getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    public int getWriteTimeout() {
+        return writeTimeout;
+    }
+
+    /**
+     * Gets the timeout for the provided phase.
+     * @param phase is the TimeoutPhase.
+     * @return An int with the timeout in milliseconds, 0 for none.
+     */
+    public int getTimeout(TimeoutPhase phase) {
+        switch (phase) {
+            case HANDSHAKE:
+                return this.handshakeTimeout;
+            case REQUEST:
+                return this.requestTimeout;
+            default:
+                return this.writeTimeout;
+        }
+    }
+
+    public int getSlowDownSeconds() {
+        return slowDownSeconds;
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public long getExpiredCount() {
+        return expired.sum();
+    }
+
+    /**
+     * Runnable that sends the shed response.
+     */
+    private static class ShedTask implements Runnable {
+        private final Sheddable sheddable;
+        private final GeminiResponse resp;
+
+        ShedTask(Sheddable sheddable, GeminiResponse resp) {
+            this.sheddable = sheddable;
+            this.resp = resp;
+        }
+
+        @Override
+        public void run() {
+            this.sheddable.shed(this.resp);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * AdmissionQueue is the bounded handoff queue in front of the thread
+ * pool. A plain bounded queue makes ThreadPoolExecutor sit at minThreads
+ * until the queue is full, so offer() refuses while the pool can still
+ * grow. That makes the executor start a new thread first and only queue
+ * once maxThreads are busy.
+ */
+@SuppressWarnings("serial")
+class AdmissionQueue extends LinkedBlockingQueue<Runnable> {
+    private ThreadPoolExecutor executor = null;
+
+    /**
+     * Default constructor.
+     * @param Capacity is the maximum number of queued connections.
+     */
+    AdmissionQueue(int Capacity) {
+        super(Capacity);
+    }
+
+    void setExecutor(ThreadPoolExecutor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public boolean offer(Runnable runnable) {
+        if (this.executor != null) {
+            int poolSize = this.executor.getPoolSize();
+            if (this.executor.getActiveCount() < poolSize) {
+                // An idle thread is waiting and will pick this up.
+                return super.offer(runnable);
+            } else if (poolSize < this.executor.getMaximumPoolSize()) {
+                // Make the executor start another thread.
+                return false;
+            }
+        }
+        return super.offer(runnable);
+    }
+
+    /**
+     * Queues the task if there is room regardless of the pool size.
+     * Called from the rejection handler after the pool failed to grow.
+     * @param runnable is the task to queue.
+     * @return A boolean with true if it was queued.
+     */
+    boolean force(Runnable runnable) {
+        return super.offer(runnable);
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * AsyncCapsuleInt is implemented by capsules that wait on something slow
+ * and don't want to hold a server thread while they do. The response is
+ * written once the returned stage completes. If it doesn't complete
+ * within the capsule's timeout the client gets 40 TEMPORARY FAILURE.
+ */
+public interface AsyncCapsuleInt {
+    CompletionStage<GeminiResponse> handleAsync(GeminiRequest req);
+}
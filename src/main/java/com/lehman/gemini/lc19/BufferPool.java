@@ -0,0 +1,86 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BufferPool keeps released ByteBuffers of one size so they can be
+ * reused instead of allocated for every connection or response. At most
+ * maxIdle buffers are kept, any beyond that are left to the garbage
+ * collector. Direct buffers are used for buffers handed to channels so
+ * the JDK doesn't copy them into a temporary direct buffer on each read
+ * and write.
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final int maxIdle;
+    private final boolean direct;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger idle = new AtomicInteger(0);
+
+    /**
+     * Default constructor.
+     * @param BufferSize is the capacity of each buffer.
+     * @param MaxIdle is the max number of buffers kept for reuse.
+     * @param Direct is true for direct buffers and false for heap buffers.
+     */
+    public BufferPool(int BufferSize, int MaxIdle, boolean Direct) {
+        this.bufferSize = BufferSize;
+        this.maxIdle = MaxIdle;
+        this.direct = Direct;
+    }
+
+    /**
+     * Gets a cleared buffer from the pool or a new one if it's empty.
+     * @return A ByteBuffer with getBufferSize() capacity.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buf = this.pool.poll();
+        if (buf == null) {
+            return this.direct ? ByteBuffer.allocateDirect(this.bufferSize) : ByteBuffer.allocate(this.bufferSize);
+        }
+        this.idle.decrementAndGet();
+        buf.clear();
+        return buf;
+    }
+
+    /**
+     * Returns a buffer to the pool. Buffers of another size or kind,
+     * such as ones that were grown after acquire(), are dropped. The
+     * buffer must not be used after this.
+     * @param buf is the ByteBuffer to return.
+     */
+    public void release(ByteBuffer buf) {
+        if (buf == null || buf.capacity() != this.bufferSize || buf.isDirect() != this.direct) {
+            return;
+        }
+        if (this.idle.incrementAndGet() <= this.maxIdle) {
+            this.pool.offer(buf);
+        } else {
+            this.idle.decrementAndGet();
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
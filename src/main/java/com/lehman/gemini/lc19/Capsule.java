@@ -12,4 +12,48 @@ public @interface Capsule {
      * The path defines the resource to handle.
      */
     public String path() default "";
+
+    /**
+     * How capsule instances are shared between requests. Defaults to
+     * POOLED which never runs two requests on the same instance.
+     */
+    public CapsuleScope scope() default CapsuleScope.POOLED;
+
+    /**
+     * Max time in milliseconds an AsyncCapsuleInt capsule has to
+     * complete. 0 uses the server's capsuleTimeout.
+     */
+    public long timeout() default 0;
+
+    /**
+     * The virtual host the capsule is served on. Empty serves it on
+     * every host.
+     */
+    public String host() default "";
+
+    /**
+     * Milliseconds the capsule's response is cached for and served
+     * without calling the capsule again. 0 disables caching. Only
+     * responses with a 1x, 2x or 3x status are cached.
+     */
+    public long cacheTtl() default 0;
+
+    /**
+     * Milliseconds after cacheTtl that the old response is still served
+     * while a single request refreshes it in the background. 0 waits
+     * for the new response instead.
+     */
+    public long cacheStale() default 0;
+
+    /**
+     * Whether the query is part of the cache key. Set to false when the
+     * capsule ignores the query so ?a and ?b share one cached response.
+     */
+    public boolean varyOnQuery() default true;
+
+    /**
+     * Whether the capsule needs a client certificate. Anything but NONE
+     * needs clientCerts turned on in the server config.
+     */
+    public ClientCertPolicy clientCert() default ClientCertPolicy.NONE;
 }
@@ -0,0 +1,400 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * CapsuleCache holds fully encoded responses of capsules that set
+ * cacheTtl on @Capsule, keyed by host, path and optionally query. Like
+ * FileCache a hit is a single ConcurrentHashMap get and the least
+ * recently used entries are evicted once maxBytes is reached.
+ *
+ * Misses are single-flight, the first request for a key runs the capsule
+ * and any others that arrive before it completes wait for its response
+ * instead of running the capsule again. An entry past its cacheTtl but
+ * within cacheStale is still served while one refresh runs in the
+ * background on the cache's own small pool.
+ *
+ * Only responses that can be encoded without holding more than
+ * maxEntryBytes are cached. Stream and writer bodies are produced as
+ * they're sent and a file body bigger than that isn't read, so these
+ * are sent uncached to one of the requests waiting on the load and the
+ * others run the capsule themselves.
+ */
+public class CapsuleCache {
+    private final static Logger log = LoggerFactory.getLogger(Main.class);
+
+    // Fraction of maxBytes to free on each eviction pass.
+    private final static double EVICT_TO = 0.9;
+
+    // Max threads refreshing stale entries.
+    private final static int REFRESH_THREADS = 4;
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final Map<String, CompletableFuture<Entry>> inflight = new ConcurrentHashMap<String, CompletableFuture<Entry>>();
+    private final AtomicLong size = new AtomicLong(0);
+
+    private final ThreadPoolExecutor refresher;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder stale = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * Default constructor.
+     * @param MaxBytes is the max total size of all entries.
+     * @param MaxEntryBytes is the max size of a single entry.
+     */
+    public CapsuleCache(long MaxBytes, long MaxEntryBytes) {
+        this.maxBytes = MaxBytes;
+        this.maxEntryBytes = MaxEntryBytes;
+
+        AtomicInteger count = new AtomicInteger(0);
+        this.refresher = new ThreadPoolExecutor(REFRESH_THREADS, REFRESH_THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), r -> {
+            Thread t = new Thread(r, "lc19-capsule-refresh-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.refresher.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Creates the cache key for a request.
+     * @param vh is the VirtualHost the request is for.
+     * @param req is the GeminiRequest object.
+     * @param varyOnQuery is true to include the query.
+     * @return A String with the key. Requests with a client certificate
+     * get a key of their own, since a capsule may use it even when it
+     * doesn't require one.
+     */
+    public static String key(VirtualHost vh, GeminiRequest req, boolean varyOnQuery) {
+        String host = vh.getName() == null ? "" : vh.getName();
+        String key = host + req.getPath();
+        if (varyOnQuery && !req.getQuery().equals("")) {
+            key += "?" + req.getQuery();
+        }
+        if (req.getClientCertFingerprint() != null) {
+            key += "#" + req.getClientCertFingerprint();
+        }
+        return key;
+    }
+
+    /**
+     * Gets the cached response for the key, or the response produced by
+     * the loader if there's no usable entry. The loader is only called
+     * by one request per key at a time.
+     * @param c is the CapsuleHandler the request routed to.
+     * @param key is the key from key().
+     * @param loader runs the capsule.
+     * @return A CompletionStage with the GeminiResponse.
+     */
+    public CompletionStage<GeminiResponse> get(CapsuleHandler c, String key, Supplier<CompletionStage<GeminiResponse>> loader) {
+        long now = System.nanoTime();
+        Entry e = this.entries.get(key);
+
+        // Entries from a capsule that has since been reloaded don't count.
+        if (e != null && e.handler == c) {
+            if (now - e.expires < 0) {
+                this.hits.increment();
+                e.lastAccess = now;
+                return CompletableFuture.completedFuture(e.toResponse());
+            }
+            if (now - e.staleUntil < 0) {
+                this.stale.increment();
+                e.lastAccess = now;
+                this.load(c, key, loader, true);
+                return CompletableFuture.completedFuture(e.toResponse());
+            }
+        }
+
+        this.misses.increment();
+        return this.load(c, key, loader, false).thenCompose(loaded -> {
+            GeminiResponse resp = loaded.toResponse();
+            return resp != null ? CompletableFuture.completedFuture(resp) : loader.get();
+        });
+    }
+
+    /**
+     * Runs the loader unless it's already running for the key and caches
+     * its response.
+     * @param c is the CapsuleHandler the request routed to.
+     * @param key is the cache key.
+     * @param loader runs the capsule.
+     * @param background is true to run it on the refresh pool.
+     * @return A CompletableFuture with the Entry, which is only stored if
+     * it's cacheable.
+     */
+    private CompletableFuture<Entry> load(CapsuleHandler c, String key, Supplier<CompletionStage<GeminiResponse>> loader, boolean background) {
+        CompletableFuture<Entry> f = new CompletableFuture<Entry>();
+        CompletableFuture<Entry> running = this.inflight.putIfAbsent(key, f);
+        if (running != null) {
+            if (!background) this.coalesced.increment();
+            return running;
+        }
+
+        Runnable run = () -> {
+            CompletionStage<GeminiResponse> stage;
+            try {
+                stage = loader.get();
+            } catch (RuntimeException ex) {
+                stage = CompletableFuture.failedFuture(ex);
+            }
+            stage.whenComplete((resp, t) -> this.complete(c, key, f, resp, t));
+        };
+
+        if (!background) {
+            run.run();
+            return f;
+        }
+        try {
+            this.refresher.execute(run);
+        } catch (RejectedExecutionException ex) {
+            this.inflight.remove(key, f);
+            f.completeExceptionally(ex);
+        }
+        return f;
+    }
+
+    /**
+     * Stores the loaded response if it's cacheable and hands it to the
+     * requests waiting on it. A response that can't be encoded within
+     * maxEntryBytes is passed on as is.
+     */
+    private void complete(CapsuleHandler c, String key, CompletableFuture<Entry> f, GeminiResponse resp, Throwable t) {
+        if (t != null || resp == null) {
+            log.error("Capsule '" + c.getCapsuleClass().getName() + "' failed to produce a cacheable response: " + (t == null ? "no response" : t.getMessage()));
+            resp = new GeminiResponse();
+            resp.setStatus(GeminiStatusCodeDetail.TEMPORARY_FAILURE);
+        }
+
+        Entry e;
+        if (!this.isEncodable(resp)) {
+            e = new Entry(c, resp);
+        } else {
+            try {
+                long now = System.nanoTime();
+                long expires = now + TimeUnit.MILLISECONDS.toNanos(c.getCacheTtl());
+                e = new Entry(c, resp.getStatus(), resp.getBytes(), now, expires,
+                        expires + TimeUnit.MILLISECONDS.toNanos(c.getCacheStale()));
+            } catch (RuntimeException ex) {
+                log.error("Capsule '" + c.getCapsuleClass().getName() + "' response couldn't be encoded: " + ex.getMessage());
+                GeminiResponse fail = new GeminiResponse();
+                fail.setStatus(GeminiStatusCodeDetail.TEMPORARY_FAILURE);
+                e = new Entry(c, fail.getStatus(), fail.getBytes(), 0, 0, 0);
+            }
+        }
+
+        // Stored before the in-flight marker is removed so a request in
+        // between finds one or the other.
+        if (e.bytes != null && e.status.getValue() < 40 && e.bytes.length <= this.maxEntryBytes) {
+            this.put(key, e);
+        }
+        this.inflight.remove(key, f);
+        f.complete(e);
+    }
+
+    /**
+     * Checks if the response can be encoded for the cache without
+     * holding more than maxEntryBytes. Stream and writer bodies are only
+     * known once they've been produced, so they never are.
+     * @param resp is the GeminiResponse.
+     * @return A boolean with true if it can be encoded.
+     */
+    private boolean isEncodable(GeminiResponse resp) {
+        if (resp.getStatus() != GeminiStatusCodeDetail.SUCCESS) {
+            return true;
+        }
+        if (resp.getStream() != null || resp.getBodyWriter() != null) {
+            return false;
+        }
+        if (resp.getFile() != null) {
+            try {
+                return Files.size(resp.getFile()) <= this.maxEntryBytes;
+            } catch (IOException ex) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds the entry and evicts if the cache is over maxBytes.
+     * @param key is the cache key.
+     * @param e is the Entry to add.
+     */
+    private void put(String key, Entry e) {
+        Entry old = this.entries.put(key, e);
+        this.size.addAndGet(e.bytes.length - (old == null ? 0 : old.bytes.length));
+        if (this.size.get() > this.maxBytes) {
+            this.evict();
+        }
+    }
+
+    /**
+     * Evicts expired entries, then the least recently used ones until
+     * the cache is back under EVICT_TO of maxBytes.
+     */
+    private synchronized void evict() {
+        if (this.size.get() <= this.maxBytes) return;
+
+        long now = System.nanoTime();
+        List<Map.Entry<String, Entry>> all = new ArrayList<Map.Entry<String, Entry>>(this.entries.entrySet());
+        for (Map.Entry<String, Entry> me : all) {
+            if (now - me.getValue().staleUntil >= 0) {
+                this.remove(me.getKey(), me.getValue());
+            }
+        }
+
+        all.sort(Comparator.comparingLong(me -> me.getValue().lastAccess));
+        long target = (long) (this.maxBytes * EVICT_TO);
+        for (Map.Entry<String, Entry> me : all) {
+            if (this.size.get() <= target) break;
+            this.remove(me.getKey(), me.getValue());
+        }
+    }
+
+    /**
+     * Removes the entry if it's still the one mapped to the key.
+     * @param key is the cache key.
+     * @param e is the Entry to remove.
+     */
+    private void remove(String key, Entry e) {
+        if (this.entries.remove(key, e)) {
+            this.size.addAndGet(-e.bytes.length);
+        }
+    }
+
+    /**
+     * Drops every entry.
+     */
+    public void clear() {
+        for (String key : new ArrayList<String>(this.entries.keySet())) {
+            Entry e = this.entries.get(key);
+            if (e != null) this.remove(key, e);
+        }
+    }
+
+    /**
+     * Stops the refresh pool.
+     */
+    public void stop() {
+        this.refresher.shutdownNow();
+    }
+
+    public long getSize() {
+        return this.size.get();
+    }
+
+    public int getEntryCount() {
+        return this.entries.size();
+    }
+
+    public long getHitCount() {
+        return this.hits.sum();
+    }
+
+    public long getStaleCount() {
+        return this.stale.sum();
+    }
+
+    public long getMissCount() {
+        return this.misses.sum();
+    }
+
+    public long getCoalescedCount() {
+        return this.coalesced.sum();
+    }
+
+    /**
+     * A cached response, or a loaded response that couldn't be cached.
+     */
+    private static class Entry {
+        private final CapsuleHandler handler;
+        private final GeminiStatusCodeDetail status;
+        private final byte[] bytes;
+        private final long expires;
+        private final long staleUntil;
+        private volatile long lastAccess;
+
+        // Response that couldn't be cached, sent to the first request
+        // that takes it.
+        private final AtomicReference<GeminiResponse> uncached;
+
+        Entry(CapsuleHandler handler, GeminiStatusCodeDetail status, byte[] bytes, long lastAccess, long expires, long staleUntil) {
+            this.handler = handler;
+            this.status = status;
+            this.bytes = bytes;
+            this.lastAccess = lastAccess;
+            this.expires = expires;
+            this.staleUntil = staleUntil;
+            this.uncached = null;
+        }
+
+        Entry(CapsuleHandler handler, GeminiResponse uncached) {
+            this.handler = handler;
+            this.status = uncached.getStatus();
+            this.bytes = null;
+            this.expires = 0;
+            this.staleUntil = 0;
+            this.uncached = new AtomicReference<GeminiResponse>(uncached);
+        }
+
+        /**
+         * Creates a response that writes the encoded bytes as is. Each
+         * request gets its own response object around the shared bytes.
+         * A response that couldn't be cached is only handed out once.
+         * @return A GeminiResponse object or null if the uncached
+         * response was already taken.
+         */
+        GeminiResponse toResponse() {
+            if (this.bytes == null) {
+                return this.uncached.getAndSet(null);
+            }
+            GeminiResponse resp = new GeminiResponse();
+            resp.setStatus(this.status);
+            resp.setEncoded(this.bytes);
+            return resp;
+        }
+    }
+}
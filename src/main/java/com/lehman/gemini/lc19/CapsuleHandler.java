@@ -0,0 +1,351 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * CapsuleHandler is a capsule class resolved once at startup into
+ * something that is cheap to call. Capsules implementing CapsuleInt are
+ * called through the interface. Capsules that only have a matching
+ * handle method are called through a MethodHandle looked up once here.
+ * AsyncCapsuleInt capsules are called through handleAsync() which also
+ * applies the capsule's timeout. Capsules from a generated CapsuleIndex
+ * are created through the index's constructor reference instead of
+ * reflection.
+ */
+public class CapsuleHandler {
+    // Max number of idle instances kept for a POOLED capsule.
+    private final static int MAX_IDLE = 64;
+
+    private final Class<?> capsuleClass;
+    private final String path;
+    private final String host;
+    private final CapsuleScope scope;
+
+    // Timeout in milliseconds for async capsules, 0 for none.
+    private final long timeout;
+
+    // Response cache settings from @Capsule, a cacheTtl of 0 disables it.
+    private long cacheTtl = 0;
+    private long cacheStale = 0;
+    private boolean varyOnQuery = true;
+
+    // Client certificate the capsule needs, from @Capsule.
+    private ClientCertPolicy clientCert = ClientCertPolicy.NONE;
+
+    // No-arg constructor as () -> Object, null when created by factory.
+    private final MethodHandle constructor;
+
+    // Constructor reference from a CapsuleIndex, null if not indexed.
+    private final Supplier<Object> factory;
+
+    // handle method as (Object, GeminiRequest) -> GeminiResponse, null
+    // when the class implements CapsuleInt or AsyncCapsuleInt.
+    private final MethodHandle handleMethod;
+
+    private final Object singleton;
+    private final ConcurrentLinkedQueue<Object> pool = new ConcurrentLinkedQueue<Object>();
+    private final AtomicInteger idle = new AtomicInteger(0);
+
+    /**
+     * Default constructor.
+     * @param CapsuleClass is the @Capsule annotated class.
+     * @param Path is the normalized path the capsule handles.
+     * @param Scope is the CapsuleScope to use.
+     * @param Timeout is the async timeout in milliseconds, 0 for none.
+     * @throws ReflectiveOperationException if the class has no public no-arg
+     * constructor or handle method.
+     */
+    public CapsuleHandler(Class<?> CapsuleClass, String Path, CapsuleScope Scope, long Timeout) throws ReflectiveOperationException {
+        this(CapsuleClass, Path, "", Scope, Timeout);
+    }
+
+    /**
+     * Creates a handler for a capsule served on one virtual host.
+     * @param CapsuleClass is the @Capsule annotated class.
+     * @param Path is the normalized path the capsule handles.
+     * @param Host is the virtual host name or empty for every host.
+     * @param Scope is the CapsuleScope to use.
+     * @param Timeout is the async timeout in milliseconds, 0 for none.
+     * @throws ReflectiveOperationException if the class has no public no-arg
+     * constructor or handle method.
+     */
+    public CapsuleHandler(Class<?> CapsuleClass, String Path, String Host, CapsuleScope Scope, long Timeout) throws ReflectiveOperationException {
+        this(CapsuleClass, null, Path, Host, Scope, Timeout);
+    }
+
+    /**
+     * Creates a handler for a capsule listed in a CapsuleIndex.
+     * @param CapsuleClass is the @Capsule annotated class.
+     * @param Factory creates new instances of the class, or null to use
+     * its public no-arg constructor.
+     * @param Path is the normalized path the capsule handles.
+     * @param Host is the virtual host name or empty for every host.
+     * @param Scope is the CapsuleScope to use.
+     * @param Timeout is the async timeout in milliseconds, 0 for none.
+     * @throws ReflectiveOperationException if the class has no public no-arg
+     * constructor or handle method.
+     */
+    public CapsuleHandler(Class<?> CapsuleClass, Supplier<Object> Factory, String Path, String Host, CapsuleScope Scope, long Timeout) throws ReflectiveOperationException {
+        this.capsuleClass = CapsuleClass;
+        this.path = Path;
+        this.host = Host;
+        this.scope = Scope;
+        this.timeout = Timeout;
+        this.factory = Factory;
+
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        if (Factory == null) {
+            this.constructor = lookup.findConstructor(CapsuleClass, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Object.class));
+        } else {
+            this.constructor = null;
+        }
+
+        if (CapsuleInt.class.isAssignableFrom(CapsuleClass) || AsyncCapsuleInt.class.isAssignableFrom(CapsuleClass)) {
+            this.handleMethod = null;
+        } else {
+            this.handleMethod = lookup.findVirtual(CapsuleClass, "handle",
+                    MethodType.methodType(GeminiResponse.class, GeminiRequest.class))
+                    .asType(MethodType.methodType(GeminiResponse.class, Object.class, GeminiRequest.class));
+        }
+
+        this.singleton = Scope == CapsuleScope.SINGLETON ? this.newInstance() : null;
+    }
+
+    /**
+     * Creates a handler for a capsule instance that was created by the
+     * server rather than found by the @Capsule scan. The instance is
+     * used as a SINGLETON.
+     * @param Instance is the CapsuleInt to call.
+     * @param Path is the normalized path the capsule handles.
+     */
+    public CapsuleHandler(CapsuleInt Instance, String Path) {
+        this.capsuleClass = Instance.getClass();
+        this.path = Path;
+        this.host = "";
+        this.scope = CapsuleScope.SINGLETON;
+        this.timeout = 0;
+        this.constructor = null;
+        this.factory = null;
+        this.handleMethod = null;
+        this.singleton = Instance;
+    }
+
+    /**
+     * Runs the capsule for the provided request.
+     * @param req is the GeminiRequest object.
+     * @return A GeminiResponse object.
+     * @throws Throwable anything thrown by the capsule.
+     */
+    public GeminiResponse handle(GeminiRequest req) throws Throwable {
+        Object obj = this.acquire();
+        try {
+            return this.invoke(obj, req);
+        } finally {
+            this.release(obj);
+        }
+    }
+
+    /**
+     * Runs an AsyncCapsuleInt capsule for the provided request. The
+     * returned stage fails with a TimeoutException if the capsule
+     * doesn't complete within its timeout, and fails right away if the
+     * capsule throws or returns null. A POOLED instance isn't reused
+     * until its stage completes.
+     * @param req is the GeminiRequest object.
+     * @return A CompletionStage with the GeminiResponse.
+     */
+    public CompletionStage<GeminiResponse> handleAsync(GeminiRequest req) {
+        CompletableFuture<GeminiResponse> ret = new CompletableFuture<GeminiResponse>();
+
+        Object obj;
+        CompletionStage<GeminiResponse> stage;
+        try {
+            obj = this.acquire();
+        } catch (Throwable t) {
+            ret.completeExceptionally(t);
+            return ret;
+        }
+        try {
+            stage = ((AsyncCapsuleInt) obj).handleAsync(req);
+            if (stage == null) {
+                throw new IllegalStateException("handleAsync returned null");
+            }
+        } catch (Throwable t) {
+            this.release(obj);
+            ret.completeExceptionally(t);
+            return ret;
+        }
+
+        stage.whenComplete((resp, t) -> {
+            this.release(obj);
+            if (t != null) {
+                ret.completeExceptionally(t);
+            } else {
+                ret.complete(resp);
+            }
+        });
+        if (this.timeout > 0) {
+            ret.orTimeout(this.timeout, TimeUnit.MILLISECONDS);
+        }
+        return ret;
+    }
+
+    /**
+     * Checks if this is an AsyncCapsuleInt capsule.
+     * @return A boolean with true if async.
+     */
+    public boolean isAsync() {
+        return AsyncCapsuleInt.class.isAssignableFrom(this.capsuleClass);
+    }
+
+    /**
+     * Gets an instance to run a request on.
+     * @return The singleton or an instance from the pool.
+     * @throws ReflectiveOperationException if a new instance can't be created.
+     */
+    private Object acquire() throws ReflectiveOperationException {
+        if (this.singleton != null) {
+            return this.singleton;
+        }
+        Object obj = this.pool.poll();
+        if (obj == null) {
+            return this.newInstance();
+        }
+        this.idle.decrementAndGet();
+        return obj;
+    }
+
+    /**
+     * Returns a pooled instance once its request is done.
+     * @param obj is the instance from acquire().
+     */
+    private void release(Object obj) {
+        if (obj == this.singleton) {
+            return;
+        }
+        if (this.idle.incrementAndGet() <= MAX_IDLE) {
+            this.pool.offer(obj);
+        } else {
+            this.idle.decrementAndGet();
+        }
+    }
+
+    /**
+     * Calls handle on the provided instance.
+     * @param obj is the capsule instance.
+     * @param req is the GeminiRequest object.
+     * @return A GeminiResponse object.
+     * @throws Throwable anything thrown by the capsule.
+     */
+    private GeminiResponse invoke(Object obj, GeminiRequest req) throws Throwable {
+        if (this.handleMethod == null) {
+            return ((CapsuleInt) obj).handle(req);
+        }
+        return (GeminiResponse) this.handleMethod.invokeExact(obj, req);
+    }
+
+    /**
+     * Creates a new capsule instance.
+     * @return A new instance.
+     * @throws ReflectiveOperationException if the constructor fails.
+     */
+    private Object newInstance() throws ReflectiveOperationException {
+        if (this.factory != null) {
+            return this.factory.get();
+        }
+        try {
+            return (Object) this.constructor.invokeExact();
+        } catch (ReflectiveOperationException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new InstantiationException(t.getMessage());
+        }
+    }
+
+    public Class<?> getCapsuleClass() {
+        return capsuleClass;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * Checks if the capsule is served on the provided host.
+     * @param name is the virtual host name.
+     * @return A boolean with true if served on the host.
+     */
+    public boolean isForHost(String name) {
+        return this.host.equals("") || this.host.equalsIgnoreCase(name);
+    }
+
+    public CapsuleScope getScope() {
+        return scope;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public long getCacheTtl() {
+        return cacheTtl;
+    }
+
+    public void setCacheTtl(long cacheTtl) {
+        this.cacheTtl = cacheTtl;
+    }
+
+    public long getCacheStale() {
+        return cacheStale;
+    }
+
+    public void setCacheStale(long cacheStale) {
+        this.cacheStale = cacheStale;
+    }
+
+    public boolean isVaryOnQuery() {
+        return varyOnQuery;
+    }
+
+    public void setVaryOnQuery(boolean varyOnQuery) {
+        this.varyOnQuery = varyOnQuery;
+    }
+
+    public ClientCertPolicy getClientCert() {
+        return clientCert;
+    }
+
+    public void setClientCert(ClientCertPolicy clientCert) {
+        this.clientCert = clientCert;
+    }
+}
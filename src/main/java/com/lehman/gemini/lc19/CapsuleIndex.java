@@ -0,0 +1,48 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+import java.util.function.Supplier;
+
+/**
+ * CapsuleIndex lists the capsules of one compiled project. The
+ * CapsuleProcessor generates an implementation for every project that
+ * has @Capsule classes and registers it as a service, so at startup the
+ * capsules are found through ServiceLoader instead of scanning every
+ * class on the classpath.
+ */
+public interface CapsuleIndex {
+    /**
+     * Adds every capsule in the index to the registry.
+     * @param registry is the Registry to add to.
+     */
+    void register(Registry registry);
+
+    /**
+     * Receives the capsules of an index.
+     */
+    interface Registry {
+        /**
+         * Adds a capsule. Its settings are read from its @Capsule
+         * annotation, which is a direct lookup on the class.
+         * @param capsuleClass is the @Capsule annotated class.
+         * @param factory creates a new instance of the class.
+         */
+        void add(Class<?> capsuleClass, Supplier<Object> factory);
+    }
+}
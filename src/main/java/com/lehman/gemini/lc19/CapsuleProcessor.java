@@ -0,0 +1,227 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * CapsuleProcessor is an annotation processor that checks @Capsule
+ * classes when they're compiled and generates a CapsuleIndex for them.
+ * It's picked up automatically by javac from the lc19 jar. Anything the
+ * runtime scan would skip with a warning, such as a missing handle
+ * method or a * that isn't the last path segment, is a compile error.
+ *
+ * The index is a class in the package of the first capsule that creates
+ * each capsule with a constructor reference, listed in
+ * META-INF/services/com.lehman.gemini.lc19.CapsuleIndex. The index only
+ * holds the capsules of the current compile, so incremental builds that
+ * compile some of the sources should be followed by a full one.
+ */
+@SupportedAnnotationTypes("com.lehman.gemini.lc19.Capsule")
+public class CapsuleProcessor extends AbstractProcessor {
+    // Index classes written so far and the capsules they came from.
+    private final List<String> indexes = new ArrayList<String>();
+    private final List<Element> origins = new ArrayList<Element>();
+    private boolean failed = false;
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        List<TypeElement> capsules = new ArrayList<TypeElement>();
+        for (Element e : roundEnv.getElementsAnnotatedWith(Capsule.class)) {
+            if (this.check(e)) {
+                capsules.add((TypeElement) e);
+            } else {
+                this.failed = true;
+            }
+        }
+        try {
+            // An index class per round, so capsules generated by other
+            // processors are included and javac compiles it normally.
+            if (!this.failed && !capsules.isEmpty()) {
+                this.indexes.add(this.writeIndex(capsules));
+                this.origins.addAll(capsules);
+            }
+            if (roundEnv.processingOver() && !this.failed && !this.indexes.isEmpty()) {
+                this.writeServices();
+            }
+        } catch (IOException ex) {
+            this.processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Failed to write the capsule index: " + ex.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Checks that the element is a capsule the server can create and call.
+     * @param e is the @Capsule annotated element.
+     * @return A boolean with true if it's valid.
+     */
+    private boolean check(Element e) {
+        Elements elements = this.processingEnv.getElementUtils();
+        Types types = this.processingEnv.getTypeUtils();
+
+        if (e.getKind() != ElementKind.CLASS) {
+            return this.error(e, "@Capsule can only be used on a class.");
+        }
+        TypeElement type = (TypeElement) e;
+        if (!type.getModifiers().contains(Modifier.PUBLIC) || type.getModifiers().contains(Modifier.ABSTRACT)) {
+            return this.error(e, "Capsule class '" + type.getQualifiedName() + "' must be public and not abstract.");
+        }
+        if (type.getNestingKind() != NestingKind.TOP_LEVEL
+                && (type.getNestingKind() != NestingKind.MEMBER || !type.getModifiers().contains(Modifier.STATIC))) {
+            return this.error(e, "Capsule class '" + type.getQualifiedName() + "' must be a top level or static nested class.");
+        }
+
+        ExecutableElement ctor = null;
+        for (ExecutableElement c : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if (c.getParameters().isEmpty()) ctor = c;
+        }
+        if (ctor == null || !ctor.getModifiers().contains(Modifier.PUBLIC)) {
+            return this.error(e, "Capsule class '" + type.getQualifiedName() + "' needs a public no-arg constructor.");
+        }
+        TypeMirror unchecked = elements.getTypeElement(RuntimeException.class.getName()).asType();
+        TypeMirror error = elements.getTypeElement(Error.class.getName()).asType();
+        for (TypeMirror t : ctor.getThrownTypes()) {
+            if (!types.isAssignable(t, unchecked) && !types.isAssignable(t, error)) {
+                return this.error(ctor, "Capsule class '" + type.getQualifiedName() + "' constructor can't throw checked exceptions.");
+            }
+        }
+
+        TypeMirror sync = elements.getTypeElement(CapsuleInt.class.getName()).asType();
+        TypeMirror async = elements.getTypeElement(AsyncCapsuleInt.class.getName()).asType();
+        if (!types.isAssignable(type.asType(), sync) && !types.isAssignable(type.asType(), async)) {
+            TypeMirror req = elements.getTypeElement(GeminiRequest.class.getName()).asType();
+            TypeMirror resp = elements.getTypeElement(GeminiResponse.class.getName()).asType();
+            ExecutableElement handle = null;
+            for (ExecutableElement m : ElementFilter.methodsIn(elements.getAllMembers(type))) {
+                if (m.getSimpleName().contentEquals("handle") && m.getParameters().size() == 1
+                        && types.isSameType(m.getParameters().get(0).asType(), req)) {
+                    handle = m;
+                }
+            }
+            if (handle == null) {
+                return this.error(e, "Capsule class '" + type.getQualifiedName() + "' is missing a function: public GeminiResponse handle (GeminiRequest req)");
+            }
+            if (!types.isSameType(handle.getReturnType(), resp)) {
+                return this.error(handle, "Capsule class '" + type.getQualifiedName() + "' handle function returns type '" + handle.getReturnType() + "' but expecting 'GeminiResponse'.");
+            }
+            if (!handle.getModifiers().contains(Modifier.PUBLIC) || handle.getModifiers().contains(Modifier.STATIC)) {
+                return this.error(handle, "Capsule class '" + type.getQualifiedName() + "' handle function is not public.");
+            }
+        }
+
+        Capsule capsule = type.getAnnotation(Capsule.class);
+        if (capsule.timeout() < 0 || capsule.cacheTtl() < 0 || capsule.cacheStale() < 0) {
+            return this.error(e, "Capsule class '" + type.getQualifiedName() + "' timeout, cacheTtl and cacheStale can't be negative.");
+        }
+        String[] segs = capsule.path().split("/");
+        for (int i = 0; i < segs.length - 1; i++) {
+            if (segs[i].equals(CapsuleRouter.WILDCARD)) {
+                return this.error(e, "Capsule class '" + type.getQualifiedName() + "' path '" + capsule.path() + "' has a * that isn't the last segment.");
+            }
+        }
+        return true;
+    }
+
+    private boolean error(Element e, String msg) {
+        this.processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, msg, e);
+        return false;
+    }
+
+    /**
+     * Writes an index class for the provided capsules.
+     * @param capsules is the List of capsule classes.
+     * @return A String with the name of the index class.
+     * @throws IOException
+     */
+    private String writeIndex(List<TypeElement> capsules) throws IOException {
+        Elements elements = this.processingEnv.getElementUtils();
+        capsules.sort(Comparator.comparing(t -> t.getQualifiedName().toString()));
+
+        // Named after the capsules so two jars with capsules in the
+        // same package don't generate the same class.
+        StringBuilder names = new StringBuilder();
+        for (TypeElement t : capsules) {
+            names.append(t.getQualifiedName()).append('\n');
+        }
+        PackageElement pkg = elements.getPackageOf(capsules.get(0));
+        String pkgName = pkg.isUnnamed() ? "" : pkg.getQualifiedName().toString();
+        String simpleName = String.format("Lc19CapsuleIndex_%08x", names.toString().hashCode());
+        String name = pkgName.isEmpty() ? simpleName : pkgName + "." + simpleName;
+
+        JavaFileObject src = this.processingEnv.getFiler().createSourceFile(name, capsules.toArray(new Element[0]));
+        try (Writer w = src.openWriter()) {
+            if (!pkgName.isEmpty()) {
+                w.write("package " + pkgName + ";\n\n");
+            }
+            w.write("@javax.annotation.processing.Generated(\"" + CapsuleProcessor.class.getName() + "\")\n");
+            w.write("public final class " + simpleName + " implements " + CapsuleIndex.class.getName() + " {\n");
+            w.write("    @Override\n");
+            w.write("    public void register(" + CapsuleIndex.class.getName() + ".Registry registry) {\n");
+            for (TypeElement t : capsules) {
+                String cls = t.getQualifiedName().toString();
+                w.write("        registry.add(" + cls + ".class, " + cls + "::new);\n");
+            }
+            w.write("    }\n");
+            w.write("}\n");
+        }
+        return name;
+    }
+
+    /**
+     * Writes the service file listing the index classes.
+     * @throws IOException
+     */
+    private void writeServices() throws IOException {
+        FileObject services = this.processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "",
+                "META-INF/services/" + CapsuleIndex.class.getName(), this.origins.toArray(new Element[0]));
+        try (Writer w = services.openWriter()) {
+            for (String name : this.indexes) {
+                w.write(name + "\n");
+            }
+        }
+    }
+}
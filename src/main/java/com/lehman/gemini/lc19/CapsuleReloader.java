@@ -0,0 +1,284 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.lehman.gemini.lc19;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * CapsuleReloader loads the capsule jars in capsuleDir and reloads them
+ * when they change, without restarting the server. Each jar is copied
+ * aside and loaded by its own class loader so a jar can be replaced
+ * while its old classes are still in use. Once a change has settled the
+ * full list of capsules is handed to the server, which builds new
+ * routes and swaps them in. Requests already running keep the handlers
+ * they started with, and the old class loader is closed a while later.
+ *
+ * A jar that fails to load leaves the previous version of it in place.
+ * Capsule classes must not also be on the server's classpath, since the
+ * classpath copy would always win.
+ */
+public class CapsuleReloader implements Runnable {
+    private final static Logger log = LoggerFactory.getLogger(Main.class);
+
+    // How long the directory has to be quiet before reloading, so a jar
+    // is only read once it's been fully written.
+    private final static long QUIET_MS = 500;
+
+    // How long an old class loader is kept open for requests that are
+    // still running on its capsules.
+    private final static long RETIRE_MS = 60000;
+
+    private final Path dir;
+    private final CapsuleScanner scanner;
+
+    // Loaded jars by path, sorted so the capsule order is stable.
+    private final Map<Path, Plugin> plugins = new TreeMap<Path, Plugin>();
+    private final List<Plugin> retired = new ArrayList<Plugin>();
+
+    private Path shadowDir = null;
+    private long copies = 0;
+    private WatchService watcher = null;
+    private Consumer<List<CapsuleHandler>> onChange = null;
+
+    /**
+     * Default constructor.
+     * @param Dir is the directory of capsule jars.
+     * @param Scanner is the CapsuleScanner to find capsules with.
+     */
+    public CapsuleReloader(Path Dir, CapsuleScanner Scanner) {
+        this.dir = Dir.toAbsolutePath().normalize();
+        this.scanner = Scanner;
+    }
+
+    /**
+     * Loads every jar in the directory. Call once before start().
+     * @return A List with the CapsuleHandler objects from all jars.
+     * @throws IOException
+     */
+    public List<CapsuleHandler> load() throws IOException {
+        log.info("Loading capsule jars from '" + this.dir + "'.");
+        Files.createDirectories(this.dir);
+        this.shadowDir = Files.createTempDirectory("lc19-capsules");
+        this.shadowDir.toFile().deleteOnExit();
+        this.refresh();
+        return this.getCapsules();
+    }
+
+    /**
+     * Starts the thread that watches the directory.
+     * @param OnChange is called on the watch thread with the full list
+     * of capsules whenever a jar is added, changed or removed.
+     * @throws IOException
+     */
+    public void start(Consumer<List<CapsuleHandler>> OnChange) throws IOException {
+        this.onChange = OnChange;
+        this.watcher = FileSystems.getDefault().newWatchService();
+        this.dir.register(this.watcher,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        Thread t = new Thread(this, "lc19-capsule-reload");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Processes watch events until the thread is stopped.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                WatchKey key = this.retired.isEmpty()
+                        ? this.watcher.take()
+                        : this.watcher.poll(1, TimeUnit.SECONDS);
+                if (key != null) {
+                    // Wait for the copy to finish before reading the jar.
+                    do {
+                        key.pollEvents();
+                        if (!key.reset()) {
+                            log.warn("Capsule directory '" + this.dir + "' is gone, no longer watching it.");
+                            return;
+                        }
+                    } while ((key = this.watcher.poll(QUIET_MS, TimeUnit.MILLISECONDS)) != null);
+
+                    if (this.refresh()) {
+                        this.onChange.accept(this.getCapsules());
+                    }
+                }
+                this.closeRetired();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                log.error("Capsule reload failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Gets the capsules from every loaded jar.
+     * @return A List of CapsuleHandler objects.
+     */
+    public List<CapsuleHandler> getCapsules() {
+        List<CapsuleHandler> ret = new ArrayList<CapsuleHandler>();
+        for (Plugin p : this.plugins.values()) {
+            ret.addAll(p.capsules);
+        }
+        return ret;
+    }
+
+    /**
+     * Loads new and changed jars and drops removed ones.
+     * @return A boolean with true if anything changed.
+     * @throws IOException
+     */
+    private boolean refresh() throws IOException {
+        boolean changed = false;
+        Set<Path> seen = new HashSet<Path>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(this.dir, "*.jar")) {
+            for (Path jar : ds) {
+                seen.add(jar);
+                long size = Files.size(jar);
+                long modified = Files.getLastModifiedTime(jar).toMillis();
+                Plugin old = this.plugins.get(jar);
+                if (old != null && old.size == size && old.modified == modified) {
+                    continue;
+                }
+                Plugin p = this.open(jar, size, modified);
+                if (p != null) {
+                    this.plugins.put(jar, p);
+                    if (old != null) this.retire(old);
+                    changed = true;
+                }
+            }
+        }
+
+        Iterator<Map.Entry<Path, Plugin>> it = this.plugins.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, Plugin> e = it.next();
+            if (!seen.contains(e.getKey())) {
+                log.info("Capsule jar '" + e.getKey().getFileName() + "' removed.");
+                this.retire(e.getValue());
+                it.remove();
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Copies the jar aside and loads its capsules with a new class loader.
+     * @param jar is the jar in the capsule directory.
+     * @param size is the size of the jar.
+     * @param modified is the last modified time of the jar.
+     * @return A Plugin object or null if the jar couldn't be loaded.
+     */
+    private Plugin open(Path jar, long size, long modified) {
+        Path copy = this.shadowDir.resolve((this.copies++) + "-" + jar.getFileName());
+        URLClassLoader loader = null;
+        try {
+            Files.copy(jar, copy, StandardCopyOption.REPLACE_EXISTING);
+            copy.toFile().deleteOnExit();
+            loader = new URLClassLoader(new URL[] { copy.toUri().toURL() }, CapsuleReloader.class.getClassLoader());
+            List<CapsuleHandler> capsules = this.scanner.scan(loader, copy.toFile());
+            log.info("Loaded " + capsules.size() + " capsules from '" + jar.getFileName() + "'.");
+            return new Plugin(copy, loader, capsules, size, modified);
+        } catch (IOException | RuntimeException | LinkageError e) {
+            log.error("Failed to load capsule jar '" + jar.getFileName() + "', keeping the previous version: " + e.getMessage());
+            Plugin p = new Plugin(copy, loader, null, size, modified);
+            p.close();
+            return null;
+        }
+    }
+
+    /**
+     * Schedules a replaced or removed jar's class loader to be closed.
+     * @param p is the Plugin to retire.
+     */
+    private void retire(Plugin p) {
+        p.retireAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RETIRE_MS);
+        this.retired.add(p);
+    }
+
+    /**
+     * Closes the retired class loaders that are due.
+     */
+    private void closeRetired() {
+        long now = System.nanoTime();
+        Iterator<Plugin> it = this.retired.iterator();
+        while (it.hasNext()) {
+            Plugin p = it.next();
+            if (now - p.retireAt >= 0) {
+                p.close();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * A loaded capsule jar.
+     */
+    private static class Plugin {
+        private final Path copy;
+        private final URLClassLoader loader;
+        private final List<CapsuleHandler> capsules;
+        private final long size;
+        private final long modified;
+        private long retireAt = 0;
+
+        Plugin(Path copy, URLClassLoader loader, List<CapsuleHandler> capsules, long size, long modified) {
+            this.copy = copy;
+            this.loader = loader;
+            this.capsules = capsules;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        void close() {
+            try {
+                if (this.loader != null) this.loader.close();
+                Files.deleteIfExists(this.copy);
+            } catch (IOException e) {
+                log.error(e.getMessage());
+            }
+        }
+    }
+}
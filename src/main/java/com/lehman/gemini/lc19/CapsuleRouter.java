@@ -0,0 +1,360 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * CapsuleRouter is an immutable route tree built from the capsule paths.
+ * A path segment is either literal, a {name} parameter matching any one
+ * segment, or a trailing * that mounts the capsule on everything below
+ * the prefix. Literal children are kept in an open addressing table that
+ * is probed with the hash of the request path region, so a lookup walks
+ * one node per segment and doesn't create any Strings.
+ *
+ * When more than one route fits, a literal segment wins over a parameter
+ * and a parameter wins over a mount.
+ */
+public class CapsuleRouter {
+    private final static Logger log = LoggerFactory.getLogger(Main.class);
+
+    /**
+     * Name the remainder of the path below a mount is captured as.
+     */
+    public final static String WILDCARD = "*";
+
+    private final Node root;
+
+    // Max number of parameters in any route, sizes the bounds array.
+    private final int maxParams;
+
+    private final int size;
+
+    /**
+     * Default constructor.
+     * @param Handlers is the collection of CapsuleHandler objects to
+     * route to, each one on its getPath().
+     */
+    public CapsuleRouter(Collection<CapsuleHandler> Handlers) {
+        Builder top = new Builder();
+        int params = 0;
+        int count = 0;
+        for (CapsuleHandler h : Handlers) {
+            List<String> names = new ArrayList<String>();
+            if (this.add(top, h, names)) {
+                params = Math.max(params, names.size());
+                count++;
+            }
+        }
+        this.root = top.compile();
+        this.maxParams = params;
+        this.size = count;
+    }
+
+    /**
+     * Finds the capsule for the provided request path.
+     * @param path is the request path.
+     * @return A Match object or null if no route matches.
+     */
+    public Match match(String path) {
+        Match m = new Match(path, new int[this.maxParams * 2]);
+        if (find(this.root, path, skipSlashes(path, 0), 0, m)) {
+            return m;
+        }
+        return null;
+    }
+
+    /**
+     * Gets the number of routes.
+     * @return An int with the number of routes.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Adds the handler to the builder tree.
+     * @param top is the root Builder.
+     * @param h is the CapsuleHandler to add.
+     * @param names is filled with the parameter names of the route.
+     * @return A boolean with true if added.
+     */
+    private boolean add(Builder top, CapsuleHandler h, List<String> names) {
+        String[] segs = h.getPath().split("/");
+        Builder b = top;
+        boolean mount = false;
+        for (int i = 0; i < segs.length; i++) {
+            String seg = segs[i];
+            if (seg.isEmpty()) continue;
+
+            if (seg.equals(WILDCARD)) {
+                if (i != segs.length - 1) {
+                    log.warn("Capsule '" + h.getCapsuleClass().getName() + "' path '" + h.getPath() + "' has a * that isn't the last segment, skipping.");
+                    return false;
+                }
+                names.add(WILDCARD);
+                mount = true;
+            } else if (seg.startsWith("{") && seg.endsWith("}") && seg.length() > 2) {
+                names.add(seg.substring(1, seg.length() - 1));
+                if (b.param == null) b.param = new Builder();
+                b = b.param;
+            } else {
+                b = b.children.computeIfAbsent(seg, k -> new Builder());
+            }
+        }
+
+        String[] arr = names.toArray(new String[0]);
+        if (mount) {
+            if (b.wildcard != null) this.warnDuplicate(b.wildcard, h);
+            b.wildcard = h;
+            b.wildcardNames = arr;
+        } else {
+            if (b.handler != null) this.warnDuplicate(b.handler, h);
+            b.handler = h;
+            b.names = arr;
+        }
+        return true;
+    }
+
+    private void warnDuplicate(CapsuleHandler old, CapsuleHandler h) {
+        log.warn("Capsule '" + h.getCapsuleClass().getName() + "' replaces '" + old.getCapsuleClass().getName() + "' on path '" + h.getPath() + "'.");
+    }
+
+    /**
+     * Matches the path from pos against the node, backing off to the
+     * parameter and then the mount when a literal branch doesn't match.
+     * @param n is the Node to match against.
+     * @param path is the request path.
+     * @param pos is the start of the next segment.
+     * @param count is the number of parameters captured so far.
+     * @param m is the Match to fill in.
+     * @return A boolean with true if matched.
+     */
+    private static boolean find(Node n, String path, int pos, int count, Match m) {
+        int len = path.length();
+        if (pos >= len) {
+            if (n.handler != null) {
+                m.set(n.handler, n.names, count);
+                return true;
+            }
+            if (n.wildcard != null) {
+                m.bounds[count * 2] = len;
+                m.bounds[count * 2 + 1] = len;
+                m.set(n.wildcard, n.wildcardNames, count + 1);
+                return true;
+            }
+            return false;
+        }
+
+        int end = path.indexOf('/', pos);
+        if (end < 0) end = len;
+        int next = skipSlashes(path, end);
+
+        Node child = n.child(path, pos, end);
+        if (child != null && find(child, path, next, count, m)) {
+            return true;
+        }
+
+        if (n.param != null) {
+            m.bounds[count * 2] = pos;
+            m.bounds[count * 2 + 1] = end;
+            if (find(n.param, path, next, count + 1, m)) {
+                return true;
+            }
+        }
+
+        if (n.wildcard != null) {
+            int last = len;
+            while (last > pos && path.charAt(last - 1) == '/') last--;
+            m.bounds[count * 2] = pos;
+            m.bounds[count * 2 + 1] = last;
+            m.set(n.wildcard, n.wildcardNames, count + 1);
+            return true;
+        }
+
+        return false;
+    }
+
+    private static int skipSlashes(String path, int pos) {
+        while (pos < path.length() && path.charAt(pos) == '/') pos++;
+        return pos;
+    }
+
+    /**
+     * Hash of a region of a String, the same as String.hashCode() of
+     * the substring.
+     */
+    private static int hash(String str, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + str.charAt(i);
+        }
+        return h;
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * The result of a route lookup. Parameters are kept as offsets into
+     * the path and only turned into Strings when asked for.
+     */
+    public static class Match {
+        private final String path;
+        private final int[] bounds;
+        private CapsuleHandler handler;
+        private String[] names;
+        private int count;
+
+        Match(String Path, int[] Bounds) {
+            this.path = Path;
+            this.bounds = Bounds;
+        }
+
+        private void set(CapsuleHandler Handler, String[] Names, int Count) {
+            this.handler = Handler;
+            this.names = Names;
+            this.count = Count;
+        }
+
+        public CapsuleHandler getHandler() {
+            return handler;
+        }
+
+        /**
+         * Gets the raw value of the named parameter.
+         * @param name is the parameter name, or * for the remainder
+         * below a mount.
+         * @return A String with the value or null if there's no such
+         * parameter.
+         */
+        public String getParam(String name) {
+            for (int i = 0; i < this.count; i++) {
+                if (this.names[i].equals(name)) {
+                    return this.path.substring(this.bounds[i * 2], this.bounds[i * 2 + 1]);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Gets all of the raw parameter values in route order.
+         * @return A Map of parameter name to value.
+         */
+        public Map<String, String> getParams() {
+            Map<String, String> ret = new LinkedHashMap<String, String>();
+            for (int i = 0; i < this.count; i++) {
+                ret.put(this.names[i], this.path.substring(this.bounds[i * 2], this.bounds[i * 2 + 1]));
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * A compiled route tree node.
+     */
+    private static class Node {
+        // Literal children in an open addressing table, null if none.
+        private final String[] keys;
+        private final int[] hashes;
+        private final Node[] children;
+        private final int mask;
+
+        private final Node param;
+        private final CapsuleHandler handler;
+        private final String[] names;
+        private final CapsuleHandler wildcard;
+        private final String[] wildcardNames;
+
+        Node(Builder b) {
+            if (b.children.isEmpty()) {
+                this.keys = null;
+                this.hashes = null;
+                this.children = null;
+                this.mask = 0;
+            } else {
+                // Keep the table at most half full.
+                int cap = Integer.highestOneBit(b.children.size() * 2 - 1) << 1;
+                this.keys = new String[cap];
+                this.hashes = new int[cap];
+                this.children = new Node[cap];
+                this.mask = cap - 1;
+                for (Map.Entry<String, Builder> e : b.children.entrySet()) {
+                    int h = e.getKey().hashCode();
+                    int i = spread(h) & this.mask;
+                    while (this.keys[i] != null) i = (i + 1) & this.mask;
+                    this.keys[i] = e.getKey();
+                    this.hashes[i] = h;
+                    this.children[i] = e.getValue().compile();
+                }
+            }
+            this.param = b.param == null ? null : b.param.compile();
+            this.handler = b.handler;
+            this.names = b.names;
+            this.wildcard = b.wildcard;
+            this.wildcardNames = b.wildcardNames;
+        }
+
+        /**
+         * Gets the literal child for a region of the path.
+         * @param path is the request path.
+         * @param start is the start of the segment.
+         * @param end is the end of the segment.
+         * @return A Node or null if there's no such child.
+         */
+        Node child(String path, int start, int end) {
+            if (this.keys == null) return null;
+            int h = hash(path, start, end);
+            int len = end - start;
+            int i = spread(h) & this.mask;
+            String key;
+            while ((key = this.keys[i]) != null) {
+                if (this.hashes[i] == h && key.length() == len && path.regionMatches(start, key, 0, len)) {
+                    return this.children[i];
+                }
+                i = (i + 1) & this.mask;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Mutable node used while the tree is being built.
+     */
+    private static class Builder {
+        private final Map<String, Builder> children = new HashMap<String, Builder>();
+        private Builder param = null;
+        private CapsuleHandler handler = null;
+        private String[] names = null;
+        private CapsuleHandler wildcard = null;
+        private String[] wildcardNames = null;
+
+        Node compile() {
+            return new Node(this);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.lehman.gemini.lc19;
+
+import eu.infomas.annotation.AnnotationDetector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * CapsuleScanner finds the @Capsule annotated classes on the classpath,
+ * or in capsule jars loaded by their own class loader, and resolves each
+ * one into a CapsuleHandler.
+ *
+ * Capsules compiled with lc19 on the classpath are listed in a
+ * CapsuleIndex generated by the CapsuleProcessor, which is loaded as a
+ * service. The classpath or jar is only scanned for the annotation when
+ * it has no index, or when a full scan is asked for to also pick up
+ * capsules compiled with annotation processing turned off.
+ */
+public class CapsuleScanner {
+    private final static Logger log = LoggerFactory.getLogger(Main.class);
+
+    // Timeout in milliseconds for async capsules that don't set one.
+    private final long defaultTimeout;
+
+    // Scan for the annotation even when there's an index.
+    private final boolean fullScan;
+
+    /**
+     * Default constructor.
+     * @param DefaultTimeout is the async capsule timeout in milliseconds
+     * used when @Capsule doesn't set one.
+     */
+    public CapsuleScanner(long DefaultTimeout) {
+        this(DefaultTimeout, false);
+    }
+
+    /**
+     * Creates a scanner that can scan for the annotation even when
+     * there's a capsule index.
+     * @param DefaultTimeout is the async capsule timeout in milliseconds
+     * used when @Capsule doesn't set one.
+     * @param FullScan is a boolean with true to always scan.
+     */
+    public CapsuleScanner(long DefaultTimeout, boolean FullScan) {
+        this.defaultTimeout = DefaultTimeout;
+        this.fullScan = FullScan;
+    }
+
+    /**
+     * Scans the classpath for capsules.
+     * @return A List of CapsuleHandler objects.
+     * @throws IOException
+     */
+    public List<CapsuleHandler> scan() throws IOException {
+        return this.scan(CapsuleScanner.class.getClassLoader());
+    }
+
+    /**
+     * Finds the capsules in the provided jars or directories. The classes
+     * are loaded with the provided class loader. With no files the
+     * classpath is used. For jars only the indexes defined by the
+     * provided loader itself are used, not the ones it inherits from
+     * the classpath.
+     * @param loader is the ClassLoader to load the capsule classes with.
+     * @param files is the jars or class directories to scan.
+     * @return A List of CapsuleHandler objects.
+     * @throws IOException
+     */
+    public List<CapsuleHandler> scan(ClassLoader loader, File... files) throws IOException {
+        List<CapsuleHandler> ret = new ArrayList<CapsuleHandler>();
+        Set<Class<?>> indexed = new HashSet<Class<?>>();
+        int indexes = 0;
+        try {
+            List<ServiceLoader.Provider<CapsuleIndex>> providers = ServiceLoader.load(CapsuleIndex.class, loader)
+                    .stream().collect(Collectors.toList());
+            for (ServiceLoader.Provider<CapsuleIndex> p : providers) {
+                if (files.length > 0 && p.type().getClassLoader() != loader) continue;
+                p.get().register((c, factory) -> {
+                    if (indexed.add(c)) {
+                        CapsuleHandler h = this.createHandler(c, factory);
+                        if (h != null) ret.add(h);
+                    }
+                });
+                indexes++;
+            }
+        } catch (ServiceConfigurationError | LinkageError e) {
+            log.error("Failed to load capsule index: " + e.getMessage());
+        }
+        if (indexes > 0 && !this.fullScan) {
+            return ret;
+        }
+
+        List<Class<?>> capsuleClasses = new ArrayList<Class<?>>();
+        final AnnotationDetector.TypeReporter reporter = new AnnotationDetector.TypeReporter() {
+            @Override
+            public void reportTypeAnnotation(Class<? extends Annotation> aClass, String s) {
+                try {
+                    capsuleClasses.add(Class.forName(s, true, loader));
+                } catch (ClassNotFoundException | LinkageError e) {
+                    log.error("Failed to load capsule class '" + s + "': " + e.getMessage());
+                }
+            }
+            @SuppressWarnings("unchecked")
+            @Override
+            public Class<? extends Annotation>[] annotations() {
+                return new Class[]{Capsule.class};
+            }
+        };
+        final AnnotationDetector cf = new AnnotationDetector(reporter);
+        if (files.length == 0) {
+            cf.detect();
+        } else {
+            cf.detect(files);
+        }
+
+        for (Class<?> c : capsuleClasses) {
+            if (indexed.contains(c)) continue;
+            CapsuleHandler h = this.createHandler(c);
+            if (h != null) {
+                ret.add(h);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Checks the capsule class and creates its handler.
+     * @param c is the @Capsule annotated class.
+     * @return A CapsuleHandler or null if the class isn't a valid capsule.
+     */
+    private CapsuleHandler createHandler(Class<?> c) {
+        try {
+            Method m = AsyncCapsuleInt.class.isAssignableFrom(c) ? null : c.getMethod("handle", new Class[]{ GeminiRequest.class });
+            if (m != null && m.getReturnType() != GeminiResponse.class) {
+                log.warn("Capsule class '" + c.getName() + "' handle function returns type '" + m.getReturnType().getName() + "' but expecting 'GeminiResponse'.");
+            } else if (m != null && (m.getModifiers() & Modifier.PUBLIC) == 0) {
+                log.warn("Capsule class '" + c.getName() + "' handle function is not public.");
+            } else {
+                return this.createHandler(c, null);
+            }
+        } catch (NoSuchMethodException e) {
+            log.warn("Capsule class '" + c.getName() + "' found but is missing a function: public GeminiResponse handle (GeminiRequest req)");
+        }
+        return null;
+    }
+
+    /**
+     * Creates the handler for a capsule from its @Capsule values.
+     * @param c is the @Capsule annotated class.
+     * @param factory creates new instances, or null to use reflection.
+     * @return A CapsuleHandler or null if it can't be created.
+     */
+    private CapsuleHandler createHandler(Class<?> c, Supplier<Object> factory) {
+        Capsule capsule = c.getAnnotation(Capsule.class);
+        if (capsule == null) {
+            log.warn("Capsule class '" + c.getName() + "' is indexed but not annotated with @Capsule.");
+            return null;
+        }
+        String path = capsule.path();
+        if (path == null || path.equals("")) {
+            path = "/";
+        }
+        if (!path.startsWith("/")) path = "/" + path;
+        if (path.length() > 1 && path.endsWith("/")) path = path.substring(0, path.length() - 1);
+        long timeout = capsule.timeout() > 0 ? capsule.timeout() : this.defaultTimeout;
+
+        // Add the capsul
+        String host = capsule.host() == null ? "" : capsule.host();
+        try {
+            CapsuleHandler h = new CapsuleHandler(c, factory, path, host, capsule.scope(), timeout);
+            h.setCacheTtl(capsule.cacheTtl());
+            h.setCacheStale(capsule.cacheStale());
+            h.setVaryOnQuery(capsule.varyOnQuery());
+            h.setClientCert(capsule.clientCert());
+            String cache = capsule.cacheTtl() > 0 ? ", cached " + capsule.cacheTtl() + "ms" : "";
+            String cert = capsule.clientCert() != ClientCertPolicy.NONE ? ", client cert " + capsule.clientCert() : "";
+            log.info("Loaded capsule: " + c.getName() + " (" + host + path + ", " + capsule.scope() + cache + cert + ")");
+            return h;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.error("Failed to load capsule '" + c.getName() + "': " + e.getMessage());
+        }
+        return null;
+    }
+}
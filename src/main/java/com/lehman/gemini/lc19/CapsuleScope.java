@@ -0,0 +1,36 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+/**
+ * CapsuleScope controls how many instances of a capsule class are
+ * created and how they're shared between requests.
+ */
+public enum CapsuleScope {
+    /**
+     * One instance handles every request, possibly at the same time,
+     * so the capsule must be thread safe.
+     */
+    SINGLETON,
+
+    /**
+     * Instances are reused but each handles only one request at a
+     * time. New instances are created when all are busy.
+     */
+    POOLED
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+/**
+ * ClientCertPolicy is what a capsule or path asks of the client
+ * certificate. It needs clientCerts turned on so clients are asked for
+ * one in the handshake.
+ */
+public enum ClientCertPolicy {
+    /**
+     * No certificate is needed. One that is sent is still available
+     * from GeminiRequest.getIdentity().
+     */
+    NONE,
+
+    /**
+     * Any certificate that is within its validity period. Clients
+     * without one get '60 CLIENT CERTIFICATE REQUIRED' and expired ones
+     * get '62 CERTIFICATE NOT VALID'.
+     */
+    REQUIRED,
+
+    /**
+     * A valid certificate that the IdentityStore knows. Unknown ones
+     * get '61 CERTIFICATE NOT AUTHORISED'.
+     */
+    AUTHORISED
+}
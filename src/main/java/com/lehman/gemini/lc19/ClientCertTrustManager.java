@@ -0,0 +1,69 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.X509ExtendedTrustManager;
+import java.net.Socket;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+
+/**
+ * ClientCertTrustManager accepts any client certificate. Gemini client
+ * certificates are self signed so there's no chain to check, they're
+ * told apart by fingerprint and checked by ClientIdentities after the
+ * handshake. Accepting them here also means expired ones still make it
+ * through, so the client gets a 62 instead of a failed handshake.
+ */
+public class ClientCertTrustManager extends X509ExtendedTrustManager {
+    private final static X509Certificate[] NO_ISSUERS = new X509Certificate[0];
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType) { }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) { }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) { }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+        throw new CertificateException("Only client certificates are checked.");
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+        throw new CertificateException("Only client certificates are checked.");
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+        throw new CertificateException("Only client certificates are checked.");
+    }
+
+    /**
+     * No issuers are listed in the certificate request, so clients can
+     * send whichever certificate they picked for the capsule.
+     * @return An empty array.
+     */
+    @Override
+    public X509Certificate[] getAcceptedIssuers() {
+        return NO_ISSUERS;
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ClientIdentities resolves the client certificate of a TLS session into
+ * a ClientIdentity. Resolving means hashing the certificate, reading its
+ * subject and asking the IdentityStore who it belongs to, so the results
+ * are kept by fingerprint for the cache TTL and a lookup is a single
+ * ConcurrentHashMap get. The entry is also put on the SSLSession, so a
+ * resumed session skips the hashing too.
+ */
+public class ClientIdentities {
+    private final static Logger log = LoggerFactory.getLogger(Main.class);
+
+    // Name the entry is put on the SSLSession with.
+    private final static String SESSION_KEY = "lc19.identity";
+
+    // Fraction of maxEntries to keep on each eviction pass.
+    private final static double EVICT_TO = 0.9;
+
+    private final static char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final static ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final IdentityStore store;
+    private final long ttl;
+    private final int maxEntries;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Default constructor.
+     * @param Store is the IdentityStore to look up names in.
+     * @param Ttl is the milliseconds a resolved identity is kept for.
+     * @param MaxEntries is the max number of identities kept.
+     */
+    public ClientIdentities(IdentityStore Store, long Ttl, int MaxEntries) {
+        this.store = Store;
+        this.ttl = Ttl;
+        this.maxEntries = MaxEntries;
+    }
+
+    /**
+     * Gets the identity of the client certificate of the session.
+     * @param session is the SSLSession the request came in on.
+     * @return A ClientIdentity object or null if the client didn't send
+     * a certificate.
+     */
+    public ClientIdentity resolve(SSLSession session) {
+        if (session == null) return null;
+        long now = System.nanoTime();
+
+        Object val = session.getValue(SESSION_KEY);
+        if (val instanceof Entry && now - ((Entry) val).expires < 0) {
+            this.hits.increment();
+            return ((Entry) val).identity;
+        }
+
+        Certificate[] certs;
+        try {
+            certs = session.getPeerCertificates();
+        } catch (SSLPeerUnverifiedException e) {
+            return null;
+        }
+        if (certs.length == 0 || !(certs[0] instanceof X509Certificate)) {
+            return null;
+        }
+        X509Certificate cert = (X509Certificate) certs[0];
+
+        String fp;
+        try {
+            fp = fingerprint(cert);
+        } catch (CertificateEncodingException e) {
+            log.warn("Failed to encode client certificate: " + e.getMessage());
+            return null;
+        }
+
+        Entry e = this.entries.get(fp);
+        if (e != null && now - e.expires < 0) {
+            this.hits.increment();
+        } else {
+            this.misses.increment();
+            e = new Entry(new ClientIdentity(fp, cert, commonName(cert), this.lookup(fp, cert)), now + this.ttl * 1000000L);
+            this.entries.put(fp, e);
+            if (this.entries.size() > this.maxEntries) {
+                this.evict(now);
+            }
+        }
+        session.putValue(SESSION_KEY, e);
+        return e.identity;
+    }
+
+    /**
+     * Drops every resolved identity, for when the IdentityStore changes.
+     */
+    public void clear() {
+        this.entries.clear();
+    }
+
+    /**
+     * Gets the lower case hex SHA-256 of the DER encoded certificate.
+     * @param cert is the X509Certificate.
+     * @return A String with the fingerprint.
+     * @throws CertificateEncodingException if the certificate can't be
+     * encoded.
+     */
+    public static String fingerprint(X509Certificate cert) throws CertificateEncodingException {
+        byte[] hash = SHA256.get().digest(cert.getEncoded());
+        char[] ret = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            ret[i * 2] = HEX[(hash[i] >> 4) & 0xf];
+            ret[i * 2 + 1] = HEX[hash[i] & 0xf];
+        }
+        return new String(ret);
+    }
+
+    /**
+     * Normalizes a fingerprint as printed by tools such as openssl, so
+     * 'AB:CD:..' matches 'abcd..'.
+     * @param fp is the fingerprint String.
+     * @return A String with the lower case fingerprint without separators.
+     */
+    public static String normalizeFingerprint(String fp) {
+        return fp.trim().replace(":", "").toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Asks the IdentityStore for the name of the certificate's user. A
+     * failing store is treated as not knowing the certificate.
+     */
+    private String lookup(String fp, X509Certificate cert) {
+        if (this.store == null) return null;
+        try {
+            return this.store.lookup(fp, cert);
+        } catch (RuntimeException e) {
+            log.error("Identity store failed for '" + fp + "': " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Gets the CN of the certificate's subject.
+     * @param cert is the X509Certificate.
+     * @return A String with the CN or empty if there's none.
+     */
+    private static String commonName(X509Certificate cert) {
+        try {
+            LdapName name = new LdapName(cert.getSubjectX500Principal().getName());
+            for (Rdn rdn : name.getRdns()) {
+                if (rdn.getType().equalsIgnoreCase("CN")) {
+                    return rdn.getValue().toString();
+                }
+            }
+        } catch (InvalidNameException e) {
+            log.debug("Invalid client certificate subject: " + e.getMessage());
+        }
+        return "";
+    }
+
+    /**
+     * Removes expired entries, then the ones closest to expiring until
+     * the map is back under EVICT_TO of maxEntries.
+     * @param now is the current System.nanoTime().
+     */
+    private void evict(long now) {
+        this.entries.values().removeIf(e -> now - e.expires >= 0);
+        int target = (int) (this.maxEntries * EVICT_TO);
+        if (this.entries.size() <= target) return;
+
+        List<Map.Entry<String, Entry>> list = new ArrayList<Map.Entry<String, Entry>>(this.entries.entrySet());
+        list.sort(Comparator.comparingLong(e -> e.getValue().expires - now));
+        for (int i = 0; i < list.size() - target; i++) {
+            this.entries.remove(list.get(i).getKey(), list.get(i).getValue());
+        }
+    }
+
+    public int getEntryCount() {
+        return this.entries.size();
+    }
+
+    public long getHitCount() {
+        return this.hits.sum();
+    }
+
+    public long getMissCount() {
+        return this.misses.sum();
+    }
+
+    /**
+     * A resolved identity and when it has to be resolved again.
+     */
+    private static class Entry {
+        private final ClientIdentity identity;
+        private final long expires;
+
+        Entry(ClientIdentity Identity, long Expires) {
+            this.identity = Identity;
+            this.expires = Expires;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+import java.security.cert.X509Certificate;
+
+/**
+ * ClientIdentity is a client certificate resolved once into what
+ * capsules need from it. Gemini client certificates are usually self
+ * signed, so the identity is the certificate's SHA-256 fingerprint
+ * rather than anything in it.
+ */
+public class ClientIdentity {
+    private final String fingerprint;
+    private final X509Certificate certificate;
+    private final String commonName;
+    private final String name;
+    private final long notBefore;
+    private final long notAfter;
+
+    /**
+     * Default constructor.
+     * @param Fingerprint is the lower case hex SHA-256 of the certificate.
+     * @param Certificate is the X509Certificate.
+     * @param CommonName is the CN of the subject or empty if none.
+     * @param Name is the name from the IdentityStore or null if unknown.
+     */
+    public ClientIdentity(String Fingerprint, X509Certificate Certificate, String CommonName, String Name) {
+        this.fingerprint = Fingerprint;
+        this.certificate = Certificate;
+        this.commonName = CommonName;
+        this.name = Name;
+        this.notBefore = Certificate.getNotBefore().getTime();
+        this.notAfter = Certificate.getNotAfter().getTime();
+    }
+
+    /**
+     * Checks if the certificate is within its validity period.
+     * @return A boolean with true if valid now.
+     */
+    public boolean isValid() {
+        long now = System.currentTimeMillis();
+        return now >= this.notBefore && now <= this.notAfter;
+    }
+
+    /**
+     * Checks if the IdentityStore knows the certificate.
+     * @return A boolean with true if it has a name.
+     */
+    public boolean isAuthorised() {
+        return this.name != null;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public X509Certificate getCertificate() {
+        return certificate;
+    }
+
+    public String getCommonName() {
+        return commonName;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return "ClientIdentity{" +
+                "fingerprint='" + fingerprint + '\'' +
+                ", commonName='" + commonName + '\'' +
+                ", name='" + name + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ClientLimiter caps the open connections and the request rate of each
+ * client address. It's checked in the accept loop before any TLS work
+ * is done for the connection. Since every Gemini request is its own
+ * connection the request rate is the connection rate.
+ *
+ * The rate is a token bucket kept as a single theoretical arrival time
+ * (GCRA) that is updated with a compare and set, so admitting a client
+ * takes no locks. IPv6 clients are limited by their /64 since a single
+ * host usually has the whole prefix. Clients that are idle, with no open
+ * connections and a full bucket, are dropped by the first open() after
+ * each SWEEP_MS, and memory is bounded by maxTracked. Once that many
+ * clients are tracked new ones are let through untracked until the next
+ * sweep makes room.
+ */
+public class ClientLimiter {
+    private final static Logger log = LoggerFactory.getLogger(Main.class);
+
+    // How often idle clients are dropped.
+    private final static long SWEEP_MS = 5000;
+
+    // Max open connections per client, 0 for no limit.
+    protected int maxConnections = 10;
+
+    // Requests per second per client and how many can come at once,
+    // 0 rate for no limit.
+    protected double rate = 10;
+    protected int burst = 20;
+
+    // Max number of clients tracked.
+    protected int maxTracked = 65536;
+
+    // Time between tokens and how far ahead of now the bucket may run,
+    // in nanoseconds.
+    private final long interval;
+    private final long tolerance;
+
+    private final Map<Long, Client> clients = new ConcurrentHashMap<Long, Client>();
+    private final AtomicLong nextSweep = new AtomicLong(System.nanoTime());
+    private volatile boolean warnedFull = false;
+
+    // Connections refused for too many open connections and for rate.
+    private final LongAdder connectionLimited = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+
+    /**
+     * Default constructor.
+     * @param MaxConnections is the max open connections per client, 0 for no limit.
+     * @param Rate is the requests per second per client, 0 for no limit.
+     * @param Burst is the number of requests a client can make at once.
+     * @param MaxTracked is the max number of clients tracked.
+     */
+    public ClientLimiter(int MaxConnections, double Rate, int Burst, int MaxTracked) {
+        this.maxConnections = MaxConnections;
+        this.rate = Rate;
+        this.burst = Math.max(Burst, 1);
+        this.maxTracked = MaxTracked;
+
+        this.interval = Rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / Rate) : 0;
+        this.tolerance = this.interval * (this.burst - 1);
+    }
+
+    /**
+     * Admits a new connection from the provided address.
+     * @param addr is the client address.
+     * @return A Client to close() when the connection ends or null if
+     * the client is over its limits.
+     */
+    public Client open(InetAddress addr) {
+        long now = System.nanoTime();
+        long sweep = this.nextSweep.get();
+        if (now - sweep >= 0 && this.nextSweep.compareAndSet(sweep, now + TimeUnit.MILLISECONDS.toNanos(SWEEP_MS))) {
+            this.sweep(now);
+        }
+
+        Long key = key(addr);
+        while (true) {
+            Client c = this.clients.get(key);
+            if (c == null) {
+                if (this.clients.size() >= this.maxTracked) {
+                    if (!this.warnedFull) {
+                        this.warnedFull = true;
+                        log.warn("Tracking " + this.maxTracked + " clients, letting new ones through unlimited.");
+                    }
+                    c = new Client(now);
+                    c.open.incrementAndGet();
+                    return c;
+                }
+                c = new Client(now);
+                Client old = this.clients.putIfAbsent(key, c);
+                if (old != null) c = old;
+            }
+
+            int n = c.open.get();
+            if (n < 0) {
+                // Dropped by a sweep, help remove it and start over.
+                this.clients.remove(key, c);
+                continue;
+            }
+            if (this.maxConnections > 0 && n >= this.maxConnections) {
+                this.connectionLimited.increment();
+                return null;
+            }
+            if (!c.open.compareAndSet(n, n + 1)) {
+                continue;
+            }
+            if (this.interval > 0 && !this.take(c, now)) {
+                c.close();
+                this.rateLimited.increment();
+                return null;
+            }
+            return c;
+        }
+    }
+
+    /**
+     * Gets how long the client should wait before connecting again.
+     * @param addr is the client address.
+     * @param min is the seconds to use when it's over the connection
+     * limit rather than the rate.
+     * @return An int with the number of seconds, at least 1.
+     */
+    public int retryAfter(InetAddress addr, int min) {
+        Client c = this.clients.get(key(addr));
+        if (c == null || this.interval == 0) {
+            return Math.max(min, 1);
+        }
+        long wait = c.tat.get() - System.nanoTime() - this.tolerance;
+        if (wait <= 0) {
+            return Math.max(min, 1);
+        }
+        return (int) Math.max(1, (wait + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /**
+     * Takes a token from the client's bucket.
+     * @param c is the Client.
+     * @param now is the current System.nanoTime().
+     * @return A boolean with true if there was a token.
+     */
+    private boolean take(Client c, long now) {
+        while (true) {
+            long tat = c.tat.get();
+            long start = tat - now > 0 ? tat : now;
+            if (start - now > this.tolerance) {
+                return false;
+            }
+            if (c.tat.compareAndSet(tat, start + this.interval)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Drops clients with no open connections and a full bucket. A client
+     * is marked closed before it's removed so open() can't count a new
+     * connection against it.
+     * @param now is the current System.nanoTime().
+     */
+    private void sweep(long now) {
+        for (Map.Entry<Long, Client> e : this.clients.entrySet()) {
+            Client c = e.getValue();
+            if (c.tat.get() - now <= 0 && c.open.compareAndSet(0, -1)) {
+                this.clients.remove(e.getKey(), c);
+            }
+        }
+        this.warnedFull = false;
+    }
+
+    /**
+     * Gets the key for a client address. IPv4 addresses fill the low 32
+     * bits and IPv6 addresses use their /64 prefix. IPv6 prefixes with
+     * the top 32 bits clear aren't routable so the two can't collide.
+     * @param addr is the client address.
+     * @return A Long with the key.
+     */
+    private static Long key(InetAddress addr) {
+        byte[] b = addr.getAddress();
+        long k = 0;
+        int len = addr instanceof Inet4Address ? 4 : 8;
+        for (int i = 0; i < len; i++) {
+            k = (k << 8) | (b[i] & 0xff);
+        }
+        return k;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    public int getMaxTracked() {
+        return maxTracked;
+    }
+
+    public int getTrackedCount() {
+        return clients.size();
+    }
+
+    public long getConnectionLimitedCount() {
+        return connectionLimited.sum();
+    }
+
+    public long getRateLimitedCount() {
+        return rateLimited.sum();
+    }
+
+    /**
+     * The state kept for one client.
+     */
+    public static class Client {
+        // Open connections, -1 once dropped by a sweep.
+        private final AtomicInteger open = new AtomicInteger(0);
+
+        // Theoretical arrival time of the next request.
+        private final AtomicLong tat;
+
+        Client(long now) {
+            this.tat = new AtomicLong(now);
+        }
+
+        /**
+         * Counts a connection from open() as closed. Call exactly once.
+         */
+        public void close() {
+            this.open.decrementAndGet();
+        }
+    }
+}
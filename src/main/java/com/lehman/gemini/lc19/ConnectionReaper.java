@@ -0,0 +1,91 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ConnectionReaper enforces the phase timeouts of the blocking
+ * transport. A pool thread blocked on a socket can't notice its own
+ * deadline, SO_TIMEOUT only bounds a single read and nothing bounds a
+ * write, so every CHECK_MS a scheduled task walks the open connections
+ * and closes the ones past their deadline. Closing the socket fails the
+ * blocked call and frees the thread.
+ */
+public class ConnectionReaper implements Runnable {
+    private final static Logger log = LoggerFactory.getLogger(Main.class);
+
+    /**
+     * How often deadlines are checked, and so how late a timeout can
+     * be noticed.
+     */
+    public final static long CHECK_MS = 500;
+
+    private final Collection<ServerThread> connections;
+    private ScheduledExecutorService timer = null;
+
+    /**
+     * Default constructor.
+     * @param Connections is the live collection of open connections.
+     */
+    public ConnectionReaper(Collection<ServerThread> Connections) {
+        this.connections = Connections;
+    }
+
+    /**
+     * Starts checking the connections every CHECK_MS.
+     */
+    public void start() {
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lc19-reaper");
+            t.setDaemon(true);
+            return t;
+        });
+        this.timer.scheduleAtFixedRate(this, CHECK_MS, CHECK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops checking.
+     */
+    public void stop() {
+        if (this.timer != null) {
+            this.timer.shutdownNow();
+        }
+    }
+
+    /**
+     * Checks every open connection once.
+     */
+    @Override
+    public void run() {
+        long now = System.nanoTime();
+        for (ServerThread st : this.connections) {
+            try {
+                st.checkTimeout(now);
+            } catch (RuntimeException e) {
+                log.error("Timeout check failed: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * ContentPack is a hostDir compiled by ContentPacker into one file that
+ * is memory mapped and served from. Every response is stored fully
+ * encoded, header and body, so a request is a binary search of the
+ * path table and the response is sent straight from the page cache,
+ * which is shared by every server process mapping the same pack.
+ * Opening a pack only reads its header, however many files it holds.
+ *
+ * The layout is big endian:
+ *
+ *   magic "LC19PACK", int version, int entry count
+ *   entries sorted by the unsigned UTF-8 bytes of their path, each
+ *     int path offset, int path length,
+ *     int response offset, int response length
+ *   paths, UTF-8
+ *   responses
+ *
+ * Paths are request paths as resolved against hostDir, so '/about'
+ * and '/about.gmi' both point to the response for about.gmi, and
+ * entries may share a response. A pack is limited to 2 GB.
+ */
+public class ContentPack {
+    final static byte[] MAGIC = "LC19PACK".getBytes(StandardCharsets.US_ASCII);
+    final static int VERSION = 1;
+    final static int HEADER_SIZE = 16;
+    final static int ENTRY_SIZE = 16;
+
+    private final static byte[] ROOT = { '/' };
+
+    private final Path file;
+    private final MappedByteBuffer map;
+    private final int count;
+
+    private ContentPack(Path File, MappedByteBuffer Map, int Count) {
+        this.file = File;
+        this.map = Map;
+        this.count = Count;
+    }
+
+    /**
+     * Maps the pack file. The file can be replaced once this returns,
+     * the mapping keeps the old one readable until it's dropped.
+     * @param file is the Path of the pack.
+     * @return A ContentPack object.
+     * @throws IOException if the file can't be read or isn't a pack.
+     */
+    public static ContentPack open(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Content pack '" + file + "' is over 2 GB.");
+            }
+            if (size < HEADER_SIZE) {
+                throw new IOException("Content pack '" + file + "' is truncated.");
+            }
+            MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            byte[] magic = new byte[MAGIC.length];
+            map.get(0, magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("'" + file + "' isn't a content pack.");
+            }
+            int version = map.getInt(8);
+            if (version != VERSION) {
+                throw new IOException("Content pack '" + file + "' is version " + version + ", expected " + VERSION + ".");
+            }
+            int count = map.getInt(12);
+            if (count < 0 || HEADER_SIZE + (long) count * ENTRY_SIZE > size) {
+                throw new IOException("Content pack '" + file + "' is truncated.");
+            }
+            return new ContentPack(file, map, count);
+        }
+    }
+
+    /**
+     * Gets the encoded response for the request path. Trailing slashes
+     * are ignored and an empty path is '/', as with hostDir.
+     * @param path is the request path.
+     * @return A read only ByteBuffer of the mapped response or null if
+     * the pack has no such path.
+     */
+    public ByteBuffer get(String path) {
+        int end = path.length();
+        if (end > 1) {
+            while (end > 0 && path.charAt(end - 1) == '/') end--;
+            if (end == 0) return null;
+        }
+        byte[] key = end <= 1 ? ROOT : path.substring(0, end).getBytes(StandardCharsets.UTF_8);
+
+        int lo = 0;
+        int hi = this.count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = this.compare(mid, key);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                int e = HEADER_SIZE + mid * ENTRY_SIZE;
+                int off = this.map.getInt(e + 8);
+                int len = this.map.getInt(e + 12);
+                if (off < 0 || len < 0 || (long) off + len > this.map.capacity()) {
+                    return null;
+                }
+                return this.map.slice(off, len);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Compares the path of an entry with the key, as unsigned bytes.
+     * @param index is the entry index.
+     * @param key is the UTF-8 request path.
+     * @return An int less than, equal to or greater than 0 as the entry
+     * path is less than, equal to or greater than the key.
+     */
+    private int compare(int index, byte[] key) {
+        int e = HEADER_SIZE + index * ENTRY_SIZE;
+        int off = this.map.getInt(e);
+        int len = this.map.getInt(e + 4);
+        int n = Math.min(len, key.length);
+        for (int i = 0; i < n; i++) {
+            int a = this.map.get(off + i) & 0xff;
+            int b = key[i] & 0xff;
+            if (a != b) return a - b;
+        }
+        return len - key.length;
+    }
+
+    /**
+     * Gets the path of an entry, for listing the pack.
+     * @param index is the entry index.
+     * @return A String with the request path.
+     */
+    public String getPath(int index) {
+        int e = HEADER_SIZE + index * ENTRY_SIZE;
+        byte[] b = new byte[this.map.getInt(e + 4)];
+        this.map.get(this.map.getInt(e), b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Gets the number of paths in the pack.
+     * @return An int with the number of entries.
+     */
+    public int size() {
+        return this.count;
+    }
+
+    /**
+     * Gets the size of the mapped file.
+     * @return A long with the size in bytes.
+     */
+    public long getSize() {
+        return this.map.capacity();
+    }
+}
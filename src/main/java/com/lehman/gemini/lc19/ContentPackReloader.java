@@ -0,0 +1,141 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * ContentPackReloader maps a content pack again whenever its file is
+ * replaced, so a deploy is a single rename over the pack. The new pack
+ * is handed over once the directory has been quiet for a moment and
+ * requests already sending from the old mapping keep it until they're
+ * done. A file that isn't a valid pack leaves the old one in place.
+ */
+public class ContentPackReloader implements Runnable {
+    private final static Logger log = LoggerFactory.getLogger(Main.class);
+
+    // How long the directory has to be quiet before reloading.
+    private final static long QUIET_MS = 500;
+
+    private final Path file;
+    private final Consumer<ContentPack> onChange;
+
+    // Identity of the file currently mapped, to skip events for others.
+    private Object fileKey = null;
+    private long modified = 0;
+
+    private WatchService watcher = null;
+
+    /**
+     * Default constructor.
+     * @param File is the pack file to watch.
+     * @param OnChange is called on the watch thread with each new pack.
+     */
+    public ContentPackReloader(Path File, Consumer<ContentPack> OnChange) {
+        this.file = File.toAbsolutePath().normalize();
+        this.onChange = OnChange;
+    }
+
+    /**
+     * Maps the pack. Call once before start().
+     * @return A ContentPack object.
+     * @throws IOException if the pack can't be opened.
+     */
+    public ContentPack load() throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(this.file, BasicFileAttributes.class);
+        ContentPack pack = ContentPack.open(this.file);
+        this.fileKey = attrs.fileKey();
+        this.modified = attrs.lastModifiedTime().toMillis();
+        log.info("Loaded content pack '" + this.file + "' with " + pack.size() + " paths (" + pack.getSize() + " bytes).");
+        return pack;
+    }
+
+    /**
+     * Starts the thread that watches the pack's directory.
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        this.watcher = FileSystems.getDefault().newWatchService();
+        this.file.getParent().register(this.watcher,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        Thread t = new Thread(this, "lc19-pack-reload");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Processes watch events until the thread is stopped.
+     */
+    @Override
+    public void run() {
+        Path name = this.file.getFileName();
+        while (true) {
+            try {
+                WatchKey key = this.watcher.take();
+                boolean changed = false;
+                do {
+                    for (WatchEvent<?> e : key.pollEvents()) {
+                        if (name.equals(e.context())) changed = true;
+                    }
+                    if (!key.reset()) {
+                        log.warn("Content pack directory '" + this.file.getParent() + "' is gone, no longer watching it.");
+                        return;
+                    }
+                } while ((key = this.watcher.poll(QUIET_MS, TimeUnit.MILLISECONDS)) != null);
+
+                if (changed) {
+                    this.reload();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                log.error("Content pack reload failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Maps the pack again if the file was replaced or changed.
+     */
+    private void reload() {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(this.file, BasicFileAttributes.class);
+            if (Objects.equals(attrs.fileKey(), this.fileKey) && attrs.lastModifiedTime().toMillis() == this.modified) {
+                return;
+            }
+            this.onChange.accept(this.load());
+        } catch (IOException e) {
+            log.error("Failed to load content pack '" + this.file + "', keeping the previous one: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * ContentPacker compiles a hostDir into a ContentPack. Each file gets the
+ * request paths hostDir would serve it on, with the same precedence, and
+ * its response is encoded once with the header the server would send.
+ * The pack is written next to the output file and moved over it, so a
+ * server watching the output only ever sees a complete pack.
+ */
+public class ContentPacker {
+    // Gemini extensions in the order hostDir looks them up.
+    private final static String[] GEMINI_EXTENSIONS = { ".gmi", ".gmni", ".gemini" };
+
+    private final Path root;
+
+    /**
+     * Default constructor.
+     * @param Root is the hostDir to pack.
+     */
+    public ContentPacker(Path Root) {
+        this.root = Root.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Main entry point of the packer.
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length == 1 && (args[0].equals("-h") || args[0].equals("--help"))) {
+            usage(System.out);
+            return;
+        }
+        if (args.length == 2 && args[0].equals("--list")) {
+            ContentPack pack = ContentPack.open(Paths.get(args[1]));
+            for (int i = 0; i < pack.size(); i++) {
+                System.out.println(pack.getPath(i));
+            }
+            return;
+        }
+        if (args.length != 2 || args[0].startsWith("-")) {
+            usage(System.err);
+            System.exit(2);
+            return;
+        }
+
+        long start = System.nanoTime();
+        ContentPacker packer = new ContentPacker(Paths.get(args[0]));
+        int count = packer.write(Paths.get(args[1]));
+        System.out.println("Packed " + count + " paths from '" + args[0] + "' into '" + args[1] + "' ("
+                + Files.size(Paths.get(args[1])) + " bytes) in " + (System.nanoTime() - start) / 1000000 + "ms.");
+    }
+
+    private static void usage(PrintStream out) {
+        out.println("Usage: lc19-pack HOSTDIR PACK");
+        out.println("       lc19-pack --list PACK");
+        out.println("Compiles HOSTDIR into the content pack file PACK, replacing it atomically.");
+    }
+
+    /**
+     * Writes the pack.
+     * @param out is the Path of the pack file.
+     * @return An int with the number of paths in the pack.
+     * @throws IOException if hostDir can't be read, the pack can't be
+     * written or it would be over 2 GB.
+     */
+    public int write(Path out) throws IOException {
+        List<Path> files;
+        try (Stream<Path> s = Files.walk(this.root)) {
+            files = s.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+        out = out.toAbsolutePath().normalize();
+
+        // Request path -> file, keeping the one hostDir would pick.
+        Map<String, Candidate> paths = new HashMap<String, Candidate>();
+        for (Path f : files) {
+            if (f.equals(out)) continue;
+            String rel = "/" + this.root.relativize(f).toString().replace(f.getFileSystem().getSeparator(), "/");
+            // Dotfiles aren't served from hostDir either.
+            if (RequestHandler.isHiddenPath(rel)) continue;
+            this.add(paths, rel, f, GEMINI_EXTENSIONS.length);
+            for (int i = 0; i < GEMINI_EXTENSIONS.length; i++) {
+                if (rel.endsWith(GEMINI_EXTENSIONS[i])) {
+                    this.add(paths, rel.substring(0, rel.length() - GEMINI_EXTENSIONS[i].length()), f, i);
+                }
+            }
+        }
+        Candidate index = paths.get("/index");
+        if (index != null) {
+            paths.put("/", index);
+        }
+
+        // Encode each file's header once, entries for the same file
+        // share its response.
+        List<Entry> entries = new ArrayList<Entry>();
+        Map<Path, Response> responses = new HashMap<Path, Response>();
+        List<Response> order = new ArrayList<Response>();
+        for (Map.Entry<String, Candidate> e : paths.entrySet()) {
+            Path f = e.getValue().file;
+            Response r = responses.get(f);
+            if (r == null) {
+                GeminiResponse resp = new GeminiResponse();
+                resp.setMediaType(GeminiMediaType.forFileName(f.getFileName().toString()));
+                r = new Response(f, resp.getHeaderBytes(), Files.size(f));
+                responses.put(f, r);
+                order.add(r);
+            }
+            entries.add(new Entry(e.getKey().getBytes(StandardCharsets.UTF_8), r));
+        }
+        entries.sort((a, b) -> Arrays.compareUnsigned(a.path, b.path));
+
+        long pos = ContentPack.HEADER_SIZE + (long) entries.size() * ContentPack.ENTRY_SIZE;
+        for (Entry e : entries) {
+            e.pathOffset = pos;
+            pos += e.path.length;
+        }
+        for (Response r : order) {
+            r.offset = pos;
+            pos += r.header.length + r.size;
+        }
+        if (pos > Integer.MAX_VALUE) {
+            throw new IOException("Content pack would be " + pos + " bytes, the max is 2 GB.");
+        }
+
+        Path tmp = out.resolveSibling(out.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer head = ByteBuffer.allocate(ContentPack.HEADER_SIZE + entries.size() * ContentPack.ENTRY_SIZE);
+            head.put(ContentPack.MAGIC).putInt(ContentPack.VERSION).putInt(entries.size());
+            for (Entry e : entries) {
+                head.putInt((int) e.pathOffset).putInt(e.path.length);
+                head.putInt((int) e.response.offset).putInt(e.response.header.length + (int) e.response.size);
+            }
+            writeFully(ch, head.flip());
+            for (Entry e : entries) {
+                writeFully(ch, ByteBuffer.wrap(e.path));
+            }
+            for (Response r : order) {
+                writeFully(ch, ByteBuffer.wrap(r.header));
+                try (FileChannel in = FileChannel.open(r.file, StandardOpenOption.READ)) {
+                    long done = 0;
+                    while (done < r.size) {
+                        long n = in.transferTo(done, r.size - done, ch);
+                        if (n <= 0) {
+                            throw new IOException("'" + r.file + "' changed while it was being packed.");
+                        }
+                        done += n;
+                    }
+                }
+            }
+            ch.force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, out, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return entries.size();
+    }
+
+    /**
+     * Adds the file for the request path unless a file with a lower
+     * rank already has it.
+     * @param paths is the Map of request path to Candidate.
+     * @param path is the request path.
+     * @param f is the file.
+     * @param rank is the index of the Gemini extension the path was made
+     * by removing, or the number of extensions for the exact file name.
+     */
+    private void add(Map<String, Candidate> paths, String path, Path f, int rank) {
+        Candidate c = paths.get(path);
+        if (c == null || rank < c.rank) {
+            paths.put(path, new Candidate(f, rank));
+        }
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            ch.write(buf);
+        }
+    }
+
+    private static class Candidate {
+        private final Path file;
+        private final int rank;
+
+        Candidate(Path File, int Rank) {
+            this.file = File;
+            this.rank = Rank;
+        }
+    }
+
+    private static class Response {
+        private final Path file;
+        private final byte[] header;
+        private final long size;
+        private long offset = 0;
+
+        Response(Path File, byte[] Header, long Size) {
+            this.file = File;
+            this.header = Header;
+            this.size = Size;
+        }
+    }
+
+    private static class Entry {
+        private final byte[] path;
+        private final Response response;
+        private long pathOffset = 0;
+
+        Entry(byte[] Path, Response Response) {
+            this.path = Path;
+            this.response = Response;
+        }
+    }
+}
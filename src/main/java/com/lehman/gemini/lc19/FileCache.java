@@ -0,0 +1,319 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * FileCache holds fully encoded responses (header plus body) for files
+ * served from hostDir, keyed by request path. Lookups are a single
+ * ConcurrentHashMap get. When the cache grows past maxBytes the least
+ * recently used entries are evicted, and a WatchService on hostDir drops
+ * entries as soon as their file is changed, created or deleted.
+ */
+public class FileCache implements Runnable {
+    private final static Logger log = LoggerFactory.getLogger(Main.class);
+
+    // Fraction of maxBytes to free on each eviction pass so eviction
+    // doesn't run on every put once the cache is full.
+    private final static double EVICT_TO = 0.9;
+
+    private final Path root;
+
+    // Max total bytes held and max bytes for a single entry.
+    private final long maxBytes;
+    private final long maxEntryBytes;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final AtomicLong size = new AtomicLong(0);
+
+    // Bumped on every invalidation so a read that raced with a file
+    // change isn't put back in the cache.
+    private final AtomicLong generation = new AtomicLong(0);
+
+    // Called with the request paths of invalidated entries so they can
+    // be loaded again, null for none.
+    private volatile Consumer<String> warmer = null;
+
+    private WatchService watcher = null;
+    private final Map<WatchKey, Path> watchKeys = new ConcurrentHashMap<WatchKey, Path>();
+
+    /**
+     * Default constructor.
+     * @param Root is the hostDir to cache files from.
+     * @param MaxBytes is the max total size of all entries.
+     * @param MaxEntryBytes is the max size of a single entry.
+     */
+    public FileCache(Path Root, long MaxBytes, long MaxEntryBytes) {
+        this.root = Root.toAbsolutePath().normalize();
+        this.maxBytes = MaxBytes;
+        this.maxEntryBytes = MaxEntryBytes;
+    }
+
+    /**
+     * Registers a watch on hostDir and every directory below it and
+     * starts the thread that processes the watch events.
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        log.info("Starting file cache on '" + this.root + "' with max size " + this.maxBytes + " bytes.");
+        this.watcher = FileSystems.getDefault().newWatchService();
+        this.registerAll(this.root);
+        Thread t = new Thread(this, "lc19-file-cache");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Gets the encoded response for the provided request path.
+     * @param key is the request path.
+     * @return A byte array with the response or null if not cached.
+     */
+    public byte[] get(String key) {
+        Entry e = this.entries.get(key);
+        if (e == null) return null;
+        e.lastAccess = System.nanoTime();
+        return e.bytes;
+    }
+
+    /**
+     * Gets the current generation. Read this before loading a file and
+     * pass it to put().
+     * @return A long with the generation.
+     */
+    public long generation() {
+        return this.generation.get();
+    }
+
+    /**
+     * Caches the encoded response for the provided request path.
+     * @param key is the request path.
+     * @param file is the file the response was read from.
+     * @param bytes is the encoded response.
+     * @param gen is the generation read before the file was loaded.
+     */
+    public void put(String key, Path file, byte[] bytes, long gen) {
+        if (bytes.length > this.maxEntryBytes) return;
+
+        Entry e = new Entry(file.toAbsolutePath().normalize(), bytes);
+        Entry old = this.entries.put(key, e);
+        this.size.addAndGet(bytes.length - (old == null ? 0 : old.bytes.length));
+
+        // A change landed while the file was being read.
+        if (this.generation.get() != gen) {
+            this.remove(key, e);
+            return;
+        }
+
+        if (this.size.get() > this.maxBytes) {
+            this.evict();
+        }
+    }
+
+    public long getMaxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    public void setWarmer(Consumer<String> warmer) {
+        this.warmer = warmer;
+    }
+
+    /**
+     * Drops every entry.
+     */
+    public void clear() {
+        this.generation.incrementAndGet();
+        for (String key : new ArrayList<String>(this.entries.keySet())) {
+            Entry e = this.entries.get(key);
+            if (e != null) this.remove(key, e);
+        }
+    }
+
+    /**
+     * Drops entries served from the provided file, or that could be
+     * shadowed by it. A new index.gmi shadows a cached index.gmni so
+     * anything with the same base name in the same directory goes.
+     * @param file is the changed file.
+     * @return A List with the request paths that were dropped.
+     */
+    public List<String> invalidate(Path file) {
+        List<String> ret = new ArrayList<String>();
+        this.generation.incrementAndGet();
+        Path dir = file.getParent();
+        String base = baseName(file);
+        for (Map.Entry<String, Entry> me : this.entries.entrySet()) {
+            Path p = me.getValue().file;
+            if (p.equals(file) || p.startsWith(file)
+                    || (p.getParent().equals(dir) && baseName(p).equals(base))) {
+                this.remove(me.getKey(), me.getValue());
+                ret.add(me.getKey());
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Processes watch events until the thread is stopped.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = this.watcher.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            Path dir = this.watchKeys.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                    this.clear();
+                    continue;
+                }
+
+                Path changed = dir.resolve((Path) event.context());
+                List<String> dropped = this.invalidate(changed);
+                this.warm(dropped);
+
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed)) {
+                    try {
+                        this.registerAll(changed);
+                    } catch (IOException e) {
+                        log.error(e.getMessage());
+                    }
+                }
+            }
+
+            if (!key.reset()) {
+                this.watchKeys.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Loads the dropped entries again through the warmer, so a changed
+     * page that was being served from the cache is back in it before
+     * the next request. Paths whose file is gone just aren't cached.
+     * @param paths is the List of request paths to load.
+     */
+    private void warm(List<String> paths) {
+        Consumer<String> w = this.warmer;
+        if (w == null) return;
+        for (String path : paths) {
+            try {
+                w.accept(path);
+            } catch (RuntimeException e) {
+                log.error("Failed to warm '" + path + "': " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Evicts least recently used entries until the cache is back
+     * under EVICT_TO of maxBytes.
+     */
+    private synchronized void evict() {
+        if (this.size.get() <= this.maxBytes) return;
+
+        List<Map.Entry<String, Entry>> all = new ArrayList<Map.Entry<String, Entry>>(this.entries.entrySet());
+        all.sort(Comparator.comparingLong(me -> me.getValue().lastAccess));
+
+        long target = (long) (this.maxBytes * EVICT_TO);
+        for (Map.Entry<String, Entry> me : all) {
+            if (this.size.get() <= target) break;
+            this.remove(me.getKey(), me.getValue());
+        }
+    }
+
+    /**
+     * Removes the entry if it's still the one mapped to the key.
+     * @param key is the request path.
+     * @param e is the Entry to remove.
+     */
+    private void remove(String key, Entry e) {
+        if (this.entries.remove(key, e)) {
+            this.size.addAndGet(-e.bytes.length);
+        }
+    }
+
+    /**
+     * Registers the directory and all of its sub directories with the
+     * watch service.
+     * @param start is the directory to start from.
+     * @throws IOException
+     */
+    private void registerAll(Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                WatchKey key = dir.register(watcher,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+                watchKeys.put(key, dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Gets the file name without its extension.
+     * @param p is the Path.
+     * @return A String with the base name.
+     */
+    private static String baseName(Path p) {
+        String name = p.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    /**
+     * A cached response.
+     */
+    private static class Entry {
+        private final Path file;
+        private final byte[] bytes;
+        private volatile long lastAccess = System.nanoTime();
+
+        Entry(Path file, byte[] bytes) {
+            this.file = file;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -17,11 +17,53 @@
 
 package com.lehman.gemini.lc19;
 
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
 public enum GeminiMediaType {
-    TEXT_GEMINI("text/gemini");
+    TEXT_GEMINI("text/gemini"),
+    TEXT_PLAIN("text/plain"),
+    APPLICATION_OCTET_STREAM("application/octet-stream");
 
     private String value;
 
+    // File extension to media type.
+    private final static Map<String, String> extensions = new HashMap<String, String>();
+    static {
+        extensions.put("gmi", "text/gemini");
+        extensions.put("gmni", "text/gemini");
+        extensions.put("gemini", "text/gemini");
+        extensions.put("txt", "text/plain");
+        extensions.put("md", "text/markdown");
+        extensions.put("csv", "text/csv");
+        extensions.put("html", "text/html");
+        extensions.put("htm", "text/html");
+        extensions.put("css", "text/css");
+        extensions.put("xml", "text/xml");
+        extensions.put("json", "application/json");
+        extensions.put("atom", "application/atom+xml");
+        extensions.put("rss", "application/rss+xml");
+        extensions.put("pdf", "application/pdf");
+        extensions.put("zip", "application/zip");
+        extensions.put("gz", "application/gzip");
+        extensions.put("tgz", "application/gzip");
+        extensions.put("tar", "application/x-tar");
+        extensions.put("png", "image/png");
+        extensions.put("jpg", "image/jpeg");
+        extensions.put("jpeg", "image/jpeg");
+        extensions.put("gif", "image/gif");
+        extensions.put("webp", "image/webp");
+        extensions.put("svg", "image/svg+xml");
+        extensions.put("ico", "image/x-icon");
+        extensions.put("mp3", "audio/mpeg");
+        extensions.put("ogg", "audio/ogg");
+        extensions.put("flac", "audio/flac");
+        extensions.put("wav", "audio/wav");
+        extensions.put("mp4", "video/mp4");
+        extensions.put("webm", "video/webm");
+    }
+
     private GeminiMediaType(String value) {
         this.value = value;
     }
@@ -29,4 +71,19 @@ public enum GeminiMediaType {
     public String getValue() {
         return value;
     }
+
+    /**
+     * Gets the media type for the provided file name from its extension.
+     * @param fileName is a String with the file name.
+     * @return A String with the media type, application/octet-stream if
+     * the extension isn't known.
+     */
+    public static String forFileName(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        if (dot >= 0) {
+            String type = extensions.get(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+            if (type != null) return type;
+        }
+        return APPLICATION_OCTET_STREAM.getValue();
+    }
 }
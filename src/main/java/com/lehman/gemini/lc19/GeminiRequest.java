@@ -17,10 +17,20 @@
 
 package com.lehman.gemini.lc19;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import javax.net.ssl.SSLSession;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
 
 public class GeminiRequest {
+    /**
+     * Max length of a request line not counting the CRLF.
+     */
+    public final static int MAX_LINE = 1024;
+
     protected String rawRequest = "";
     protected String scheme = "";
     protected String host = "";
@@ -28,6 +38,21 @@ public class GeminiRequest {
     protected String path = "";
     protected String query = "";
 
+    // False if the request line was too long or malformed.
+    protected boolean valid = false;
+
+    // Percent decoded query, set on first use.
+    private String decodedQuery = null;
+
+    // Route the request matched, set before it's passed to a capsule.
+    private CapsuleRouter.Match route = null;
+
+    // TLS session the request came in on, set by the transport.
+    private SSLSession session = null;
+
+    // Client certificate identity, set once resolved by RequestHandler.
+    private ClientIdentity identity = null;
+
     public GeminiRequest() { }
 
     public GeminiRequest(String ReqStr) {
@@ -35,22 +60,257 @@ public class GeminiRequest {
         this.parseRequest(this.rawRequest);
     }
 
+    /**
+     * Parses a request line straight from the bytes read off the
+     * socket. The line may still end with CR, it's trimmed here.
+     * @param buf is the byte array holding the line.
+     * @param off is the offset of the line in buf.
+     * @param len is the length of the line without the LF.
+     * @return A GeminiRequest object, check isValid() before using it.
+     */
+    public static GeminiRequest parse(byte[] buf, int off, int len) {
+        GeminiRequest req = new GeminiRequest();
+        int end = off + len;
+        while (end > off && buf[end - 1] >= 0 && buf[end - 1] <= ' ') end--;
+        while (off < end && buf[off] >= 0 && buf[off] <= ' ') off++;
+        req.rawRequest = new String(buf, off, end - off, StandardCharsets.UTF_8);
+        req.valid = req.parseBytes(buf, off, end);
+        return req;
+    }
+
     public void parseRequest(String RawRequest) {
-        Pattern p = Pattern.compile("([A-z0-9\\+\\-\\.].+)://([a-z0-9\\-\\.]+)(:[0-9]+)?(/.*)?(\\?[A-z0-9_%]+)?");
-        Matcher m = p.matcher(RawRequest);
-        if (m.matches()) {
-            this.scheme = m.group(1);
-            this.host = m.group(2);
-            if (m.group(3) != null) {
-                this.port = m.group(3).substring(1);
+        byte[] buf = RawRequest.trim().getBytes(StandardCharsets.UTF_8);
+        this.valid = this.parseBytes(buf, 0, buf.length);
+    }
+
+    /**
+     * Single pass parser for scheme://host[:port][/path][?query][#fragment].
+     * Each field is decoded directly from its range of the line and the
+     * fragment is ignored.
+     * @param b is the byte array holding the line.
+     * @param off is the offset of the first byte.
+     * @param end is the offset after the last byte.
+     * @return A boolean with true if the line is a valid request.
+     */
+    private boolean parseBytes(byte[] b, int off, int end) {
+        if (end - off > MAX_LINE || end == off) return false;
+
+        // Scheme
+        int i = off;
+        if (!isAlpha(b[i])) return false;
+        while (i < end && (isAlpha(b[i]) || isDigit(b[i]) || b[i] == '+' || b[i] == '-' || b[i] == '.')) i++;
+        if (i + 3 > end || b[i] != ':' || b[i + 1] != '/' || b[i + 2] != '/') return false;
+        this.scheme = isGemini(b, off, i) ? "gemini" : new String(b, off, i - off, StandardCharsets.US_ASCII);
+        i += 3;
+
+        // Host, user info isn't allowed so anything but a port, path,
+        // query or fragment after it is an error.
+        int start = i;
+        boolean upper = false;
+        while (i < end && (isAlpha(b[i]) || isDigit(b[i]) || b[i] == '-' || b[i] == '.')) {
+            if (b[i] <= 'Z' && b[i] >= 'A') upper = true;
+            i++;
+        }
+        if (i == start) return false;
+        if (i < end && b[i] != ':' && b[i] != '/' && b[i] != '?' && b[i] != '#') return false;
+        this.host = new String(b, start, i - start, StandardCharsets.US_ASCII);
+        if (upper) this.host = this.host.toLowerCase(Locale.ROOT);
+
+        // Port
+        if (i < end && b[i] == ':') {
+            start = ++i;
+            while (i < end && isDigit(b[i])) i++;
+            if (i == start || i - start > 5) return false;
+            this.port = new String(b, start, i - start, StandardCharsets.US_ASCII);
+        }
+
+        // Path
+        if (i < end && b[i] == '/') {
+            start = i;
+            while (i < end && b[i] != '?' && b[i] != '#') {
+                if (isControl(b[i])) return false;
+                i++;
             }
-            if (m.group(4) != null) {
-                this.path = m.group(4).trim();
+            this.path = new String(b, start, i - start, StandardCharsets.UTF_8);
+        }
+
+        // Query
+        if (i < end && b[i] == '?') {
+            start = ++i;
+            while (i < end && b[i] != '#') {
+                if (isControl(b[i])) return false;
+                i++;
             }
-            if (m.group(5) != null) {
-                this.query = m.group(5).substring(1).trim();
+            this.query = new String(b, start, i - start, StandardCharsets.UTF_8);
+        }
+
+        return i == end || b[i] == '#';
+    }
+
+    private static boolean isAlpha(byte c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isDigit(byte c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isControl(byte c) {
+        return (c >= 0 && c < ' ') || c == 0x7f;
+    }
+
+    private static boolean isGemini(byte[] b, int start, int end) {
+        return end - start == 6 && b[start] == 'g' && b[start + 1] == 'e' && b[start + 2] == 'm'
+                && b[start + 3] == 'i' && b[start + 4] == 'n' && b[start + 5] == 'i';
+    }
+
+    /**
+     * Decodes %XX escapes in the provided String. The decoded bytes are
+     * read as UTF-8 and a '%' not followed by two hex digits is kept as is.
+     * @param str is the String to decode.
+     * @return A String with the decoded value.
+     */
+    public static String percentDecode(String str) {
+        if (str.indexOf('%') < 0) return str;
+
+        byte[] src = str.getBytes(StandardCharsets.UTF_8);
+        byte[] dst = new byte[src.length];
+        int n = 0;
+        for (int i = 0; i < src.length; i++) {
+            if (src[i] == '%' && i + 2 < src.length && hexValue(src[i + 1]) >= 0 && hexValue(src[i + 2]) >= 0) {
+                dst[n++] = (byte) ((hexValue(src[i + 1]) << 4) | hexValue(src[i + 2]));
+                i += 2;
+            } else {
+                dst[n++] = src[i];
             }
         }
+        return new String(dst, 0, n, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Collapses repeated slashes, drops '.' segments and strips trailing
+     * slashes, so every spelling of a path matches the same routes,
+     * prefixes and files. An empty path is left as is.
+     * @param path is the request path.
+     * @return A String with the canonical path, the same String if it
+     * already was.
+     */
+    public static String canonicalPath(String path) {
+        int len = path.length();
+        if (len == 0 || path.equals("/")) return path;
+
+        boolean canonical = path.charAt(len - 1) != '/';
+        for (int i = 0; canonical && i < len; i++) {
+            if (path.charAt(i) != '/') continue;
+            int next = i + 1 < len ? path.charAt(i + 1) : -1;
+            if (next == '/' || (next == '.' && (i + 2 == len || path.charAt(i + 2) == '/'))) {
+                canonical = false;
+            }
+        }
+        if (canonical) return path;
+
+        StringBuilder sb = new StringBuilder(len);
+        int i = 0;
+        while (i < len) {
+            while (i < len && path.charAt(i) == '/') i++;
+            int start = i;
+            while (i < len && path.charAt(i) != '/') i++;
+            if (i > start && !(i - start == 1 && path.charAt(start) == '.')) {
+                sb.append('/').append(path, start, i);
+            }
+        }
+        return sb.length() == 0 ? "/" : sb.toString();
+    }
+
+    private static int hexValue(byte c) {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+        return -1;
+    }
+
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * Gets the query with %XX escapes decoded.
+     * @return A String with the decoded query.
+     */
+    public String getDecodedQuery() {
+        if (this.decodedQuery == null) {
+            this.decodedQuery = percentDecode(this.query);
+        }
+        return this.decodedQuery;
+    }
+
+    /**
+     * Gets a path parameter captured by the capsule route, for example
+     * 'id' for a capsule on '/users/{id}'. The part of the path below a
+     * mount such as '/docs/*' is available as '*'.
+     * @param name is the parameter name.
+     * @return A percent decoded String or null if there's no such
+     * parameter.
+     */
+    public String getPathParam(String name) {
+        if (this.route == null) return null;
+        String val = this.route.getParam(name);
+        return val == null ? null : percentDecode(val);
+    }
+
+    /**
+     * Gets all of the path parameters captured by the capsule route.
+     * @return A Map of parameter name to percent decoded value.
+     */
+    public Map<String, String> getPathParams() {
+        if (this.route == null) return Collections.emptyMap();
+        Map<String, String> ret = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, String> e : this.route.getParams().entrySet()) {
+            ret.put(e.getKey(), percentDecode(e.getValue()));
+        }
+        return ret;
+    }
+
+    void setRoute(CapsuleRouter.Match route) {
+        this.route = route;
+    }
+
+    /**
+     * Gets the identity of the client certificate sent with the request.
+     * Only set when clientCerts is turned on in the server config.
+     * @return A ClientIdentity object or null if no certificate was sent.
+     */
+    public ClientIdentity getIdentity() {
+        return identity;
+    }
+
+    /**
+     * Gets the client certificate sent with the request.
+     * @return A X509Certificate or null if none was sent.
+     */
+    public X509Certificate getClientCertificate() {
+        return this.identity == null ? null : this.identity.getCertificate();
+    }
+
+    /**
+     * Gets the SHA-256 fingerprint of the client certificate sent with
+     * the request.
+     * @return A lower case hex String or null if none was sent.
+     */
+    public String getClientCertFingerprint() {
+        return this.identity == null ? null : this.identity.getFingerprint();
+    }
+
+    void setIdentity(ClientIdentity identity) {
+        this.identity = identity;
+    }
+
+    SSLSession getSession() {
+        return session;
+    }
+
+    void setSession(SSLSession session) {
+        this.session = session;
     }
 
     public String getRawRequest() {
@@ -99,6 +359,7 @@ public class GeminiRequest {
 
     public void setQuery(String query) {
         this.query = query;
+        this.decodedQuery = null;
     }
 
     @Override
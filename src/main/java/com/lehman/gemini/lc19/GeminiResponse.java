@@ -1,9 +1,28 @@
 package com.lehman.gemini.lc19;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
 
 public class GeminiResponse {
+    private final static Logger log = LoggerFactory.getLogger(Main.class);
+
     /**
      * The response status code.
      */
@@ -24,33 +43,305 @@ public class GeminiResponse {
      */
     private Charset charset = StandardCharsets.UTF_8;
 
+    /**
+     * The meta value sent after a non success status, such as the
+     * number of seconds to wait for 44 SLOW DOWN or the URL for a
+     * redirect.
+     */
+    private String meta = "";
+
     /**
      * The response data to send.
      */
     private String data = "";
 
+    /**
+     * A binary body, sent as is instead of data.
+     */
+    private ByteBuffer body = null;
+
+    /**
+     * A file body, streamed from disk instead of data.
+     */
+    private Path file = null;
+
+    /**
+     * A stream body, copied in chunks instead of data.
+     */
+    private InputStream stream = null;
+
+    /**
+     * A body written by the capsule while the response is being sent.
+     */
+    private GeminiResponseWriter.Body writer = null;
+
+    /**
+     * Class name of the capsule that returned the response, used when
+     * logging a body that fails while it's being sent.
+     */
+    private String capsuleName = null;
+
+    /**
+     * The fully encoded response when it was served from a cache.
+     */
+    private byte[] encoded = null;
+
+    /**
+     * The fully encoded response when it was served from a ContentPack,
+     * a region of the mapped file.
+     */
+    private ByteBuffer encodedRegion = null;
+
+    // Chunk size used to copy stream bodies.
+    private final static int STREAM_CHUNK = 64 * 1024;
+
+    // Encoded header lines for each status sent without a meta value,
+    // such as "51 \r\n".
+    private final static byte[][] STATUS_HEADERS = new byte[GeminiStatusCodeDetail.values().length][];
+
+    // Encoded 20 headers by media type for the default lang and
+    // charset, such as "20 text/gemini; lang=en; charset=UTF-8\r\n".
+    private final static Map<String, byte[]> SUCCESS_HEADERS = new ConcurrentHashMap<String, byte[]>();
+
+    // Max number of media types kept in SUCCESS_HEADERS.
+    private final static int MAX_SUCCESS_HEADERS = 256;
+
+    static {
+        for (GeminiStatusCodeDetail s : GeminiStatusCodeDetail.values()) {
+            STATUS_HEADERS[s.ordinal()] = (s.getValue() + " \r\n").getBytes(StandardCharsets.US_ASCII);
+        }
+        for (GeminiMediaType t : GeminiMediaType.values()) {
+            GeminiResponse resp = new GeminiResponse();
+            resp.setMediaType(t.getValue());
+            SUCCESS_HEADERS.put(t.getValue(), resp.buildHeader().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
     /**
      * Builds the Gemini response with the fields that have been set.
+     * Only the String data is included, use writeTo() for binary, file
+     * and stream bodies.
      * @return A String with the response.
      */
     public String build() {
+        if (this.status == GeminiStatusCodeDetail.SUCCESS) {
+            return this.buildHeader() + this.data;
+        }
+        return this.buildHeader();
+    }
+
+    /**
+     * Builds the response header line. The lang and charset parameters
+     * are only added to text media types.
+     * @return A String with the header including the trailing CRLF.
+     */
+    public String buildHeader() {
         StringBuilder sb = new StringBuilder();
-        sb.append(this.status.getValue() + " ");
+        sb.append(this.status.getValue()).append(' ');
         if (this.status == GeminiStatusCodeDetail.SUCCESS) {
-            if (!this.mediaType.equals(""))
-                sb.append(this.mediaType + "; ");
-            if (!this.language.equals("")) {
-                sb.append("lang=" + this.language + "; ");
+            if (this.mediaType.equals("") || this.mediaType.startsWith("text/")) {
+                if (!this.mediaType.equals(""))
+                    sb.append(this.mediaType).append("; ");
+                if (!this.language.equals("")) {
+                    sb.append("lang=").append(this.language).append("; ");
+                }
+                sb.append("charset=").append(this.charset.name());
+            } else {
+                sb.append(this.mediaType);
             }
-            sb.append("charset=" + this.charset.name());
+        } else {
+            sb.append(this.meta);
         }
         sb.append("\r\n");
-        if (this.status == GeminiStatusCodeDetail.SUCCESS) {
-            sb.append(this.data);
-        }
         return sb.toString();
     }
 
+    /**
+     * Gets the encoded header line. The common ones are encoded once and
+     * shared, so the returned array must not be changed.
+     * @return A byte array with the UTF-8 header including the CRLF.
+     */
+    byte[] getHeaderBytes() {
+        if (this.status != GeminiStatusCodeDetail.SUCCESS) {
+            if (this.meta.equals("")) {
+                return STATUS_HEADERS[this.status.ordinal()];
+            }
+        } else if (this.language.equals("en") && this.charset == StandardCharsets.UTF_8) {
+            byte[] header = SUCCESS_HEADERS.get(this.mediaType);
+            if (header == null) {
+                header = this.buildHeader().getBytes(StandardCharsets.UTF_8);
+                if (SUCCESS_HEADERS.size() < MAX_SUCCESS_HEADERS) {
+                    SUCCESS_HEADERS.put(this.mediaType, header);
+                }
+            }
+            return header;
+        }
+        return this.buildHeader().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the header and body to the provided output. The header is
+     * written together with the body, or with its first chunk, so a
+     * small response goes out in a single write. Writer bodies are the
+     * exception, their header is sent before the body is produced. File
+     * bodies are handed over as a file region, stream bodies are copied
+     * in chunks and writer bodies are produced as the response is sent,
+     * so none of them are loaded into memory all at once.
+     * @param out is the ResponseOutput to write to.
+     * @throws IOException if writing fails or a writer body throws, in
+     * which case the response is incomplete and the connection must be
+     * aborted rather than closed normally.
+     */
+    public void writeTo(ResponseOutput out) throws IOException {
+        if (this.encoded != null) {
+            out.write(ByteBuffer.wrap(this.encoded));
+            return;
+        }
+        if (this.encodedRegion != null) {
+            out.write(this.encodedRegion.duplicate());
+            return;
+        }
+
+        ByteBuffer header = ByteBuffer.wrap(this.getHeaderBytes());
+        if (this.status != GeminiStatusCodeDetail.SUCCESS) {
+            out.write(header);
+            return;
+        }
+
+        if (this.file != null) {
+            // Opened before the header is sent, so a file that's gone
+            // since it was found gets an error status rather than a 20
+            // without a body.
+            FileChannel ch;
+            try {
+                ch = FileChannel.open(this.file, StandardOpenOption.READ);
+            } catch (NoSuchFileException e) {
+                this.status = GeminiStatusCodeDetail.NOT_FOUND;
+                out.write(ByteBuffer.wrap(this.getHeaderBytes()));
+                return;
+            } catch (IOException e) {
+                log.error("Failed to open '" + this.file + "': " + e.getMessage());
+                this.status = GeminiStatusCodeDetail.TEMPORARY_FAILURE;
+                out.write(ByteBuffer.wrap(this.getHeaderBytes()));
+                return;
+            }
+            try (ch) {
+                out.write(header);
+                out.transferFrom(ch, 0, ch.size());
+            }
+        } else if (this.body != null) {
+            out.write(new ByteBuffer[] { header, this.body.duplicate() });
+        } else if (this.writer != null) {
+            // The header goes out before the body is produced so the
+            // client hears back right away even from a slow capsule.
+            out.write(header);
+            GeminiResponseWriter w = new GeminiResponseWriter(out, this.charset);
+            try {
+                this.writer.write(w);
+            } catch (RuntimeException e) {
+                String name = this.capsuleName == null ? "Response" : "Capsule '" + this.capsuleName + "'";
+                throw new IOException(name + " body failed: " + e, e);
+            }
+            w.close();
+        } else if (this.stream != null) {
+            try (InputStream is = this.stream) {
+                ByteBuffer first = header;
+                while (true) {
+                    byte[] buf = new byte[STREAM_CHUNK];
+                    int n = is.readNBytes(buf, 0, buf.length);
+                    if (n <= 0) break;
+                    if (first != null) {
+                        out.write(new ByteBuffer[] { first, ByteBuffer.wrap(buf, 0, n) });
+                        first = null;
+                    } else {
+                        out.write(ByteBuffer.wrap(buf, 0, n));
+                    }
+                }
+                if (first != null) {
+                    out.write(first);
+                }
+            }
+        } else {
+            out.write(new ByteBuffer[] { header, ByteBuffer.wrap(this.data.getBytes(this.charset)) });
+        }
+    }
+
+    /**
+     * Builds the Gemini response and encodes it for the wire. The header
+     * is UTF-8 and the body is encoded with the declared charset. This
+     * reads file and stream bodies fully into memory.
+     * @return A byte array with the response.
+     */
+    public byte[] getBytes() {
+        if (this.encoded != null) {
+            return this.encoded;
+        }
+        if (this.encodedRegion != null) {
+            byte[] ret = new byte[this.encodedRegion.remaining()];
+            this.encodedRegion.duplicate().get(ret);
+            return ret;
+        }
+        if (this.status != GeminiStatusCodeDetail.SUCCESS || this.isDataBody()) {
+            byte[] header = this.getHeaderBytes();
+            byte[] data = this.status == GeminiStatusCodeDetail.SUCCESS ? this.data.getBytes(this.charset) : new byte[0];
+            byte[] ret = Arrays.copyOf(header, header.length + data.length);
+            System.arraycopy(data, 0, ret, header.length, data.length);
+            return ret;
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            this.writeTo(new StreamResponseOutput(bos));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Sets the class name of the capsule that returned the response.
+     * @param capsuleName is a String with the class name.
+     */
+    void setCapsuleName(String capsuleName) {
+        this.capsuleName = capsuleName;
+    }
+
+    /**
+     * Sets the already encoded response, returned as is by getBytes().
+     * @param encoded is a byte array with the full response.
+     */
+    void setEncoded(byte[] encoded) {
+        this.encoded = encoded;
+    }
+
+    /**
+     * Sets the already encoded response as a buffer that's written as
+     * is, without copying it to the heap.
+     * @param encoded is a ByteBuffer with the full response.
+     */
+    void setEncoded(ByteBuffer encoded) {
+        this.encodedRegion = encoded;
+    }
+
+    /**
+     * Checks if the body is the String data rather than a binary, file,
+     * stream or writer body.
+     * @return A boolean with true if data is the body.
+     */
+    private boolean isDataBody() {
+        return this.body == null && this.file == null && this.stream == null && this.writer == null;
+    }
+
+    /**
+     * Clears any body that was set before.
+     */
+    private void clearBody() {
+        this.data = "";
+        this.body = null;
+        this.file = null;
+        this.stream = null;
+        this.writer = null;
+    }
+
     public GeminiStatusCodeDetail getStatus() {
         return status;
     }
@@ -83,11 +374,115 @@ public class GeminiResponse {
         this.charset = charset;
     }
 
+    public String getMeta() {
+        return meta;
+    }
+
+    public void setMeta(String meta) {
+        this.meta = meta;
+    }
+
     public String getData() {
         return data;
     }
 
     public void setData(String data) {
+        this.clearBody();
         this.data = data;
     }
+
+    public ByteBuffer getBody() {
+        return body;
+    }
+
+    /**
+     * Sets a binary body which is sent instead of data.
+     * @param body is a byte array with the body.
+     */
+    public void setBody(byte[] body) {
+        this.setBody(ByteBuffer.wrap(body));
+    }
+
+    /**
+     * Sets a binary body which is sent instead of data.
+     * @param body is a ByteBuffer with the body.
+     */
+    public void setBody(ByteBuffer body) {
+        this.clearBody();
+        this.body = body;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Sets a file to stream as the body and sets the media type from
+     * the file extension.
+     * @param file is the Path of the file to send.
+     */
+    public void setFile(Path file) {
+        this.clearBody();
+        this.file = file;
+        this.mediaType = GeminiMediaType.forFileName(file.getFileName().toString());
+    }
+
+    public InputStream getStream() {
+        return stream;
+    }
+
+    /**
+     * Sets a stream to copy as the body. The stream is closed once
+     * it has been sent.
+     * @param stream is the InputStream to send.
+     */
+    public void setStream(InputStream stream) {
+        this.clearBody();
+        this.stream = stream;
+    }
+
+    public GeminiResponseWriter.Body getBodyWriter() {
+        return writer;
+    }
+
+    /**
+     * Sets a body that is written while the response is being sent.
+     * The header goes out first and the body is flushed to the client
+     * in chunks as it's written, so it never has to be held in memory.
+     * @param writer is the GeminiResponseWriter.Body that writes the body.
+     */
+    public void setBodyWriter(GeminiResponseWriter.Body writer) {
+        this.clearBody();
+        this.writer = writer;
+    }
+
+    /**
+     * Sets the body to the provided lines, each one followed by a line
+     * feed. The iterator is only advanced as the response is sent.
+     * @param lines is an Iterator of lines.
+     */
+    public void setLines(Iterator<String> lines) {
+        this.setBodyWriter(w -> {
+            while (lines.hasNext()) {
+                w.writeLine(lines.next());
+            }
+        });
+    }
+
+    /**
+     * Sets the body to the provided lines, each one followed by a line
+     * feed. The stream is consumed as the response is sent and closed
+     * afterwards.
+     * @param lines is a Stream of lines.
+     */
+    public void setLines(Stream<String> lines) {
+        this.setBodyWriter(w -> {
+            try (Stream<String> s = lines) {
+                Iterator<String> it = s.iterator();
+                while (it.hasNext()) {
+                    w.writeLine(it.next());
+                }
+            }
+        });
+    }
 }
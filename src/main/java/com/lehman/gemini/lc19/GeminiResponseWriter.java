@@ -0,0 +1,282 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * GeminiResponseWriter is handed to a capsule's Body once the response
+ * header has been sent. Text and bytes are collected into a CHUNK sized
+ * buffer which is passed to the ResponseOutput whenever it fills up, so
+ * the client starts receiving the body while the capsule is still
+ * producing it and at most one chunk is held here at a time.
+ *
+ * Text is encoded by a single CharsetEncoder kept for the life of the
+ * writer, so a surrogate pair split across two writes, such as by a
+ * BufferedWriter flushing in the middle of it, is still encoded as one
+ * character.
+ */
+public class GeminiResponseWriter extends Writer {
+    // Size of each chunk handed to the output.
+    private final static int CHUNK = 8192;
+
+    // Number of chars copied out of a String per encode.
+    private final static int CHARS = 1024;
+
+    private final ResponseOutput out;
+    private final CharsetEncoder encoder;
+
+    private byte[] buf = new byte[CHUNK];
+    private int count = 0;
+
+    private final char[] chars = new char[CHARS];
+
+    // High surrogate at the end of the last write, waiting for its pair.
+    private char leftover;
+    private boolean haveLeftover = false;
+
+    /**
+     * Body produces a response body by writing it to the provided
+     * GeminiResponseWriter.
+     */
+    @FunctionalInterface
+    public interface Body {
+        void write(GeminiResponseWriter writer) throws IOException;
+    }
+
+    /**
+     * Default constructor.
+     * @param Out is the ResponseOutput to send chunks to.
+     * @param CharSet is the Charset to encode text with.
+     */
+    public GeminiResponseWriter(ResponseOutput Out, Charset CharSet) {
+        this.out = Out;
+        this.encoder = CharSet.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Writes the String followed by a line feed.
+     * @param line is the String to write.
+     * @throws IOException
+     */
+    public void writeLine(String line) throws IOException {
+        this.write(line);
+        this.write('\n');
+    }
+
+    @Override
+    public void write(String str) throws IOException {
+        this.write(str, 0, str.length());
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, this.chars.length);
+            str.getChars(off, off + n, this.chars, 0);
+            this.encode(CharBuffer.wrap(this.chars, 0, n));
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        this.encode(CharBuffer.wrap(cbuf, off, len));
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        this.chars[0] = (char) c;
+        this.encode(CharBuffer.wrap(this.chars, 0, 1));
+    }
+
+    /**
+     * Writes raw bytes.
+     * @param b is the byte array to write.
+     * @throws IOException
+     */
+    public void write(byte[] b) throws IOException {
+        this.write(b, 0, b.length);
+    }
+
+    /**
+     * Writes raw bytes.
+     * @param b is the byte array to write from.
+     * @param off is the offset to start at.
+     * @param len is the number of bytes to write.
+     * @throws IOException
+     */
+    public void write(byte[] b, int off, int len) throws IOException {
+        this.endText();
+        while (len > 0) {
+            int n = Math.min(len, this.buf.length - this.count);
+            System.arraycopy(b, off, this.buf, this.count, n);
+            this.count += n;
+            off += n;
+            len -= n;
+            if (this.count == this.buf.length) {
+                this.flush();
+            }
+        }
+    }
+
+    /**
+     * Gets an OutputStream that writes raw bytes through this writer,
+     * for binary bodies.
+     * @return An OutputStream object.
+     */
+    public OutputStream getOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                writeByte(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                GeminiResponseWriter.this.write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                GeminiResponseWriter.this.flush();
+            }
+        };
+    }
+
+    /**
+     * Sends whatever is buffered. The buffer is handed over to the
+     * output as is since it may hold on to it, a new one is used for
+     * the next chunk.
+     * @throws IOException
+     */
+    @Override
+    public void flush() throws IOException {
+        if (this.count == 0) return;
+        this.out.write(ByteBuffer.wrap(this.buf, 0, this.count));
+        this.buf = new byte[CHUNK];
+        this.count = 0;
+    }
+
+    /**
+     * Ends the text, writing a high surrogate still waiting for its pair
+     * as a replacement, and sends whatever is buffered. The response
+     * itself is finished by the transport once the Body returns.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        this.finishText();
+        this.flush();
+    }
+
+    /**
+     * Encodes the chars into the buffer, sending it whenever it fills
+     * up. A high surrogate at the end of the input is held back until
+     * the next write so the pair is encoded together.
+     * @param in is the CharBuffer to encode.
+     * @throws IOException
+     */
+    private void encode(CharBuffer in) throws IOException {
+        while (this.haveLeftover && in.hasRemaining()) {
+            CharBuffer pair = CharBuffer.wrap(new char[] { this.leftover, in.get() });
+            this.haveLeftover = false;
+            this.encode(pair, false);
+            if (pair.hasRemaining()) {
+                this.leftover = pair.get();
+                this.haveLeftover = true;
+            }
+        }
+        this.encode(in, false);
+        if (in.hasRemaining()) {
+            this.leftover = in.get();
+            this.haveLeftover = true;
+        }
+    }
+
+    /**
+     * Runs the encoder until it needs more input.
+     * @param in is the CharBuffer to encode.
+     * @param endOfInput is true if no more text follows.
+     * @throws IOException
+     */
+    private void encode(CharBuffer in, boolean endOfInput) throws IOException {
+        while (true) {
+            ByteBuffer dst = ByteBuffer.wrap(this.buf, this.count, this.buf.length - this.count);
+            CoderResult r = this.encoder.encode(in, dst, endOfInput);
+            this.count = dst.position();
+            if (r.isOverflow()) {
+                this.flush();
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Ends the current run of text before raw bytes are written. A high
+     * surrogate still waiting for its pair is written as a replacement.
+     * @throws IOException
+     */
+    private void endText() throws IOException {
+        if (this.haveLeftover) {
+            this.finishText();
+        }
+    }
+
+    /**
+     * Ends the text, flushes the encoder and resets it for any text
+     * written afterwards.
+     * @throws IOException
+     */
+    private void finishText() throws IOException {
+        CharBuffer in = this.haveLeftover ? CharBuffer.wrap(new char[] { this.leftover }) : CharBuffer.allocate(0);
+        this.haveLeftover = false;
+        this.encode(in, true);
+        while (true) {
+            ByteBuffer dst = ByteBuffer.wrap(this.buf, this.count, this.buf.length - this.count);
+            CoderResult r = this.encoder.flush(dst);
+            this.count = dst.position();
+            if (r.isOverflow()) {
+                this.flush();
+            } else {
+                break;
+            }
+        }
+        this.encoder.reset();
+    }
+
+    private void writeByte(int b) throws IOException {
+        this.endText();
+        this.buf[this.count++] = (byte) b;
+        if (this.count == this.buf.length) {
+            this.flush();
+        }
+    }
+}
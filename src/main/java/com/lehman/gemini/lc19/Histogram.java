@@ -0,0 +1,133 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram is a lock free log-linear histogram in the style of
+ * HdrHistogram. Values below SUB_COUNT get a bucket each and every power
+ * of two above that is split into HALF buckets, so any recorded value is
+ * off by at most 1/HALF (about 1.6%) while the whole range up to MAX
+ * fits in under 2000 buckets. Recording is a couple of atomic adds and
+ * never allocates.
+ */
+public class Histogram {
+    private final static int SUB_BITS = 7;
+    private final static int SUB_COUNT = 1 << SUB_BITS;
+    private final static int HALF = SUB_COUNT / 2;
+
+    /**
+     * Largest value that can be recorded, larger values are clamped.
+     */
+    public final static long MAX = (1L << 32) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(index(MAX) + 1);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong(0);
+
+    /**
+     * Records a value.
+     * @param value is the value to record, negative values count as 0.
+     */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        if (value > MAX) value = MAX;
+        this.counts.incrementAndGet(index(value));
+        this.count.increment();
+        this.sum.add(value);
+        if (value > this.max.get()) {
+            this.max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    /**
+     * Gets the number of recorded values.
+     * @return A long with the count.
+     */
+    public long getCount() {
+        return this.count.sum();
+    }
+
+    /**
+     * Gets the sum of the recorded values.
+     * @return A long with the sum.
+     */
+    public long getSum() {
+        return this.sum.sum();
+    }
+
+    /**
+     * Gets the largest recorded value.
+     * @return A long with the max.
+     */
+    public long getMax() {
+        return this.max.get();
+    }
+
+    /**
+     * Gets the value at the provided quantile. Concurrent records may
+     * or may not be included.
+     * @param quantile is the quantile between 0 and 1.
+     * @return A long with the highest value of the bucket the quantile
+     * falls in, or 0 if nothing was recorded.
+     */
+    public long getValueAtQuantile(double quantile) {
+        long total = 0;
+        for (int i = 0; i < this.counts.length(); i++) {
+            total += this.counts.get(i);
+        }
+        if (total == 0) return 0;
+
+        long target = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < this.counts.length(); i++) {
+            seen += this.counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValue(i), this.getMax());
+            }
+        }
+        return this.getMax();
+    }
+
+    /**
+     * Gets the bucket for a value.
+     * @param value is a value from 0 to MAX.
+     * @return An int with the bucket index.
+     */
+    private static int index(long value) {
+        if (value < SUB_COUNT) return (int) value;
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return shift * HALF + (int) (value >>> shift);
+    }
+
+    /**
+     * Gets the highest value that falls in a bucket.
+     * @param index is the bucket index.
+     * @return A long with the value.
+     */
+    private static long highestValue(int index) {
+        if (index < SUB_COUNT) return index;
+        int shift = index / HALF - 1;
+        long low = (long) (index - shift * HALF) << shift;
+        return low + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+import java.security.cert.X509Certificate;
+
+/**
+ * IdentityStore maps client certificates to the names of known users.
+ * It's called once per certificate fingerprint and the result is cached
+ * for clientCert.cacheTtl, so it can be as slow as a database lookup.
+ */
+@FunctionalInterface
+public interface IdentityStore {
+    /**
+     * Looks up the user of a client certificate.
+     * @param fingerprint is the lower case hex SHA-256 of the certificate.
+     * @param cert is the X509Certificate.
+     * @return A String with the user's name or null if unknown.
+     */
+    String lookup(String fingerprint, X509Certificate cert);
+}
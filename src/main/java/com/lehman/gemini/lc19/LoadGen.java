@@ -0,0 +1,602 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * LoadGen is a Gemini load generator for sizing the server and comparing
+ * transports. Requests are started at a fixed rate whether or not the
+ * earlier ones have completed (an open loop), each on its own TLS
+ * connection, with at most a set number of connections open at once.
+ * A request that has to wait for a free connection is still timed from
+ * when it was due to start, so a server that stalls shows up in the
+ * latencies instead of just slowing the generator down (coordinated
+ * omission). For the same reason requests that haven't completed by the
+ * end of the run are counted as failed with the time they had waited so
+ * far rather than dropped.
+ *
+ * The URLs come from the command line, a weighted mix file with one
+ * 'weight url' per line, or an lc19 access log whose requests are
+ * replayed in order. Run with --help for the options.
+ */
+public class LoadGen {
+    // Quantiles reported for each histogram.
+    private final static double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    // Default Gemini port for URLs without one.
+    private final static int DEFAULT_PORT = 1965;
+
+    // Max size of a response header line.
+    private final static int MAX_HEADER = 1024 + 3 + 2;
+
+    private final List<Target> targets;
+    private final double[] cumulativeWeights;
+    private final boolean replay;
+
+    private final double rate;
+    private final long durationNanos;
+    private final long warmupNanos;
+    private final int connections;
+    private final int timeout;
+    private final InetSocketAddress connect;
+
+    private final SSLSocketFactory factory;
+    private ThreadPoolExecutor pool = null;
+
+    private final Histogram handshake = new Histogram();
+    private final Histogram response = new Histogram();
+    private final Histogram total = new Histogram();
+    private final Histogram failures = new Histogram();
+    private final Map<GeminiStatusCodeDetail, Histogram> statuses = new ConcurrentHashMap<GeminiStatusCodeDetail, Histogram>();
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<String, LongAdder>();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final Set<Request> outstanding = ConcurrentHashMap.newKeySet();
+    private long unfinished = 0;
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private volatile int maxInFlight = 0;
+    private volatile int maxBacklog = 0;
+    private long scheduled = 0;
+    private long measuredNanos = 0;
+    private volatile long lastDone = 0;
+
+    /**
+     * Default constructor.
+     * @param Targets is the List of Target objects to request.
+     * @param Weights is the weight of each target, or null to replay
+     * the targets in order.
+     * @param Rate is the number of requests to start per second.
+     * @param DurationSeconds is the number of seconds to measure for.
+     * @param WarmupSeconds is the number of seconds to run before measuring.
+     * @param Connections is the max number of connections open at once.
+     * @param Timeout is the connect and read timeout in milliseconds.
+     * @param Connect is the address to connect to, or null to use the
+     * host and port of each URL.
+     * @throws GeneralSecurityException if TLS can't be set up.
+     */
+    public LoadGen(List<Target> Targets, double[] Weights, double Rate, double DurationSeconds, double WarmupSeconds,
+                   int Connections, int Timeout, InetSocketAddress Connect) throws GeneralSecurityException {
+        if (Targets.isEmpty()) {
+            throw new IllegalArgumentException("No URLs to request.");
+        }
+        if (Rate <= 0 || Connections <= 0) {
+            throw new IllegalArgumentException("The rate and connections must be more than 0.");
+        }
+        this.targets = Targets;
+        this.replay = Weights == null;
+        this.cumulativeWeights = this.replay ? null : cumulative(Weights);
+        this.rate = Rate;
+        this.durationNanos = (long) (DurationSeconds * 1e9);
+        this.warmupNanos = (long) (WarmupSeconds * 1e9);
+        this.connections = Connections;
+        this.timeout = Timeout;
+        this.connect = Connect;
+
+        // Gemini servers use self signed certificates so anything is
+        // accepted, there's nothing to trust on first use here.
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(null, new TrustManager[] { new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) { }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) { }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        } }, null);
+        this.factory = ctx.getSocketFactory();
+    }
+
+    /**
+     * Main entry point of the load generator.
+     * @param args are the command line arguments, see usage().
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        double rate = 100;
+        double duration = 30;
+        double warmup = 5;
+        int connections = 64;
+        int timeout = 10000;
+        InetSocketAddress connect = null;
+        String mixFile = null;
+        String logFile = null;
+        List<String> urls = new ArrayList<String>();
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String a = args[i];
+                switch (a) {
+                    case "--rate": rate = Double.parseDouble(args[++i]); break;
+                    case "--duration": duration = Double.parseDouble(args[++i]); break;
+                    case "--warmup": warmup = Double.parseDouble(args[++i]); break;
+                    case "--connections": connections = Integer.parseInt(args[++i]); break;
+                    case "--timeout": timeout = Integer.parseInt(args[++i]); break;
+                    case "--connect": connect = parseAddress(args[++i]); break;
+                    case "--mix": mixFile = args[++i]; break;
+                    case "--log": logFile = args[++i]; break;
+                    case "-h":
+                    case "--help":
+                        usage(System.out);
+                        return;
+                    default:
+                        if (a.startsWith("-")) {
+                            throw new IllegalArgumentException("Unknown option '" + a + "'.");
+                        }
+                        urls.add(a);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            System.err.println("Missing value for the last option.");
+            usage(System.err);
+            System.exit(2);
+            return;
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            usage(System.err);
+            System.exit(2);
+            return;
+        }
+
+        List<Target> targets = new ArrayList<Target>();
+        List<Double> weights = new ArrayList<Double>();
+        try {
+            for (String url : urls) {
+                targets.add(new Target(url));
+                weights.add(1.0);
+            }
+            if (mixFile != null) {
+                readMix(mixFile, targets, weights);
+            }
+            if (logFile != null) {
+                if (!targets.isEmpty()) {
+                    throw new IllegalArgumentException("--log can't be combined with other URLs.");
+                }
+                readLog(logFile, targets);
+                weights = null;
+            }
+            if (targets.isEmpty()) {
+                throw new IllegalArgumentException("No URLs to request.");
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+
+        double[] w = null;
+        if (weights != null) {
+            w = new double[weights.size()];
+            for (int i = 0; i < w.length; i++) w[i] = weights.get(i);
+        }
+        LoadGen gen = new LoadGen(targets, w, rate, duration, warmup, connections, timeout, connect);
+        gen.run();
+        gen.report(System.out);
+    }
+
+    private static void usage(PrintStream out) {
+        out.println("Usage: lc19-loadgen [options] [url ...]");
+        out.println("  --rate N         Requests started per second. Default is 100.");
+        out.println("  --duration S     Seconds to measure for. Default is 30.");
+        out.println("  --warmup S       Seconds to run before measuring. Default is 5.");
+        out.println("  --connections N  Max connections open at once. Default is 64.");
+        out.println("  --timeout MS     Connect and read timeout. Default is 10000.");
+        out.println("  --connect H:P    Connect here instead of the host and port of each URL.");
+        out.println("  --mix FILE       Weighted URL mix, one 'weight url' per line.");
+        out.println("  --log FILE       lc19 access log to replay the requests of in order.");
+    }
+
+    /**
+     * Runs the warmup and then the measured period, and waits for the
+     * requests started in it to complete. Requests still queued or open
+     * after twice the timeout are counted as unfinished.
+     * @throws InterruptedException
+     */
+    public void run() throws InterruptedException {
+        AtomicInteger count = new AtomicInteger(0);
+        this.pool = new ThreadPoolExecutor(this.connections, this.connections, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), r -> {
+            Thread t = new Thread(r, "lc19-loadgen-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        double interval = 1e9 / this.rate;
+        SplittableRandom random = new SplittableRandom(19);
+        long start = System.nanoTime();
+        long measureStart = start + this.warmupNanos;
+        long end = measureStart + this.durationNanos;
+
+        for (long i = 0; ; i++) {
+            long due = start + (long) (i * interval);
+            if (due - end >= 0) break;
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+
+            boolean measured = due - measureStart >= 0;
+            Target t = this.replay ? this.targets.get((int) (i % this.targets.size())) : this.pick(random);
+            Request r = new Request(t, due);
+            if (measured) {
+                this.scheduled++;
+                this.outstanding.add(r);
+            }
+            this.pool.execute(() -> this.request(r));
+
+            int backlog = this.pool.getQueue().size();
+            if (measured && backlog > this.maxBacklog) this.maxBacklog = backlog;
+        }
+
+        // Throughput is over the time it took to complete the requests,
+        // which is longer than the duration if the server fell behind.
+        this.pool.shutdown();
+        if (!this.pool.awaitTermination(this.timeout * 2L + 1000, TimeUnit.MILLISECONDS)) {
+            this.pool.shutdownNow();
+        }
+        long now = System.nanoTime();
+        for (Request r : this.outstanding) {
+            if (this.outstanding.remove(r)) {
+                this.unfinished++;
+                this.failures.record((now - r.due) / 1000);
+            }
+        }
+        this.measuredNanos = Math.max(this.lastDone - measureStart, this.durationNanos);
+    }
+
+    /**
+     * Makes one request and records it if it was due in the measured
+     * period and hasn't been counted as unfinished already.
+     * @param r is the Request to make.
+     */
+    private void request(Request r) {
+        Target t = r.target;
+        long due = r.due;
+        boolean measured = this.outstanding.contains(r);
+        int n = this.inFlight.incrementAndGet();
+        if (measured && n > this.maxInFlight) this.maxInFlight = n;
+
+        long begin = System.nanoTime();
+        InetSocketAddress addr = this.connect != null ? this.connect : new InetSocketAddress(t.host, t.port);
+        try (SSLSocket s = (SSLSocket) this.factory.createSocket()) {
+            s.setTcpNoDelay(true);
+            s.connect(addr, this.timeout);
+            s.setSoTimeout(this.timeout);
+            SSLParameters params = s.getSSLParameters();
+            try {
+                params.setServerNames(Collections.singletonList(new SNIHostName(t.host)));
+                s.setSSLParameters(params);
+            } catch (IllegalArgumentException e) {
+                // An IP address, there's no name to send.
+            }
+            s.startHandshake();
+            long handshook = System.nanoTime();
+
+            OutputStream out = s.getOutputStream();
+            out.write(t.line);
+            out.flush();
+
+            InputStream in = s.getInputStream();
+            GeminiStatusCodeDetail status = readStatus(in);
+            long received = in.transferTo(OutputStream.nullOutputStream());
+            long done = System.nanoTime();
+
+            if (measured && this.outstanding.remove(r)) {
+                this.handshake.record((handshook - begin) / 1000);
+                this.response.record((done - handshook) / 1000);
+                this.total.record((done - due) / 1000);
+                this.statuses.computeIfAbsent(status, k -> new Histogram()).record((done - due) / 1000);
+                this.bytes.add(received);
+                this.completed.increment();
+                this.lastDone = done;
+            }
+        } catch (IOException e) {
+            if (measured && this.outstanding.remove(r)) {
+                this.failures.record((System.nanoTime() - due) / 1000);
+                this.error(e);
+            }
+        } finally {
+            this.inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * Reads the response header and gets its status.
+     * @param in is the InputStream to read from.
+     * @return The GeminiStatusCodeDetail of the response.
+     * @throws IOException if the header is missing or has an unknown status.
+     */
+    private static GeminiStatusCodeDetail readStatus(InputStream in) throws IOException {
+        byte[] buf = new byte[MAX_HEADER];
+        int len = 0;
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (len == buf.length) throw new IOException("Response header too long.");
+            buf[len++] = (byte) b;
+        }
+        if (len < 2) throw new IOException("Response header missing.");
+        int code;
+        try {
+            code = Integer.parseInt(new String(buf, 0, 2, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            throw new IOException("Response header has no status.");
+        }
+        for (GeminiStatusCodeDetail s : GeminiStatusCodeDetail.values()) {
+            if (s.getValue() == code) return s;
+        }
+        throw new IOException("Unknown status " + code + ".");
+    }
+
+    private void error(IOException e) {
+        String kind;
+        if (e instanceof SocketTimeoutException) {
+            kind = "timeout";
+        } else if (e instanceof ConnectException) {
+            kind = "connect";
+        } else if (e instanceof SSLException) {
+            kind = "tls";
+        } else {
+            kind = "io: " + e.getMessage();
+        }
+        this.errors.computeIfAbsent(kind, k -> new LongAdder()).increment();
+    }
+
+    /**
+     * Picks a target by weight.
+     * @param random is the SplittableRandom to use.
+     * @return A Target object.
+     */
+    private Target pick(SplittableRandom random) {
+        double r = random.nextDouble() * this.cumulativeWeights[this.cumulativeWeights.length - 1];
+        int i = Arrays.binarySearch(this.cumulativeWeights, r);
+        if (i < 0) i = -i - 1;
+        return this.targets.get(Math.min(i, this.targets.size() - 1));
+    }
+
+    /**
+     * Prints the results. Latencies are in milliseconds. Total is from
+     * when each request was due to start, so it includes any time spent
+     * waiting for a free connection. Failed and unfinished requests are
+     * timed the same way in the error row.
+     * @param out is the PrintStream to print to.
+     */
+    public void report(PrintStream out) {
+        double seconds = this.measuredNanos / 1e9;
+        long done = this.completed.sum();
+        long failed = this.unfinished;
+        for (LongAdder a : this.errors.values()) failed += a.sum();
+
+        out.printf("Requests:    %d scheduled, %d completed, %d failed (%d unfinished) in %.1fs%n",
+                this.scheduled, done, failed, this.unfinished, seconds);
+        out.printf("Throughput:  %.1f req/s (target %.1f req/s), %.1f KB/s%n",
+                done / seconds, this.rate, this.bytes.sum() / 1024.0 / seconds);
+        out.printf("Connections: %d max open of %d, %d max waiting for one%n", this.maxInFlight, this.connections, this.maxBacklog);
+        out.println();
+
+        out.printf("%-14s %9s %9s %9s %9s %9s %9s%n", "Latency (ms)", "count", "p50", "p90", "p99", "p99.9", "max");
+        row(out, "handshake", this.handshake);
+        row(out, "response", this.response);
+        row(out, "total", this.total);
+        for (Map.Entry<GeminiStatusCodeDetail, Histogram> e : new TreeMap<GeminiStatusCodeDetail, Histogram>(this.statuses).entrySet()) {
+            row(out, "  " + e.getKey().getValue() + " " + e.getKey().name(), e.getValue());
+        }
+        if (failed > 0) {
+            row(out, "error", this.failures);
+        }
+
+        if (failed > 0) {
+            out.println();
+            out.println("Errors:");
+            for (Map.Entry<String, LongAdder> e : new TreeMap<String, LongAdder>(this.errors).entrySet()) {
+                out.printf("  %-40s %d%n", e.getKey(), e.getValue().sum());
+            }
+            if (this.unfinished > 0) {
+                out.printf("  %-40s %d%n", "unfinished", this.unfinished);
+            }
+        }
+    }
+
+    private static void row(PrintStream out, String name, Histogram h) {
+        out.printf("%-14s %9d", name, h.getCount());
+        for (double q : QUANTILES) {
+            out.printf(" %9.2f", h.getValueAtQuantile(q) / 1000.0);
+        }
+        out.printf(" %9.2f%n", h.getMax() / 1000.0);
+    }
+
+    /**
+     * Reads a weighted URL mix. Each line is a URL optionally preceded
+     * by a weight, blank lines and lines starting with # are skipped.
+     * @param file is the mix file name.
+     * @param targets is the List to add the targets to.
+     * @param weights is the List to add the weights to.
+     * @throws IOException
+     */
+    private static void readMix(String file, List<Target> targets, List<Double> weights) throws IOException {
+        try (BufferedReader br = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] parts = line.split("\\s+", 2);
+                if (parts.length == 2) {
+                    double w;
+                    try {
+                        w = Double.parseDouble(parts[0]);
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Bad weight in '" + line + "'.");
+                    }
+                    if (w <= 0) continue;
+                    targets.add(new Target(parts[1]));
+                    weights.add(w);
+                } else {
+                    targets.add(new Target(parts[0]));
+                    weights.add(1.0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the requests from an lc19 access log, in order. Lines
+     * without a request are skipped.
+     * @param file is the access log file name.
+     * @param targets is the List to add the targets to.
+     * @throws IOException
+     */
+    private static void readLog(String file, List<Target> targets) throws IOException {
+        try (BufferedReader br = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                // time peer status bytes ms request
+                String[] parts = line.split(" ", 6);
+                if (parts.length < 6 || parts[5].equals("-")) continue;
+                try {
+                    targets.add(new Target(parts[5]));
+                } catch (IllegalArgumentException e) {
+                    // Requests that weren't valid URLs when logged.
+                }
+            }
+        }
+    }
+
+    private static InetSocketAddress parseAddress(String str) {
+        int i = str.lastIndexOf(':');
+        if (i <= 0) {
+            throw new IllegalArgumentException("--connect needs host:port.");
+        }
+        String host = str.substring(0, i);
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        return new InetSocketAddress(host, Integer.parseInt(str.substring(i + 1)));
+    }
+
+    private static double[] cumulative(double[] weights) {
+        double[] ret = new double[weights.length];
+        double sum = 0;
+        for (int i = 0; i < weights.length; i++) {
+            sum += weights[i];
+            ret[i] = sum;
+        }
+        return ret;
+    }
+
+    /**
+     * A request due to start at a set time.
+     */
+    private static class Request {
+        private final Target target;
+        private final long due;
+
+        Request(Target target, long due) {
+            this.target = target;
+            this.due = due;
+        }
+    }
+
+    /**
+     * A URL to request with its host and port resolved once.
+     */
+    public static class Target {
+        private final String host;
+        private final int port;
+        private final byte[] line;
+
+        /**
+         * Default constructor.
+         * @param Url is the gemini:// URL.
+         */
+        public Target(String Url) {
+            URI uri;
+            try {
+                uri = new URI(Url);
+            } catch (URISyntaxException e) {
+                throw new IllegalArgumentException("Bad URL '" + Url + "'.");
+            }
+            if (uri.getHost() == null || !"gemini".equalsIgnoreCase(uri.getScheme())) {
+                throw new IllegalArgumentException("Not a gemini:// URL '" + Url + "'.");
+            }
+            String h = uri.getHost();
+            this.host = h.startsWith("[") && h.endsWith("]") ? h.substring(1, h.length() - 1) : h;
+            this.port = uri.getPort() > 0 ? uri.getPort() : DEFAULT_PORT;
+            this.line = (Url + "\r\n").getBytes(StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -17,6 +17,8 @@
 
 package com.lehman.gemini.lc19;
 
+import java.time.Duration;
+
 /**
  * Application Main class handles starting the server.
  */
@@ -36,6 +38,12 @@ public class Main {
         // Init the server.
         s.init();
 
+        // Stop accepting and let open connections finish on SIGTERM
+        // (systemctl stop/restart) or Ctrl-C.
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            s.shutdown(Duration.ofMillis(s.getShutdownTimeout()));
+        }, "lc19-shutdown"));
+
         // Run it.
         s.run();
     }
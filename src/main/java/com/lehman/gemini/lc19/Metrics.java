@@ -0,0 +1,269 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics is the server's metrics registry. Counters are LongAdders and
+ * latencies go into a Histogram in microseconds, so recording from the
+ * request path is cheap and never locks. The registry is rendered in the
+ * Prometheus text format for the metrics capsule and MetricsServer.
+ */
+public class Metrics {
+    // Quantiles reported for each histogram.
+    private final static double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private final long startNanos = System.nanoTime();
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder[] statuses = new LongAdder[GeminiStatusCodeDetail.values().length];
+    private final LongAdder[] timeouts = new LongAdder[TimeoutPhase.values().length];
+
+    private final Histogram handshake = new Histogram();
+    private final Histogram parse = new Histogram();
+    private final Histogram files = new Histogram();
+    private final Map<String, Histogram> capsules = new ConcurrentHashMap<String, Histogram>();
+
+    // Set by the server for the pool and admission stats.
+    private ExecutorService threadPool = null;
+    private AdmissionControl admission = null;
+    private ClientLimiter limiter = null;
+    private AccessLog accessLog = null;
+    private CapsuleCache capsuleCache = null;
+    private ClientIdentities identities = null;
+
+    /**
+     * Default constructor.
+     */
+    public Metrics() {
+        for (int i = 0; i < this.statuses.length; i++) {
+            this.statuses[i] = new LongAdder();
+        }
+        for (int i = 0; i < this.timeouts.length; i++) {
+            this.timeouts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Counts an accepted connection.
+     */
+    public void connectionAccepted() {
+        this.accepted.increment();
+    }
+
+    /**
+     * Records the time a TLS handshake took.
+     * @param nanos is the duration in nanoseconds.
+     */
+    public void handshake(long nanos) {
+        this.handshake.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    /**
+     * Records the time parsing a request line took.
+     * @param nanos is the duration in nanoseconds.
+     */
+    public void parse(long nanos) {
+        this.parse.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    /**
+     * Records the time a capsule took to produce its response.
+     * @param path is the capsule route.
+     * @param nanos is the duration in nanoseconds.
+     */
+    public void capsule(String path, long nanos) {
+        Histogram h = this.capsules.get(path);
+        if (h == null) {
+            h = this.capsules.computeIfAbsent(path, k -> new Histogram());
+        }
+        h.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    /**
+     * Records the time a hostDir file response took to produce.
+     * @param nanos is the duration in nanoseconds.
+     */
+    public void file(long nanos) {
+        this.files.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    /**
+     * Counts a response that was sent.
+     * @param status is the response status.
+     * @param bytes is the number of bytes written including the header.
+     */
+    public void response(GeminiStatusCodeDetail status, long bytes) {
+        this.statuses[status.ordinal()].increment();
+        this.bytesWritten.add(bytes);
+    }
+
+    /**
+     * Counts a connection closed for going past a timeout.
+     * @param phase is the TimeoutPhase it timed out in.
+     */
+    public void timeout(TimeoutPhase phase) {
+        this.timeouts[phase.ordinal()].increment();
+    }
+
+    public void setThreadPool(ExecutorService threadPool) {
+        this.threadPool = threadPool;
+    }
+
+    public void setAdmission(AdmissionControl admission) {
+        this.admission = admission;
+    }
+
+    public void setLimiter(ClientLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    public void setAccessLog(AccessLog accessLog) {
+        this.accessLog = accessLog;
+    }
+
+    public void setCapsuleCache(CapsuleCache capsuleCache) {
+        this.capsuleCache = capsuleCache;
+    }
+
+    public void setIdentities(ClientIdentities identities) {
+        this.identities = identities;
+    }
+
+    /**
+     * Renders every metric in the Prometheus text exposition format.
+     * Latencies are reported in seconds as summaries.
+     * @return A String with the metrics.
+     */
+    public String toPrometheus() {
+        StringBuilder sb = new StringBuilder();
+
+        gauge(sb, "lc19_uptime_seconds", "Seconds since the server started.",
+                (System.nanoTime() - this.startNanos) / 1e9);
+        counter(sb, "lc19_connections_accepted_total", "Connections accepted.", this.accepted.sum());
+        counter(sb, "lc19_bytes_written_total", "Response bytes written including headers.", this.bytesWritten.sum());
+
+        sb.append("# HELP lc19_responses_total Responses sent by status code.\n");
+        sb.append("# TYPE lc19_responses_total counter\n");
+        for (GeminiStatusCodeDetail s : GeminiStatusCodeDetail.values()) {
+            long n = this.statuses[s.ordinal()].sum();
+            if (n > 0) {
+                sb.append("lc19_responses_total{status=\"").append(s.getValue()).append("\"} ").append(n).append('\n');
+            }
+        }
+
+        sb.append("# HELP lc19_timeouts_total Connections closed for going past a timeout, by phase.\n");
+        sb.append("# TYPE lc19_timeouts_total counter\n");
+        for (TimeoutPhase p : TimeoutPhase.values()) {
+            sb.append("lc19_timeouts_total{phase=\"").append(p.getValue()).append("\"} ").append(this.timeouts[p.ordinal()].sum()).append('\n');
+        }
+
+        summary(sb, "lc19_handshake_seconds", "TLS handshake time.", null, this.handshake, true);
+        summary(sb, "lc19_parse_seconds", "Request line parse time.", null, this.parse, true);
+        summary(sb, "lc19_file_seconds", "Time to produce a hostDir file response.", null, this.files, true);
+        boolean first = true;
+        for (Map.Entry<String, Histogram> e : new TreeMap<String, Histogram>(this.capsules).entrySet()) {
+            summary(sb, "lc19_capsule_seconds", "Time for a capsule to produce its response.", e.getKey(), e.getValue(), first);
+            first = false;
+        }
+
+        if (this.threadPool instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) this.threadPool;
+            gauge(sb, "lc19_pool_threads", "Threads in the pool.", pool.getPoolSize());
+            gauge(sb, "lc19_pool_active_threads", "Threads running a task.", pool.getActiveCount());
+            gauge(sb, "lc19_pool_queued", "Tasks waiting for a thread.", pool.getQueue().size());
+            counter(sb, "lc19_pool_completed_total", "Tasks completed by the pool.", pool.getCompletedTaskCount());
+        }
+        if (this.admission != null) {
+            counter(sb, "lc19_pool_rejected_total", "Connections shed with 44 because the queue was full.", this.admission.getRejectedCount());
+            counter(sb, "lc19_queue_expired_total", "Connections shed with 41 after waiting past queueTimeout.", this.admission.getExpiredCount());
+        }
+        if (this.limiter != null) {
+            gauge(sb, "lc19_clients_tracked", "Client addresses tracked by the client limiter.", this.limiter.getTrackedCount());
+            counter(sb, "lc19_client_connection_limited_total", "Connections answered with 44 because the client had too many open.", this.limiter.getConnectionLimitedCount());
+            counter(sb, "lc19_client_rate_limited_total", "Connections answered with 44 because the client was over its request rate.", this.limiter.getRateLimitedCount());
+        }
+        if (this.capsuleCache != null) {
+            gauge(sb, "lc19_capsule_cache_bytes", "Bytes held by the capsule response cache.", this.capsuleCache.getSize());
+            gauge(sb, "lc19_capsule_cache_entries", "Responses held by the capsule response cache.", this.capsuleCache.getEntryCount());
+            counter(sb, "lc19_capsule_cache_hits_total", "Capsule requests answered from the cache.", this.capsuleCache.getHitCount());
+            counter(sb, "lc19_capsule_cache_stale_total", "Capsule requests answered with a stale response while it was refreshed.", this.capsuleCache.getStaleCount());
+            counter(sb, "lc19_capsule_cache_misses_total", "Capsule requests that had to wait for the capsule.", this.capsuleCache.getMissCount());
+            counter(sb, "lc19_capsule_cache_coalesced_total", "Cache misses that waited on a capsule call already running for the same key.", this.capsuleCache.getCoalescedCount());
+        }
+        if (this.identities != null) {
+            gauge(sb, "lc19_client_identities", "Client certificate identities held by the identity cache.", this.identities.getEntryCount());
+            counter(sb, "lc19_client_identity_hits_total", "Client certificates resolved from the identity cache.", this.identities.getHitCount());
+            counter(sb, "lc19_client_identity_misses_total", "Client certificates that were hashed and looked up in the identity store.", this.identities.getMissCount());
+        }
+        if (this.accessLog != null) {
+            counter(sb, "lc19_access_log_dropped_total", "Access log records dropped because the writer fell behind.", this.accessLog.getDroppedCount());
+        }
+
+        return sb.toString();
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, double value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" gauge\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Appends a histogram as a Prometheus summary.
+     * @param sb is the StringBuilder to append to.
+     * @param name is the metric name.
+     * @param help is the help text.
+     * @param route is the route label value or null for none.
+     * @param h is the Histogram in microseconds.
+     * @param header is true to include the HELP and TYPE lines.
+     */
+    private static void summary(StringBuilder sb, String name, String help, String route, Histogram h, boolean header) {
+        if (header) {
+            sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            sb.append("# TYPE ").append(name).append(" summary\n");
+        }
+        String label = route == null ? "" : "route=\"" + escape(route) + "\"";
+        for (double q : QUANTILES) {
+            sb.append(name).append("{");
+            if (!label.isEmpty()) sb.append(label).append(',');
+            sb.append("quantile=\"").append(q).append("\"} ").append(h.getValueAtQuantile(q) / 1e6).append('\n');
+        }
+        String labels = label.isEmpty() ? "" : "{" + label + "}";
+        sb.append(name).append("_sum").append(labels).append(' ').append(h.getSum() / 1e6).append('\n');
+        sb.append(name).append("_count").append(labels).append(' ').append(h.getCount()).append('\n');
+    }
+
+    private static String escape(String str) {
+        return str.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
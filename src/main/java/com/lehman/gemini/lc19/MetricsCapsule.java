@@ -0,0 +1,43 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+/**
+ * MetricsCapsule is the built-in capsule that serves the metrics in the
+ * Prometheus text format. It's registered on metrics.path rather than
+ * through the @Capsule scan.
+ */
+public class MetricsCapsule implements CapsuleInt {
+    private final Metrics metrics;
+
+    /**
+     * Default constructor.
+     * @param MetricsRef is the Metrics registry to serve.
+     */
+    public MetricsCapsule(Metrics MetricsRef) {
+        this.metrics = MetricsRef;
+    }
+
+    @Override
+    public GeminiResponse handle(GeminiRequest req) {
+        GeminiResponse resp = new GeminiResponse();
+        resp.setData(this.metrics.toPrometheus());
+        resp.setMediaType(GeminiMediaType.TEXT_PLAIN.getValue());
+        return resp;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * MetricsServer serves the metrics over plain HTTP on /metrics so
+ * Prometheus can scrape them. It's meant to be bound to a local address,
+ * there's no TLS or authentication.
+ */
+public class MetricsServer {
+    private final static Logger log = LoggerFactory.getLogger(Main.class);
+
+    private final Metrics metrics;
+    private HttpServer server = null;
+
+    /**
+     * Default constructor.
+     * @param MetricsRef is the Metrics registry to serve.
+     */
+    public MetricsServer(Metrics MetricsRef) {
+        this.metrics = MetricsRef;
+    }
+
+    /**
+     * Binds the provided address and starts serving.
+     * @param host is the address to bind to.
+     * @param port is the port to bind to.
+     * @throws IOException
+     */
+    public void start(String host, int port) throws IOException {
+        log.info("Starting metrics server on " + host + ":" + port + ".");
+        this.server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        this.server.createContext("/metrics", this::handle);
+        this.server.start();
+    }
+
+    /**
+     * Stops serving.
+     */
+    public void stop() {
+        if (this.server != null) {
+            this.server.stop(0);
+        }
+    }
+
+    /**
+     * Gets the port the server is bound to.
+     * @return An int with the port or -1 if not started.
+     */
+    public int getLocalPort() {
+        return this.server == null ? -1 : this.server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        byte[] body = this.metrics.toPrometheus().getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        ex.sendResponseHeaders(200, body.length);
+        try (OutputStream os = ex.getResponseBody()) {
+            os.write(body);
+        }
+    }
+}
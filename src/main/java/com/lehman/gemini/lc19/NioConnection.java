@@ -0,0 +1,610 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * NioConnection is the per-connection state machine used by the NIO
+ * transport. It walks a single connection through the TLS handshake,
+ * reading the request line, waiting on the worker pool and writing the
+ * response. Every method is called from the owning event loop thread.
+ */
+class NioConnection {
+    private final static Logger log = LoggerFactory.getLogger(Main.class);
+
+    // A request line is at most MAX_LINE bytes followed by CRLF.
+    private final static int MAX_REQUEST_LINE = GeminiRequest.MAX_LINE + 2;
+
+    private final static ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    // Max number of response buffers wrapped into one record.
+    private final static int GATHER = 16;
+
+    private enum State { HANDSHAKE, READING, PROCESSING, WRITING, CLOSING, CLOSED }
+
+    private final NioEventLoop loop;
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private SelectionKey key = null;
+
+    // Network buffers are kept in fill mode between calls. They come
+    // from the transport's pools and go back when the connection closes.
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private ByteBuffer appIn;
+
+    // Response buffers being wrapped, filled by NioResponseOutput.peek().
+    private final ByteBuffer[] gather = new ByteBuffer[GATHER];
+
+    // Response being sent, set once the worker starts writing.
+    private NioResponseOutput output = null;
+
+    private State state = State.HANDSHAKE;
+
+    // Time the connection was accepted, for the handshake time.
+    private final long startNanos = System.nanoTime();
+
+    // Time the handshake finished, for the request timeout.
+    private long readNanos = 0;
+
+    // Time netOut last couldn't be fully written and nothing has been
+    // sent since, 0 when it's empty. For the write timeout.
+    private long stalledNanos = 0;
+
+    // Client address, for the access log.
+    private final InetAddress peer;
+
+    // Client limiter entry closed with the connection, or null.
+    private final ClientLimiter.Client client;
+
+    // Response sent once the handshake is done instead of reading the
+    // request, or null.
+    private final GeminiResponse shed;
+
+    /**
+     * Default constructor.
+     * @param Loop is the owning NioEventLoop.
+     * @param Channel is the non-blocking SocketChannel.
+     * @param Engine is a server mode SSLEngine.
+     * @param Client is the ClientLimiter.Client to close with the
+     * connection or null for none.
+     * @param Shed is the GeminiResponse to answer with right after the
+     * handshake, or null to read and serve the request.
+     * @throws IOException
+     */
+    NioConnection(NioEventLoop Loop, SocketChannel Channel, SSLEngine Engine, ClientLimiter.Client Client, GeminiResponse Shed) throws IOException {
+        this.loop = Loop;
+        this.channel = Channel;
+        this.engine = Engine;
+        this.peer = Channel.socket().getInetAddress();
+        this.client = Client;
+        this.shed = Shed;
+
+        this.engine.beginHandshake();
+        NioTransport transport = Loop.getTransport();
+        this.netIn = transport.getNetBuffers().acquire();
+        this.netOut = transport.getNetBuffers().acquire();
+        this.appIn = transport.getAppBuffers().acquire();
+        transport.connectionOpened();
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Moves the connection forward as far as it can go without blocking.
+     * Any failure closes the connection.
+     */
+    void process() {
+        try {
+            this.advance();
+        } catch (Exception e) {
+            log.error(e.getMessage());
+            this.close();
+        }
+    }
+
+    /**
+     * Drives the state machine until it needs to wait on the network
+     * or on the worker pool.
+     * @throws IOException
+     */
+    private void advance() throws IOException {
+        // A wakeup can still arrive after close, the buffers are gone.
+        if (this.state == State.CLOSED) {
+            return;
+        }
+        if (!this.flush()) {
+            this.interest(SelectionKey.OP_WRITE);
+            return;
+        }
+
+        while (true) {
+            switch (this.state) {
+                case CLOSED:
+                    return;
+                case PROCESSING:
+                    this.interest(0);
+                    return;
+                case CLOSING:
+                    if (!this.engine.isOutboundDone()) {
+                        this.wrap(EMPTY);
+                        if (!this.flush()) {
+                            this.interest(SelectionKey.OP_WRITE);
+                            return;
+                        }
+                        continue;
+                    }
+                    this.close();
+                    return;
+                default:
+                    break;
+            }
+
+            HandshakeStatus hs = this.engine.getHandshakeStatus();
+            if (hs == HandshakeStatus.NEED_TASK) {
+                Runnable task;
+                while ((task = this.engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                continue;
+            } else if (hs == HandshakeStatus.NEED_WRAP) {
+                this.wrap(EMPTY);
+                if (!this.flush()) {
+                    this.interest(SelectionKey.OP_WRITE);
+                    return;
+                }
+                continue;
+            } else if (hs == HandshakeStatus.NEED_UNWRAP || hs == HandshakeStatus.NEED_UNWRAP_AGAIN) {
+                if (!this.unwrap()) {
+                    this.interest(SelectionKey.OP_READ);
+                    return;
+                }
+                continue;
+            }
+
+            if (this.state == State.HANDSHAKE) {
+                this.readNanos = System.nanoTime();
+                this.loop.getTransport().getHandler().getMetrics().handshake(this.readNanos - this.startNanos);
+                if (this.shed != null) {
+                    this.reject(this.shed, null);
+                } else {
+                    this.state = State.READING;
+                }
+            } else if (this.state == State.READING) {
+                int end = this.findLineEnd();
+                if (end >= 0) {
+                    this.dispatch(end);
+                } else if (this.appIn.position() >= MAX_REQUEST_LINE) {
+                    log.debug("Request line too long, rejecting.");
+                    this.reject(GeminiStatusCodeDetail.BAD_REQUEST, null);
+                } else if (!this.unwrap()) {
+                    this.interest(SelectionKey.OP_READ);
+                    return;
+                }
+            } else if (this.state == State.WRITING) {
+                int n = this.output.peek(this.gather);
+                if (n > 0) {
+                    this.wrap(this.gather, n);
+                    this.output.consumed(this.gather, n);
+                    Arrays.fill(this.gather, 0, n, null);
+                    if (!this.flush()) {
+                        this.interest(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                } else if (this.output.isDone()) {
+                    this.engine.closeOutbound();
+                    this.state = State.CLOSING;
+                } else {
+                    // Wait for the worker to write more.
+                    this.interest(0);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands the request line to the worker pool. The response comes back
+     * to this loop through a NioResponseOutput.
+     * @param end is the index of the line feed in appIn.
+     */
+    private void dispatch(int end) {
+        long start = System.nanoTime();
+        GeminiRequest req = GeminiRequest.parse(this.appIn.array(), 0, end);
+        this.loop.getTransport().getHandler().getMetrics().parse(System.nanoTime() - start);
+        this.state = State.PROCESSING;
+        this.interest(0);
+        if (!req.isValid()) {
+            log.debug("Malformed request: {}", req.getRawRequest());
+            this.reject(GeminiStatusCodeDetail.BAD_REQUEST, req);
+            return;
+        }
+        req.setSession(this.engine.getSession());
+        this.loop.getTransport().getWorkers().execute(new RequestTask(req));
+    }
+
+    /**
+     * Answers with the provided status without involving the worker
+     * pool. Must be called on the loop thread.
+     * @param status is the GeminiStatusCodeDetail to send.
+     * @param req is the GeminiRequest or null if none was read.
+     */
+    private void reject(GeminiStatusCodeDetail status, GeminiRequest req) {
+        GeminiResponse resp = new GeminiResponse();
+        resp.setStatus(status);
+        this.reject(resp, req);
+    }
+
+    /**
+     * Answers with the provided header only response without involving
+     * the worker pool. Must be called on the loop thread.
+     * @param resp is the GeminiResponse to send.
+     * @param req is the GeminiRequest or null if none was read.
+     */
+    private void reject(GeminiResponse resp, GeminiRequest req) {
+        NioResponseOutput out = new NioResponseOutput(() -> { });
+        try {
+            out.write(ByteBuffer.wrap(resp.getHeaderBytes()));
+        } catch (IOException e) {
+            log.error(e.getMessage());
+        }
+        this.loop.getTransport().getHandler().responseSent(this.peer, req, resp.getStatus(), out.getBytesWritten(), this.startNanos);
+        out.finish();
+        this.startWriting(out);
+    }
+
+    /**
+     * Creates the output a worker writes the response to. Anything
+     * written wakes this connection up on the loop thread.
+     * @return A NioResponseOutput object.
+     */
+    private NioResponseOutput createOutput() {
+        NioResponseOutput out = new NioResponseOutput(() -> this.loop.execute(this::process));
+        this.loop.execute(() -> this.startWriting(out));
+        return out;
+    }
+
+    /**
+     * Switches the connection into the writing state. Must be called
+     * on the loop thread.
+     * @param out is the NioResponseOutput to send from.
+     */
+    private void startWriting(NioResponseOutput out) {
+        if (this.state == State.CLOSED) {
+            out.abort();
+            return;
+        }
+        this.output = out;
+        this.state = State.WRITING;
+    }
+
+    /**
+     * Finds the line feed that ends the request line.
+     * @return An int with the index of the line feed or -1.
+     */
+    private int findLineEnd() {
+        byte[] buf = this.appIn.array();
+        int len = Math.min(this.appIn.position(), MAX_REQUEST_LINE);
+        for (int i = 0; i < len; i++) {
+            if (buf[i] == '\n') return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Unwraps whatever is buffered and reads more from the channel if
+     * the engine needs it.
+     * @return A boolean with true if progress was made and false if
+     * the connection has to wait for more data.
+     * @throws IOException
+     */
+    private boolean unwrap() throws IOException {
+        this.netIn.flip();
+        SSLEngineResult r = this.engine.unwrap(this.netIn, this.appIn);
+        this.netIn.compact();
+
+        switch (r.getStatus()) {
+            case OK:
+                if (r.bytesConsumed() > 0 || r.bytesProduced() > 0) return true;
+                break;
+            case BUFFER_OVERFLOW:
+                this.appIn = this.grow(this.appIn, this.engine.getSession().getApplicationBufferSize());
+                return true;
+            case CLOSED:
+                throw new EOFException("Connection closed by peer.");
+            case BUFFER_UNDERFLOW:
+            default:
+                break;
+        }
+
+        if (!this.netIn.hasRemaining()) {
+            this.netIn = this.grow(this.netIn, this.engine.getSession().getPacketBufferSize());
+        }
+        int n = this.channel.read(this.netIn);
+        if (n < 0) {
+            throw new EOFException("Connection closed by peer.");
+        }
+        return n > 0;
+    }
+
+    /**
+     * Wraps application data into netOut. netOut is always flushed
+     * before this is called so it has room for a full record.
+     * @param src is the ByteBuffer to wrap.
+     * @throws IOException
+     */
+    private void wrap(ByteBuffer src) throws IOException {
+        this.checkWrap(this.engine.wrap(src, this.netOut));
+    }
+
+    /**
+     * Wraps as much of the buffers as fits in one record into netOut,
+     * so a header and a small body go out together.
+     * @param srcs is the array of ByteBuffers to wrap.
+     * @param count is the number of buffers in srcs.
+     * @throws IOException
+     */
+    private void wrap(ByteBuffer[] srcs, int count) throws IOException {
+        this.checkWrap(this.engine.wrap(srcs, 0, count, this.netOut));
+    }
+
+    /**
+     * Grows netOut if the record didn't fit.
+     * @param r is the SSLEngineResult of the wrap.
+     * @throws IOException
+     */
+    private void checkWrap(SSLEngineResult r) throws IOException {
+        if (r.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+            this.netOut = this.grow(this.netOut, this.engine.getSession().getPacketBufferSize());
+        } else if (r.getStatus() == SSLEngineResult.Status.CLOSED && this.state != State.CLOSING) {
+            throw new SSLException("SSLEngine closed unexpectedly.");
+        }
+    }
+
+    /**
+     * Writes as much of netOut as the channel will take.
+     * @return A boolean with true if netOut is now empty.
+     * @throws IOException
+     */
+    private boolean flush() throws IOException {
+        if (this.netOut.position() == 0) return true;
+        this.netOut.flip();
+        int sent = 0;
+        while (this.netOut.hasRemaining()) {
+            int n = this.channel.write(this.netOut);
+            if (n == 0) break;
+            sent += n;
+        }
+        boolean done = !this.netOut.hasRemaining();
+        this.netOut.compact();
+        if (done) {
+            this.stalledNanos = 0;
+        } else if (sent > 0 || this.stalledNanos == 0) {
+            this.stalledNanos = System.nanoTime();
+        }
+        return done;
+    }
+
+    /**
+     * Closes the connection if it has gone past the timeout of the
+     * phase it's in. A connection waiting on the worker pool has no
+     * timeout, and while writing only a client that has read nothing
+     * for writeTimeout is closed. Called from the loop thread.
+     * @param now is the current System.nanoTime().
+     */
+    void checkTimeout(long now) {
+        TimeoutPhase phase;
+        long since;
+        switch (this.state) {
+            case HANDSHAKE:
+                phase = TimeoutPhase.HANDSHAKE;
+                since = this.startNanos;
+                break;
+            case READING:
+                phase = TimeoutPhase.REQUEST;
+                since = this.readNanos;
+                break;
+            case WRITING:
+            case CLOSING:
+                if (this.stalledNanos == 0) return;
+                phase = TimeoutPhase.WRITE;
+                since = this.stalledNanos;
+                break;
+            default:
+                return;
+        }
+
+        AdmissionControl admission = this.loop.getTransport().getAdmission();
+        int timeout = admission.getTimeout(phase);
+        if (timeout > 0 && now - since >= TimeUnit.MILLISECONDS.toNanos(timeout)) {
+            this.loop.getTransport().getHandler().getMetrics().timeout(phase);
+            if (log.isDebugEnabled()) {
+                log.debug("Closing connection from '" + this.peer.getHostAddress() + "', " + phase.getValue() + " timed out.");
+            }
+            // Reset so unread response data is dropped rather than kept
+            // in the kernel.
+            try {
+                this.channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+            } catch (IOException e) {
+                log.debug(e.getMessage());
+            }
+            this.close();
+        }
+    }
+
+    /**
+     * Returns a larger copy of the provided fill mode buffer.
+     * @param buf is the ByteBuffer to grow.
+     * @param extra is the number of bytes to add.
+     * @return A new ByteBuffer.
+     */
+    private ByteBuffer grow(ByteBuffer buf, int extra) {
+        int size = buf.capacity() + extra;
+        ByteBuffer ret = buf.isDirect() ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        buf.flip();
+        ret.put(buf);
+        return ret;
+    }
+
+    /**
+     * Sets the selector interest set.
+     * @param ops is an int with the SelectionKey ops.
+     */
+    private void interest(int ops) {
+        if (this.key != null && this.key.isValid()) {
+            this.key.interestOps(ops);
+        }
+    }
+
+    /**
+     * Closes the connection.
+     */
+    void close() {
+        if (this.state == State.CLOSED) {
+            return;
+        }
+        this.state = State.CLOSED;
+        if (this.output != null) {
+            this.output.abort();
+        }
+        if (this.key != null) {
+            this.key.cancel();
+        }
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            log.error(e.getMessage());
+        }
+
+        NioTransport transport = this.loop.getTransport();
+        transport.getNetBuffers().release(this.netIn);
+        transport.getNetBuffers().release(this.netOut);
+        transport.getAppBuffers().release(this.appIn);
+        this.netIn = null;
+        this.netOut = null;
+        this.appIn = null;
+        if (this.client != null) {
+            this.client.close();
+        }
+        transport.connectionClosed();
+    }
+
+    /**
+     * Worker task that runs the RequestHandler for this connection.
+     */
+    private class RequestTask implements Runnable, Sheddable {
+        private final GeminiRequest req;
+        private final long enqueuedNanos = System.nanoTime();
+
+        // Response from an async capsule waiting to be written.
+        private volatile GeminiResponse response = null;
+
+        RequestTask(GeminiRequest req) {
+            this.req = req;
+        }
+
+        @Override
+        public void run() {
+            if (this.response != null) {
+                this.send(this.response);
+                return;
+            }
+
+            NioTransport transport = loop.getTransport();
+            if (transport.getAdmission().isExpired(this.enqueuedNanos)) {
+                log.warn("Connection waited longer than the queue timeout, shedding.");
+                this.shed(transport.getAdmission().unavailable());
+                return;
+            }
+
+            GeminiResponse resp;
+            try {
+                if (log.isDebugEnabled()) {
+                    log.debug("Received request: " + this.req.toString());
+                }
+                CompletableFuture<GeminiResponse> f = transport.getHandler().handleAsync(this.req).toCompletableFuture();
+                if (!f.isDone()) {
+                    // Written on a worker again once the capsule completes.
+                    f.whenComplete((r, t) -> {
+                        this.response = RequestHandler.orFailure(r, t);
+                        transport.getWorkers().execute(this);
+                    });
+                    return;
+                }
+                resp = f.handle(RequestHandler::orFailure).join();
+            } catch (RuntimeException e) {
+                log.error(e.getMessage());
+                resp = new GeminiResponse();
+                resp.setStatus(GeminiStatusCodeDetail.TEMPORARY_FAILURE);
+            }
+            this.send(resp);
+        }
+
+        @Override
+        public void shed(GeminiResponse resp) {
+            if (this.response != null) {
+                resp = this.response;
+            }
+            this.send(resp);
+        }
+
+        /**
+         * Writes the response to a new output for this connection. If
+         * the response can't be written in full the connection is closed
+         * without a close_notify, so the client can tell it's truncated.
+         * @param resp is the GeminiResponse to send.
+         */
+        private void send(GeminiResponse resp) {
+            NioResponseOutput out = createOutput();
+            try {
+                resp.writeTo(out);
+            } catch (IOException e) {
+                log.error(e.getMessage());
+                this.abort();
+                return;
+            }
+            loop.getTransport().getHandler().responseSent(peer, this.req, resp.getStatus(), out.getBytesWritten(), startNanos);
+            log.debug("Response: {}", resp.getStatus());
+            out.finish();
+        }
+
+        @Override
+        public void abort() {
+            loop.execute(() -> close());
+        }
+    }
+}
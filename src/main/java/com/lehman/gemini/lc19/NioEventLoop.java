@@ -0,0 +1,152 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * NioEventLoop owns a Selector and every connection registered with it.
+ * All connection state is touched only from this loop's thread, other
+ * threads hand work in through execute().
+ */
+class NioEventLoop implements Runnable {
+    private final static Logger log = LoggerFactory.getLogger(Main.class);
+
+    private final NioTransport transport;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private volatile boolean running = true;
+
+    // Next time the connection timeouts are checked.
+    private long nextCheck = System.nanoTime();
+
+    /**
+     * Default constructor.
+     * @param Transport is the owning NioTransport.
+     * @throws IOException
+     */
+    NioEventLoop(NioTransport Transport) throws IOException {
+        this.transport = Transport;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Registers a newly accepted channel with this loop.
+     * @param ch is the non-blocking SocketChannel.
+     * @param client is the ClientLimiter.Client to close with the
+     * connection or null for none.
+     * @param shed is the GeminiResponse to answer with right after the
+     * handshake without reading the request, or null to serve it.
+     */
+    void register(SocketChannel ch, ClientLimiter.Client client, GeminiResponse shed) {
+        this.execute(() -> {
+            NioConnection conn = null;
+            try {
+                conn = new NioConnection(this, ch, this.transport.createEngine(), client, shed);
+                conn.setKey(ch.register(this.selector, SelectionKey.OP_READ, conn));
+                conn.process();
+            } catch (IOException e) {
+                log.error(e.getMessage());
+                if (conn != null) {
+                    conn.close();
+                } else {
+                    try { ch.close(); } catch (IOException ignored) { }
+                    if (client != null) client.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues a task to run on the loop thread.
+     * @param task is the Runnable to run.
+     */
+    void execute(Runnable task) {
+        this.tasks.add(task);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Closes every connection and ends the loop.
+     */
+    void stop() {
+        this.execute(() -> {
+            for (SelectionKey key : this.selector.keys()) {
+                ((NioConnection) key.attachment()).close();
+            }
+            this.running = false;
+        });
+    }
+
+    /**
+     * Runs the select loop until stop() is called.
+     */
+    @Override
+    public void run() {
+        while (this.running) {
+            try {
+                this.selector.select(ConnectionReaper.CHECK_MS);
+
+                Runnable task;
+                while ((task = this.tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (key.isValid()) {
+                        ((NioConnection) key.attachment()).process();
+                    }
+                }
+
+                long now = System.nanoTime();
+                if (now - this.nextCheck >= 0) {
+                    this.nextCheck = now + TimeUnit.MILLISECONDS.toNanos(ConnectionReaper.CHECK_MS);
+                    for (SelectionKey key : this.selector.keys()) {
+                        if (key.isValid()) {
+                            ((NioConnection) key.attachment()).checkTimeout(now);
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                log.error("Event loop error: " + e.getMessage());
+            }
+        }
+        try {
+            this.selector.close();
+        } catch (IOException e) {
+            log.error(e.getMessage());
+        }
+    }
+
+    NioTransport getTransport() {
+        return transport;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+/**
+ * NioResponseOutput is the hand-off between the worker writing a response
+ * and the event loop sending it. Heap buffers count against a high water
+ * mark and the worker waits once it's reached, so a slow client holds at
+ * most HIGH_WATER bytes of heap. File regions are memory mapped and sent
+ * by the event loop straight from the page cache.
+ */
+class NioResponseOutput implements ResponseOutput {
+    // Max heap bytes queued before the writer has to wait.
+    private final static long HIGH_WATER = 256 * 1024;
+
+    // Size of each mapped file region.
+    private final static long MAP_CHUNK = 64L * 1024 * 1024;
+
+    private final Runnable wakeup;
+
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();
+    private long pendingBytes = 0;
+    private long written = 0;
+    private boolean finished = false;
+    private boolean aborted = false;
+
+    /**
+     * Default constructor.
+     * @param Wakeup is run whenever there's something new to send.
+     */
+    NioResponseOutput(Runnable Wakeup) {
+        this.wakeup = Wakeup;
+    }
+
+    @Override
+    public void write(ByteBuffer buf) throws IOException {
+        if (!buf.hasRemaining()) return;
+        this.write(new ByteBuffer[] { buf });
+    }
+
+    @Override
+    public void write(ByteBuffer[] bufs) throws IOException {
+        synchronized (this) {
+            while (this.pendingBytes >= HIGH_WATER && !this.aborted) {
+                try {
+                    this.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            for (ByteBuffer buf : bufs) {
+                if (buf.hasRemaining()) this.enqueue(buf);
+            }
+        }
+        this.wakeup.run();
+    }
+
+    @Override
+    public void transferFrom(FileChannel ch, long position, long count) throws IOException {
+        long done = 0;
+        while (done < count) {
+            long n = Math.min(MAP_CHUNK, count - done);
+            MappedByteBuffer region = ch.map(FileChannel.MapMode.READ_ONLY, position + done, n);
+            synchronized (this) {
+                this.enqueue(region);
+            }
+            done += n;
+        }
+        this.wakeup.run();
+    }
+
+    @Override
+    public synchronized long getBytesWritten() {
+        return this.written;
+    }
+
+    /**
+     * Marks the response as complete.
+     */
+    void finish() {
+        synchronized (this) {
+            this.finished = true;
+        }
+        this.wakeup.run();
+    }
+
+    /**
+     * Gets the next buffers to send, so they can be wrapped into one
+     * record. Called from the event loop.
+     * @param dst is the array to fill.
+     * @return An int with the number of buffers put in dst.
+     */
+    synchronized int peek(ByteBuffer[] dst) {
+        int n = 0;
+        for (ByteBuffer buf : this.pending) {
+            if (n == dst.length) break;
+            dst[n++] = buf;
+        }
+        return n;
+    }
+
+    /**
+     * Removes the buffers that have been fully sent. Called from the
+     * event loop after each wrap.
+     * @param bufs is the array filled by peek().
+     * @param count is the number of buffers in bufs.
+     */
+    synchronized void consumed(ByteBuffer[] bufs, int count) {
+        boolean freed = false;
+        for (int i = 0; i < count; i++) {
+            ByteBuffer buf = bufs[i];
+            if (buf.hasRemaining()) break;
+            this.pending.poll();
+            if (!(buf instanceof MappedByteBuffer)) {
+                this.pendingBytes -= buf.limit();
+                freed = true;
+            }
+        }
+        if (freed) {
+            this.notifyAll();
+        }
+    }
+
+    /**
+     * Checks if the response is finished and everything has been sent.
+     * @return A boolean with true if done.
+     */
+    synchronized boolean isDone() {
+        return this.finished && this.pending.isEmpty();
+    }
+
+    /**
+     * Drops anything pending and fails further writes. Called when the
+     * connection closes.
+     */
+    synchronized void abort() {
+        this.aborted = true;
+        this.pending.clear();
+        this.notifyAll();
+    }
+
+    /**
+     * Adds the buffer to the pending queue. Must hold the lock.
+     * @param buf is the ByteBuffer to add.
+     * @throws IOException
+     */
+    private void enqueue(ByteBuffer buf) throws IOException {
+        if (this.aborted) {
+            throw new IOException("Connection closed.");
+        }
+        this.pending.add(buf);
+        this.written += buf.remaining();
+        if (!(buf instanceof MappedByteBuffer)) {
+            this.pendingBytes += buf.limit();
+        }
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLEngine;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * NioTransport is the non-blocking alternative to the SSLServerSocket
+ * accept loop. Connections are accepted on the calling thread and handed
+ * round robin to a small set of event loops which run the TLS handshake,
+ * read the request line and write the response through an SSLEngine.
+ * Only the RequestHandler call itself runs on the worker pool.
+ *
+ * On shutdown stopAccepting() ends the accept loop while open
+ * connections finish, and close() closes the rest and stops the event
+ * loops.
+ */
+public class NioTransport {
+    private final static Logger log = LoggerFactory.getLogger(Main.class);
+
+    // Max number of idle buffers kept in each pool.
+    private final static int MAX_IDLE_BUFFERS = 512;
+
+    private SSLContext sslContext;
+    private SSLParameters sslParameters;
+
+    // Direct buffers for TLS records and heap buffers for the request
+    // line, shared by every connection.
+    private BufferPool netBuffers;
+    private BufferPool appBuffers;
+
+    private ExecutorService workers;
+    private RequestHandler handler;
+    private AdmissionControl admission;
+
+    // Per client limits checked on accept, null for none.
+    private ClientLimiter limiter = null;
+
+    private ServerSocketChannel serverChannel = null;
+    private Selector acceptSelector = null;
+    private volatile boolean accepting = true;
+
+    // False when the channel was passed in, an inherited channel is
+    // left open on shutdown, see Server.shutdown().
+    private boolean ownsChannel = false;
+
+    private NioEventLoop[] loops;
+    private int nextLoop = 0;
+
+    // Number of connections that haven't been closed yet.
+    private final AtomicInteger open = new AtomicInteger(0);
+
+    /**
+     * Default constructor.
+     * @param SslContext is the SSLContext to create engines from.
+     * @param SslParameters is the SSLParameters applied to each engine.
+     * @param Workers is the executor that runs the request handler.
+     * @param Handler is the RequestHandler that produces responses.
+     * @param Admission is the AdmissionControl used to shed work.
+     */
+    public NioTransport(SSLContext SslContext, SSLParameters SslParameters,
+                        ExecutorService Workers, RequestHandler Handler, AdmissionControl Admission) {
+        this.sslContext = SslContext;
+        this.sslParameters = SslParameters;
+
+        SSLSession session = SslContext.createSSLEngine().getSession();
+        this.netBuffers = new BufferPool(session.getPacketBufferSize(), MAX_IDLE_BUFFERS, true);
+        this.appBuffers = new BufferPool(session.getApplicationBufferSize() + GeminiRequest.MAX_LINE + 2, MAX_IDLE_BUFFERS, false);
+        this.workers = Workers;
+        this.handler = Handler;
+        this.admission = Admission;
+    }
+
+    /**
+     * Binds the server channel and starts the event loop threads.
+     * @param port is an int with the port number to bind to.
+     * @param reusePort is true to set SO_REUSEPORT before binding.
+     * @param eventLoops is the number of event loop threads to start.
+     * @throws IOException
+     */
+    public void bind(int port, boolean reusePort, int eventLoops) throws IOException {
+        log.info("Creating ServerSocketChannel on port " + port + (reusePort ? " with SO_REUSEPORT" : "") + ".");
+        ServerSocketChannel ch = ServerSocketChannel.open();
+        ch.socket().setReuseAddress(true);
+        if (reusePort) {
+            if (ch.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                ch.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            } else {
+                log.warn("SO_REUSEPORT isn't supported on this platform.");
+            }
+        }
+        ch.bind(new InetSocketAddress(port));
+        this.bind(ch, eventLoops);
+        this.ownsChannel = true;
+    }
+
+    /**
+     * Uses an already bound server channel, such as one inherited from
+     * systemd, and starts the event loop threads. The channel isn't
+     * closed on shutdown.
+     * @param ch is the bound ServerSocketChannel.
+     * @param eventLoops is the number of event loop threads to start.
+     * @throws IOException
+     */
+    public void bind(ServerSocketChannel ch, int eventLoops) throws IOException {
+        log.info("Starting " + eventLoops + " event loops.");
+        this.serverChannel = ch;
+        this.serverChannel.configureBlocking(false);
+        this.acceptSelector = Selector.open();
+        this.serverChannel.register(this.acceptSelector, SelectionKey.OP_ACCEPT);
+        this.loops = new NioEventLoop[eventLoops];
+        for (int i = 0; i < eventLoops; i++) {
+            this.loops[i] = new NioEventLoop(this);
+            Thread t = new Thread(this.loops[i], "lc19-nio-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Runs the accept loop on the calling thread until stopAccepting()
+     * or close() is called. A connection that fails to be set up is
+     * closed and logged, and accepting carries on.
+     */
+    public void run() {
+        while (this.accepting) {
+            try {
+                this.acceptSelector.select();
+                this.acceptSelector.selectedKeys().clear();
+                SocketChannel ch;
+                while (this.accepting && (ch = this.serverChannel.accept()) != null) {
+                    ClientLimiter.Client client = null;
+                    try {
+                        this.handler.getMetrics().connectionAccepted();
+                        if (log.isDebugEnabled()) {
+                            log.debug("New client connection from '" + ch.socket().getInetAddress().getHostAddress() + "'.");
+                        }
+                        ch.configureBlocking(false);
+                        ch.socket().setTcpNoDelay(true);
+
+                        // Over limit clients still get a 44 from the event
+                        // loop, their request is never read.
+                        GeminiResponse shed = null;
+                        if (this.limiter != null) {
+                            InetAddress addr = ch.socket().getInetAddress();
+                            client = this.limiter.open(addr);
+                            if (client == null) {
+                                shed = this.admission.slowDown(this.limiter.retryAfter(addr, this.admission.getSlowDownSeconds()));
+                            }
+                        }
+
+                        NioEventLoop loop = this.loops[this.nextLoop];
+                        this.nextLoop = (this.nextLoop + 1) % this.loops.length;
+                        loop.register(ch, client, shed);
+                    } catch (IOException | RuntimeException e) {
+                        log.error("Failed to set up connection: " + e);
+                        if (client != null) client.close();
+                        try { ch.close(); } catch (IOException ignored) { }
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                if (this.accepting) {
+                    log.error(e.getMessage());
+                }
+            }
+        }
+        try {
+            this.acceptSelector.close();
+        } catch (IOException e) {
+            log.error(e.getMessage());
+        }
+    }
+
+    public void setLimiter(ClientLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    /**
+     * Closes any connections still open and stops the event loops.
+     */
+    public void close() {
+        this.stopAccepting();
+        if (this.loops != null) {
+            for (NioEventLoop loop : this.loops) {
+                loop.stop();
+            }
+        }
+    }
+
+    /**
+     * Ends the accept loop and closes the server channel if it was
+     * opened here. Open connections carry on.
+     */
+    public void stopAccepting() {
+        this.accepting = false;
+        if (this.acceptSelector != null) {
+            this.acceptSelector.wakeup();
+        }
+        if (this.ownsChannel) {
+            try {
+                this.serverChannel.close();
+            } catch (IOException e) {
+                log.error(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Gets the number of connections that haven't been closed yet.
+     * @return An int with the count.
+     */
+    public int getOpenConnections() {
+        return this.open.get();
+    }
+
+    /**
+     * Counts a new connection, called by NioConnection.
+     */
+    void connectionOpened() {
+        this.open.incrementAndGet();
+    }
+
+    /**
+     * Counts a closed connection, called by NioConnection.
+     */
+    void connectionClosed() {
+        this.open.decrementAndGet();
+    }
+
+    /**
+     * Creates a server mode SSLEngine for a new connection.
+     * @return An SSLEngine object.
+     */
+    SSLEngine createEngine() {
+        SSLEngine engine = this.sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setSSLParameters(this.sslParameters);
+        return engine;
+    }
+
+    /**
+     * Gets the port the server channel is bound to, useful when bound
+     * to port 0.
+     * @return An int with the port or -1 if not bound.
+     */
+    public int getLocalPort() {
+        return this.serverChannel == null ? -1 : this.serverChannel.socket().getLocalPort();
+    }
+
+    BufferPool getNetBuffers() {
+        return netBuffers;
+    }
+
+    BufferPool getAppBuffers() {
+        return appBuffers;
+    }
+
+    ExecutorService getWorkers() {
+        return workers;
+    }
+
+    RequestHandler getHandler() {
+        return handler;
+    }
+
+    AdmissionControl getAdmission() {
+        return admission;
+    }
+}
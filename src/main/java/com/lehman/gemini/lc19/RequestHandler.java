@@ -0,0 +1,561 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * RequestHandler turns a parsed GeminiRequest into a GeminiResponse. It
+ * holds the capsule and host directory logic and knows nothing about the
+ * socket the request came in on, so it is shared by every transport.
+ */
+public class RequestHandler {
+    private final static Logger log = LoggerFactory.getLogger(Main.class);
+
+    protected ServerInfo serverInfo = null;
+
+    // Host built from the server's hostname, hostDir and capsules.
+    // It also answers requests for unknown hosts if hostname is empty.
+    private VirtualHost defaultHost;
+
+    // Every host by lower case name.
+    private Map<String, VirtualHost> hosts = new HashMap<String, VirtualHost>();
+
+    // Metrics registry shared with the transports.
+    private Metrics metrics;
+
+    // Access log, null if disabled.
+    private AccessLog accessLog = null;
+
+    // Cache for capsules that set cacheTtl, null if disabled.
+    private CapsuleCache capsuleCache = null;
+
+    // Resolves client certificates, null if clientCerts is off.
+    private ClientIdentities identities = null;
+
+    // Path prefixes that need a client certificate whatever the capsule
+    // or file there asks for.
+    private String[] certRequiredPaths = new String[0];
+    private String[] certAuthorisedPaths = new String[0];
+
+    /**
+     * Default constructor.
+     * @param SInfo is a ServerInfo object with the server information.
+     * @param Router is the CapsuleRouter to dispatch to.
+     * @param Cache is the FileCache to use or null for none.
+     * @param MetricsRef is the Metrics registry to record to.
+     */
+    public RequestHandler(ServerInfo SInfo, CapsuleRouter Router, FileCache Cache, Metrics MetricsRef) {
+        this.serverInfo = SInfo;
+        this.defaultHost = new VirtualHost(SInfo.getHost(), SInfo.getHostDir(), null);
+        this.defaultHost.setRouter(Router);
+        this.defaultHost.setFileCache(Cache);
+        this.initWarmer(this.defaultHost);
+        if (SInfo.getHost() != null && !SInfo.getHost().equals("")) {
+            this.hosts.put(SInfo.getHost().toLowerCase(Locale.ROOT), this.defaultHost);
+        }
+        this.metrics = MetricsRef;
+    }
+
+    /**
+     * Adds a virtual host. Requests are matched to it by the host in
+     * the request URL. Must be called before the server starts.
+     * @param vh is the VirtualHost to add.
+     */
+    public void addVirtualHost(VirtualHost vh) {
+        this.hosts.put(vh.getName().toLowerCase(Locale.ROOT), vh);
+        this.initWarmer(vh);
+    }
+
+    /**
+     * Gets the host built from the server's hostname and hostDir.
+     * @return A VirtualHost object.
+     */
+    public VirtualHost getDefaultHost() {
+        return defaultHost;
+    }
+
+    /**
+     * Has the host's file cache reload changed files that were cached
+     * so the next request for them doesn't go to disk.
+     * @param vh is the VirtualHost to set up.
+     */
+    private void initWarmer(VirtualHost vh) {
+        if (vh.getFileCache() != null) {
+            vh.getFileCache().setWarmer(path -> this.getFileResponse(vh, path));
+        }
+    }
+
+    /**
+     * Creates the response with the provided request. Async capsules
+     * are waited on.
+     * @param req is a GeminiRequest object.
+     * @return A GeminiResponse object with the response.
+     */
+    public GeminiResponse handle(GeminiRequest req) {
+        return this.handleAsync(req).toCompletableFuture().join();
+    }
+
+    /**
+     * Creates the response with the provided request. The returned stage
+     * is already complete unless the request went to an AsyncCapsuleInt
+     * capsule, in which case it completes when the capsule does. A
+     * capsule that fails or times out gives 40 TEMPORARY FAILURE.
+     * Capsules with a cacheTtl go through the CapsuleCache, so they
+     * may not be called at all or the request may wait on another one
+     * for the same key. Requests for a path or capsule that needs a
+     * client certificate get a 6x status if the certificate doesn't do.
+     * @param req is a GeminiRequest object.
+     * @return A CompletionStage with the GeminiResponse.
+     */
+    public CompletionStage<GeminiResponse> handleAsync(GeminiRequest req) {
+        // Bad request
+        VirtualHost vh = this.isGoodRequest(req) ? this.findHost(req) : null;
+        if (vh == null) {
+            GeminiResponse resp = new GeminiResponse();
+            resp.setStatus(GeminiStatusCodeDetail.BAD_REQUEST);
+            return CompletableFuture.completedFuture(resp);
+        }
+
+        // Routes, certificate paths and files all see the same path.
+        req.setPath(GeminiRequest.canonicalPath(req.getPath()));
+        CapsuleHandler c = this.findCapsule(vh, req);
+
+        // Client certificate
+        ClientIdentities ids = this.identities;
+        if (ids != null) {
+            req.setIdentity(ids.resolve(req.getSession()));
+        }
+        ClientCertPolicy policy = this.getCertPolicy(c, req);
+        if (policy != ClientCertPolicy.NONE) {
+            GeminiResponse denied = this.checkClientCert(policy, req);
+            if (denied != null) {
+                return CompletableFuture.completedFuture(denied);
+            }
+        }
+
+        CapsuleCache cache = this.capsuleCache;
+        if (c != null && c.getCacheTtl() > 0 && cache != null) {
+            String key = CapsuleCache.key(vh, req, c.isVaryOnQuery());
+            return cache.get(c, key, () -> this.runCapsule(vh, c, req));
+        }
+        return this.runCapsule(vh, c, req);
+    }
+
+    /**
+     * Gets the response a handleAsync() stage completed with. A stage
+     * that failed or completed without a response gives 40 TEMPORARY
+     * FAILURE, so the transports always have something to send.
+     * @param resp is the GeminiResponse or null.
+     * @param t is the Throwable the stage failed with or null.
+     * @return A GeminiResponse object.
+     */
+    public static GeminiResponse orFailure(GeminiResponse resp, Throwable t) {
+        if (t == null && resp != null) {
+            return resp;
+        }
+        if (t instanceof CompletionException && t.getCause() != null) {
+            t = t.getCause();
+        }
+        log.error("Request failed: " + (t == null ? "no response" : t.toString()));
+        GeminiResponse fail = new GeminiResponse();
+        fail.setStatus(GeminiStatusCodeDetail.TEMPORARY_FAILURE);
+        return fail;
+    }
+
+    /**
+     * Runs the capsule, or serves the file if there's no capsule or it
+     * didn't return a response.
+     * @param vh is the VirtualHost the request is for.
+     * @param c is the CapsuleHandler or null.
+     * @param req is a GeminiRequest object.
+     * @return A CompletionStage with the GeminiResponse.
+     */
+    private CompletionStage<GeminiResponse> runCapsule(VirtualHost vh, CapsuleHandler c, GeminiRequest req) {
+        long start = System.nanoTime();
+        if (c != null && c.isAsync()) {
+            return c.handleAsync(req).handle((resp, t) -> {
+                this.metrics.capsule(c.getPath(), System.nanoTime() - start);
+                if (t == null && resp != null) {
+                    resp.setCapsuleName(c.getCapsuleClass().getName());
+                    return resp;
+                }
+                if (t instanceof CompletionException && t.getCause() != null) {
+                    t = t.getCause();
+                }
+                if (t instanceof TimeoutException) {
+                    log.warn("Capsule '" + c.getCapsuleClass().getName() + "' timed out after " + c.getTimeout() + "ms.");
+                } else if (t != null) {
+                    log.error("Capsule '" + c.getCapsuleClass().getName() + "' failed: " + t.getMessage());
+                } else {
+                    log.error("Capsule '" + c.getCapsuleClass().getName() + "' completed without a response.");
+                }
+                GeminiResponse fail = new GeminiResponse();
+                fail.setStatus(GeminiStatusCodeDetail.TEMPORARY_FAILURE);
+                return fail;
+            });
+        }
+
+        // Attempt to execute the capsule
+        GeminiResponse resp = this.getCapsuleResponse(c, req);
+        if (c != null) {
+            this.metrics.capsule(c.getPath(), System.nanoTime() - start);
+        }
+
+        // Didn't find a response with the module, let's try a file.
+        if (resp == null) {
+            long fileStart = System.nanoTime();
+            resp = this.getFileResponse(vh, req.getPath());
+            this.metrics.file(System.nanoTime() - fileStart);
+        }
+
+        return CompletableFuture.completedFuture(resp);
+    }
+
+    /**
+     * Records a response once it has been written, to the metrics and
+     * the access log. Called by the transports.
+     * @param peer is the client address.
+     * @param req is the GeminiRequest or null if none was read.
+     * @param status is the response status.
+     * @param bytes is the number of bytes written including the header.
+     * @param startNanos is the System.nanoTime() the connection was
+     * accepted at.
+     */
+    public void responseSent(InetAddress peer, GeminiRequest req, GeminiStatusCodeDetail status, long bytes, long startNanos) {
+        this.metrics.response(status, bytes);
+        if (this.accessLog != null) {
+            this.accessLog.log(peer, req, status, bytes, System.nanoTime() - startNanos);
+        }
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public AccessLog getAccessLog() {
+        return accessLog;
+    }
+
+    public void setAccessLog(AccessLog accessLog) {
+        this.accessLog = accessLog;
+    }
+
+    public CapsuleCache getCapsuleCache() {
+        return capsuleCache;
+    }
+
+    public void setCapsuleCache(CapsuleCache capsuleCache) {
+        this.capsuleCache = capsuleCache;
+    }
+
+    public ClientIdentities getIdentities() {
+        return identities;
+    }
+
+    public void setIdentities(ClientIdentities identities) {
+        this.identities = identities;
+    }
+
+    /**
+     * Sets the path prefixes that need a client certificate. Must be
+     * called before the server starts.
+     * @param required is the prefixes that need any valid certificate.
+     * @param authorised is the prefixes that need a known certificate.
+     */
+    public void setCertPaths(String[] required, String[] authorised) {
+        this.certRequiredPaths = canonicalPaths(required);
+        this.certAuthorisedPaths = canonicalPaths(authorised);
+    }
+
+    private static String[] canonicalPaths(String[] paths) {
+        String[] ret = new String[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            ret[i] = GeminiRequest.canonicalPath(paths[i].startsWith("/") ? paths[i] : "/" + paths[i]);
+        }
+        return ret;
+    }
+
+    /**
+     * Checks if the path is the prefix or below it, on segment
+     * boundaries so '/members' doesn't cover '/membership'.
+     * @param path is the canonical request path.
+     * @param prefix is the canonical prefix.
+     * @return A boolean with true if the prefix covers the path.
+     */
+    private static boolean underPrefix(String path, String prefix) {
+        if (prefix.equals("/")) return true;
+        return path.startsWith(prefix) && (path.length() == prefix.length() || path.charAt(prefix.length()) == '/');
+    }
+
+    /**
+     * Gets the strictest client certificate policy of the capsule and
+     * the configured path prefixes.
+     * @param c is the CapsuleHandler or null.
+     * @param req is the GeminiRequest object.
+     * @return A ClientCertPolicy.
+     */
+    private ClientCertPolicy getCertPolicy(CapsuleHandler c, GeminiRequest req) {
+        String path = req.getPath().isEmpty() ? "/" : req.getPath();
+        for (String prefix : this.certAuthorisedPaths) {
+            if (underPrefix(path, prefix)) return ClientCertPolicy.AUTHORISED;
+        }
+        ClientCertPolicy policy = c == null ? ClientCertPolicy.NONE : c.getClientCert();
+        if (policy == ClientCertPolicy.NONE) {
+            for (String prefix : this.certRequiredPaths) {
+                if (underPrefix(path, prefix)) return ClientCertPolicy.REQUIRED;
+            }
+        }
+        return policy;
+    }
+
+    /**
+     * Checks the request's client certificate against the policy.
+     * @param policy is the ClientCertPolicy, not NONE.
+     * @param req is the GeminiRequest object.
+     * @return A 6x GeminiResponse or null if the certificate is fine.
+     */
+    private GeminiResponse checkClientCert(ClientCertPolicy policy, GeminiRequest req) {
+        ClientIdentity id = req.getIdentity();
+        GeminiResponse resp = new GeminiResponse();
+        if (id == null) {
+            resp.setStatus(GeminiStatusCodeDetail.CLIENT_CERTIFICATE_REQUIRED);
+            resp.setMeta("Client certificate required");
+        } else if (!id.isValid()) {
+            resp.setStatus(GeminiStatusCodeDetail.CERTIFICATE_NOT_VALID);
+            resp.setMeta("Certificate expired or not yet valid");
+        } else if (policy == ClientCertPolicy.AUTHORISED && !id.isAuthorised()) {
+            resp.setStatus(GeminiStatusCodeDetail.CERTIFICATE_NOT_AUTHORISED);
+            resp.setMeta("Certificate not authorised");
+        } else {
+            return null;
+        }
+        return resp;
+    }
+
+    /**
+     * Finds the host for the request. Host names are nearly always sent
+     * in lower case so the lower case copy is only made on a miss.
+     * @param req is the GeminiRequest object.
+     * @return A VirtualHost or null if the server doesn't serve the host.
+     */
+    private VirtualHost findHost(GeminiRequest req) {
+        String name = req.getHost();
+        VirtualHost vh = this.hosts.get(name);
+        if (vh == null) {
+            vh = this.hosts.get(name.toLowerCase(Locale.ROOT));
+        }
+        if (vh == null) {
+            String host = this.defaultHost.getName();
+            if (host != null && !host.equals("")) {
+                log.debug("Invalid host: {}", req.rawRequest);
+                return null;
+            }
+            vh = this.defaultHost;
+        }
+        return vh;
+    }
+
+    /**
+     * Finds the capsule for the request path and sets the captured path
+     * parameters on the request.
+     * @param vh is the VirtualHost the request is for.
+     * @param req is the GeminiRequest object.
+     * @return A CapsuleHandler or null if none matches.
+     */
+    private CapsuleHandler findCapsule(VirtualHost vh, GeminiRequest req) {
+        CapsuleRouter.Match m = vh.getRouter().match(req.getPath());
+        if (m == null) return null;
+        req.setRoute(m);
+        return m.getHandler();
+    }
+
+    /**
+     * Executes the request with the provided capsule if there is one and
+     * returns the response.
+     * @param c is the CapsuleHandler or null.
+     * @param req is the GeminiRequest object.
+     * @return A GeminiResponse object with the response if found and
+     * null if not.
+     */
+    private GeminiResponse getCapsuleResponse(CapsuleHandler c, GeminiRequest req) {
+        GeminiResponse resp = null;
+
+        if (c != null) {
+            try {
+                resp = c.handle(req);
+                if (resp != null) {
+                    resp.setCapsuleName(c.getCapsuleClass().getName());
+                }
+            } catch (Throwable t) {
+                log.error("Capsule '" + c.getCapsuleClass().getName() + "' failed: " + t.getMessage());
+            }
+        }
+
+        return resp;
+    }
+
+    /**
+     * Attempts to find a matching file and if so it returns the response.
+     * Cached responses are returned without touching the file system,
+     * and hosts with a content pack are served only from the pack.
+     * @param vh is the VirtualHost the request is for.
+     * @param path is the request path.
+     * @return A GeminiResponse object with the file or a 51 NOT FOUND
+     * response.
+     */
+    private GeminiResponse getFileResponse(VirtualHost vh, String path) {
+        GeminiResponse resp = new GeminiResponse();
+
+        ContentPack pack = vh.getPack();
+        if (pack != null) {
+            ByteBuffer region = pack.get(path);
+            if (region == null) {
+                resp.setStatus(GeminiStatusCodeDetail.NOT_FOUND);
+            } else {
+                resp.setEncoded(region);
+            }
+            return resp;
+        }
+
+        FileCache fileCache = vh.getFileCache();
+
+        if (fileCache != null) {
+            byte[] cached = fileCache.get(path);
+            if (cached != null) {
+                resp.setEncoded(cached);
+                return resp;
+            }
+        }
+
+        long gen = fileCache != null ? fileCache.generation() : 0;
+        File f = this.findGeminiFile(vh.getHostDir(), path);
+        if (f == null) {
+            resp.setStatus(GeminiStatusCodeDetail.NOT_FOUND);
+            return resp;
+        }
+
+        // Files too big for the cache are streamed from disk.
+        if (fileCache == null || f.length() > fileCache.getMaxEntryBytes()) {
+            resp.setFile(f.toPath());
+            return resp;
+        }
+
+        try {
+            resp.setBody(Files.readAllBytes(f.toPath()));
+            resp.setMediaType(GeminiMediaType.forFileName(f.getName()));
+        } catch (IOException e) {
+            log.error(e.getMessage());
+            resp.setStatus(GeminiStatusCodeDetail.NOT_FOUND);
+            return resp;
+        }
+
+        fileCache.put(path, f.toPath(), resp.getBytes(), gen);
+        return resp;
+    }
+
+    /**
+     * Checks to see if the request is good and valid.
+     * @param req is the GeminiRequest object.
+     * @return A boolean with true for valid and false for not.
+     */
+    private boolean isGoodRequest(GeminiRequest req) {
+        if (!req.isValid()) {
+            log.debug("Malformed request: {}", req.rawRequest);
+            return false;
+        } else if (req.getPath().contains("..")) {
+            log.debug("Bad request: {}", req.rawRequest);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Checks if a segment of the path starts with '.', such as the
+     * '.git' in '/.git/config'. Files under these are never served.
+     * @param path is the request path.
+     * @return A boolean with true if the path is hidden.
+     */
+    static boolean isHiddenPath(String path) {
+        return path.startsWith(".") || path.contains("/.");
+    }
+
+    /**
+     * Tries to find the requested file with the provided request path.
+     * Gemini files are looked up by adding the .gmi, .gmni and .gemini
+     * extensions, any other file is served if the path names it exactly.
+     * Dotfiles and anything in a dot directory are never served.
+     * @param hostDir is the directory to look in or null for none.
+     * @param path is the request path.
+     * @return A File object if found and null if not.
+     */
+    private File findGeminiFile(String hostDir, String path) {
+        File ret = null;
+        if (hostDir == null || hostDir.equals("") || isHiddenPath(path)) {
+            return ret;
+        }
+
+        String fileBase = hostDir;
+        if (path.length() > 0 && !path.equals("/")) {
+            fileBase += path;
+        } else {
+            fileBase += "/index";
+        }
+
+        // Remove any trailing slashes
+        while (fileBase.endsWith("/")) {
+            fileBase = fileBase.substring(0, fileBase.length()-1);
+        }
+
+        File f = new File(fileBase + ".gmi");
+        if (f.exists()) {
+            return f;
+        }
+
+        f = new File(fileBase + ".gmni");
+        if (f.exists()) {
+            return f;
+        }
+
+        f = new File(fileBase + ".gemini");
+        if (f.exists()) {
+            return f;
+        }
+
+        f = new File(fileBase);
+        if (f.isFile()) {
+            return f;
+        }
+
+        return ret;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * ResponseOutput is where a GeminiResponse writes itself. Each transport
+ * provides its own implementation so file bodies can be sent the
+ * cheapest way the transport allows.
+ */
+public interface ResponseOutput {
+    /**
+     * Writes the remaining bytes of the buffer. The buffer may be held
+     * on to until it's sent so it must not be changed afterwards.
+     * @param buf is the ByteBuffer to write.
+     * @throws IOException
+     */
+    void write(ByteBuffer buf) throws IOException;
+
+    /**
+     * Writes the remaining bytes of each buffer in order, sending them
+     * together where the transport can. The same rules as write(buf)
+     * apply to each buffer.
+     * @param bufs is the array of ByteBuffers to write.
+     * @throws IOException
+     */
+    default void write(ByteBuffer[] bufs) throws IOException {
+        for (ByteBuffer buf : bufs) {
+            this.write(buf);
+        }
+    }
+
+    /**
+     * Writes a region of a file. The channel may be closed as soon as
+     * this returns.
+     * @param ch is the FileChannel to read from.
+     * @param position is the file position to start at.
+     * @param count is the number of bytes to write.
+     * @throws IOException
+     */
+    void transferFrom(FileChannel ch, long position, long count) throws IOException;
+
+    /**
+     * Gets the number of bytes written so far.
+     * @return A long with the number of bytes.
+     */
+    long getBytesWritten();
+}
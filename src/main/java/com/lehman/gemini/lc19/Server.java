@@ -17,23 +17,50 @@
 
 package com.lehman.gemini.lc19;
 
-import eu.infomas.annotation.AnnotationDetector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
 import javax.net.ssl.SSLServerSocket;
-import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509KeyManager;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
-import java.lang.reflect.Modifier;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.RejectedExecutionHandler;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -46,6 +73,9 @@ import java.util.concurrent.TimeUnit;
  * loadProperties()
  * init()
  * run()
+ *
+ * shutdown() can be called from another thread (Main calls it from a
+ * shutdown hook) to stop accepting and let open connections finish.
  */
 public class Server {
     private final static Logger log = LoggerFactory.getLogger(Main.class);
@@ -62,26 +92,150 @@ public class Server {
     // Default Gemini port
     protected int port = 1965;
 
+    // Set SO_REUSEPORT so a new server can bind the port while the
+    // old one is still draining.
+    protected boolean reusePort = false;
+
+    // Milliseconds shutdown() waits for open connections to finish.
+    protected long shutdownTimeout = 30000;
+
     // hostDir is the host directory that files are
     // served from. If not set, this feature isn't active.
     protected String hostDir = null;
 
+    // Content pack built from hostDir by ContentPacker, served instead
+    // of hostDir when set and mapped again when the file is replaced.
+    protected String contentPack = "";
+
+    // Additional hosts served along with hostname, each with its own
+    // hostDir, capsules and certificate.
+    protected List<VirtualHost> virtualHosts = new ArrayList<VirtualHost>();
+
     // Max number of threads to use
-    protected ThreadPoolExecutor threadPool;
+    protected ExecutorService threadPool;
     protected int minThreads = 10;
     protected int maxThreads = 100;
 
+    // Admission control settings, see AdmissionControl.
+    protected int queueDepth = 100;
+    protected long queueTimeout = 5000;
+    protected int handshakeTimeout = 10000;
+    protected int requestTimeout = 10000;
+    protected int writeTimeout = 30000;
+    protected int slowDownSeconds = 5;
+    private AdmissionControl admission = null;
+
+    // Per client limits, see ClientLimiter. 0 disables a limit.
+    protected int clientMaxConnections = 10;
+    protected double clientRequestRate = 10;
+    protected int clientBurst = 20;
+    protected int clientMaxTracked = 65536;
+    private ClientLimiter limiter = null;
+
+    // Default time in milliseconds an async capsule has to complete.
+    protected long capsuleTimeout = 30000;
+
+    // Scan for @Capsule classes even when there's a capsule index.
+    protected boolean capsuleScan = false;
+
+    // Executor type, either 'platform' for the bounded thread pool
+    // or 'virtual' for a virtual thread per connection.
+    protected String executor = "platform";
+
     // Available protocols
     protected String[] protocols = new String[] { "TLSv1.3", "TLSv1.2" };
 
-    // Available cipher suites.
-    protected String[] cipherSuites = this.getAvailableCipherSuites();
+    // Available cipher suites in order of preference.
+    protected String[] cipherSuites = this.getDefaultCipherSuites();
+
+    // TLS session cache size and lifetime in seconds, and whether
+    // stateless session tickets are issued.
+    protected int sessionCacheSize = 20480;
+    protected int sessionTimeout = 86400;
+    protected boolean sessionTickets = true;
+
+    // Ask clients for a certificate, the identity store file of
+    // fingerprint=name lines, how long and how many resolved identities
+    // are cached, and path prefixes that need a certificate.
+    protected boolean clientCerts = false;
+    protected String clientCertIdentities = "";
+    protected long clientCertCacheTtl = 300000;
+    protected int clientCertCacheSize = 10000;
+    protected String[] clientCertRequiredPaths = new String[0];
+    protected String[] clientCertAuthorisedPaths = new String[0];
+    private IdentityStore identityStore = null;
+    private ClientIdentities clientIdentities = null;
+
+    // SSLContext and the parameters applied to every connection.
+    private SSLContext sslContext = null;
+    private SSLParameters sslParameters = null;
+
+    // Transport to use, either 'blocking' or 'nio'.
+    protected String transport = "blocking";
+
+    // Number of event loop threads used by the nio transport.
+    protected int eventLoops = Runtime.getRuntime().availableProcessors();
 
     // SSL server socket
     private SSLServerSocket serverSocket = null;
 
-    // Capsules map
-    private Map<String, Class> capsules = new HashMap<String, Class>();
+    // Listening channel inherited from systemd socket activation or
+    // inetd and the selector it's accepted on. Used by the blocking
+    // transport instead of serverSocket.
+    private ServerSocketChannel inheritedChannel = null;
+    private Selector acceptSelector = null;
+
+    // Open connections of the blocking transport, the nio transport
+    // counts its own.
+    private final Set<ServerThread> connections = ConcurrentHashMap.newKeySet();
+
+    // Closes blocking connections that go past a timeout.
+    private ConnectionReaper reaper = null;
+
+    // Set once shutdown() has started.
+    private volatile boolean stopping = false;
+
+    // NIO transport, only set when transport is 'nio'.
+    private NioTransport nioTransport = null;
+
+    // Capsules and the routes built from them.
+    private List<CapsuleHandler> capsules = new ArrayList<CapsuleHandler>();
+    private CapsuleRouter router = null;
+
+    // Directory of capsule jars that are reloaded when they change,
+    // empty to disable, and the capsules currently loaded from it.
+    protected String capsuleDir = "";
+    private CapsuleReloader capsuleReloader = null;
+    private List<CapsuleHandler> jarCapsules = new ArrayList<CapsuleHandler>();
+
+    // File cache settings, a maxBytes of 0 disables the cache.
+    protected long fileCacheMaxBytes = 64L * 1024 * 1024;
+    protected long fileCacheMaxEntryBytes = 1024 * 1024;
+    private FileCache fileCache = null;
+
+    // Capsule response cache settings, a maxBytes of 0 disables the
+    // cache even for capsules that set cacheTtl.
+    protected long capsuleCacheMaxBytes = 16L * 1024 * 1024;
+    protected long capsuleCacheMaxEntryBytes = 1024 * 1024;
+    private CapsuleCache capsuleCache = null;
+
+    // Request handler shared by all connections.
+    private RequestHandler requestHandler = null;
+
+    // Metrics registry, the path of the metrics capsule (empty to
+    // disable) and the local HTTP port for Prometheus (0 to disable).
+    private Metrics metrics = new Metrics();
+    protected String metricsPath = "";
+    protected String metricsBind = "127.0.0.1";
+    protected int metricsPort = 0;
+    private MetricsServer metricsServer = null;
+
+    // Access log settings, an empty file disables the log.
+    protected String accessLogFile = "";
+    protected long accessLogMaxBytes = 10L * 1024 * 1024;
+    protected int accessLogMaxFiles = 5;
+    protected int accessLogBufferSize = 8192;
+    private AccessLog accessLog = null;
 
     /**
      * Default constructor
@@ -95,8 +249,40 @@ public class Server {
     public void init() {
         try {
             this.initThreadPool();
+            this.metrics.setThreadPool(this.threadPool);
+            this.metrics.setAdmission(this.admission);
+            this.initLimiter();
             this.initCapsules();
-            this.serverSocket = this.createServerSocket(this.port);
+            this.initFileCache();
+            this.initAccessLog();
+            this.requestHandler = new RequestHandler(this.getServerInfo(), this.router, this.fileCache, this.metrics);
+            this.requestHandler.setAccessLog(this.accessLog);
+            this.initCapsuleCache();
+            this.initClientCerts();
+            this.requestHandler.getDefaultHost().setContentPack(this.contentPack);
+            this.initContentPack(this.requestHandler.getDefaultHost());
+            this.initVirtualHosts();
+            this.initCapsuleReloader();
+            this.initTls();
+            if (this.metricsPort > 0) {
+                this.metricsServer = new MetricsServer(this.metrics);
+                this.metricsServer.start(this.metricsBind, this.metricsPort);
+            }
+            ServerSocketChannel inherited = this.getInheritedChannel();
+            if (this.transport.equals("nio")) {
+                this.nioTransport = this.createNioTransport(this.port, inherited);
+            } else if (inherited != null) {
+                inherited.configureBlocking(false);
+                this.acceptSelector = Selector.open();
+                inherited.register(this.acceptSelector, SelectionKey.OP_ACCEPT);
+                this.inheritedChannel = inherited;
+            } else {
+                this.serverSocket = this.createServerSocket(this.port);
+            }
+            if (this.nioTransport == null) {
+                this.reaper = new ConnectionReaper(this.connections);
+                this.reaper.start();
+            }
         } catch (IOException e) {
             log.error(e.getMessage());
         }
@@ -104,23 +290,163 @@ public class Server {
 
     /**
      * Runs the server. Ensure init() has already been called prior
-     * to calling run().
+     * to calling run(). Returns once shutdown() has stopped accepting.
      */
     public void run() {
         log.info("Starting Lauch Complex 19 Gemini Server.");
-        while (true) {
+        if (this.nioTransport != null) {
+            this.nioTransport.run();
+            return;
+        }
+        while (!this.stopping) {
             try {
-                SSLSocket soc = (SSLSocket) this.serverSocket.accept();
-                log.info("New client connection from '" + soc.getInetAddress().getHostAddress() + "'.");
+                SSLSocket soc = this.accept();
+                if (soc == null) break;
+                // Don't hold back the last segment of a response.
+                soc.setTcpNoDelay(true);
+                this.metrics.connectionAccepted();
+                if (log.isDebugEnabled()) {
+                    log.debug("New client connection from '" + soc.getInetAddress().getHostAddress() + "'.");
+                }
 
-                ServerThread st = new ServerThread(this.getServerInfo(), soc, this.capsules);
+                // Over limit clients are answered from the shed threads
+                // so they never take a pool thread.
+                ClientLimiter.Client client = null;
+                if (this.limiter != null) {
+                    client = this.limiter.open(soc.getInetAddress());
+                    if (client == null) {
+                        ServerThread st = new ServerThread(this.getServerInfo(), soc, this.requestHandler, this.admission, this.threadPool);
+                        this.admission.shed(st, this.admission.slowDown(this.limiter.retryAfter(soc.getInetAddress(), this.slowDownSeconds)));
+                        continue;
+                    }
+                }
+
+                ServerThread st = new ServerThread(this.getServerInfo(), soc, this.requestHandler, this.admission, this.threadPool, this.connections);
+                st.setClient(client);
                 this.threadPool.execute(st);
+            } catch (IOException e) {
+                if (!this.stopping) {
+                    log.error(e.getMessage());
+                }
+            }
+        }
+        if (this.acceptSelector != null) {
+            try {
+                this.acceptSelector.close();
             } catch (IOException e) {
                 log.error(e.getMessage());
             }
         }
     }
 
+    /**
+     * Stops the server. Accepting stops first so a server started with
+     * reusePort, or systemd holding the socket, gets the new
+     * connections. Connections already accepted are given until the
+     * timeout to finish and are then closed. Safe to call more than once.
+     * @param timeout is how long to wait for open connections.
+     */
+    public void shutdown(Duration timeout) {
+        synchronized (this) {
+            if (this.stopping) return;
+            this.stopping = true;
+        }
+        long deadline = System.nanoTime() + timeout.toNanos();
+        log.info("Shutting down, waiting up to " + timeout.toMillis() + " ms for open connections.");
+
+        try {
+            if (this.serverSocket != null) this.serverSocket.close();
+        } catch (IOException e) {
+            log.error(e.getMessage());
+        }
+        // An inherited channel is left open. Closing it points stdout and
+        // stderr at /dev/null, and systemd keeps queueing connections on
+        // it for the next process anyway.
+        if (this.acceptSelector != null) {
+            this.acceptSelector.wakeup();
+        }
+        if (this.nioTransport != null) {
+            this.nioTransport.stopAccepting();
+        }
+
+        // Connections still handshaking or waiting on an async capsule
+        // need the pool for their response, so it's only shut down once
+        // they're gone.
+        boolean drained = this.awaitConnections(deadline);
+        if (this.nioTransport != null) {
+            this.nioTransport.close();
+        }
+        for (ServerThread st : this.connections) {
+            st.abort();
+        }
+        if (this.reaper != null) {
+            this.reaper.stop();
+        }
+
+        if (this.threadPool != null) {
+            this.threadPool.shutdown();
+            try {
+                long left = Math.max(0, deadline - System.nanoTime());
+                if (!this.threadPool.awaitTermination(left, TimeUnit.NANOSECONDS)) {
+                    this.threadPool.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                this.threadPool.shutdownNow();
+            }
+        }
+
+        if (this.metricsServer != null) {
+            this.metricsServer.stop();
+        }
+        if (this.accessLog != null) {
+            this.accessLog.close();
+        }
+        if (this.capsuleCache != null) {
+            this.capsuleCache.stop();
+        }
+        if (this.admission != null) {
+            this.admission.stop();
+        }
+        if (drained) {
+            log.info("Shutdown complete.");
+        } else {
+            log.warn("Shutdown timed out, closed the remaining connections.");
+        }
+    }
+
+    /**
+     * Waits for the open connections to close.
+     * @param deadline is the System.nanoTime() to give up at.
+     * @return A boolean with true if every connection closed.
+     */
+    private boolean awaitConnections(long deadline) {
+        while (this.getOpenConnections() > 0) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                return false;
+            }
+            try {
+                Thread.sleep(Math.min(TimeUnit.NANOSECONDS.toMillis(left) + 1, 50));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the number of accepted connections that haven't been closed.
+     * @return An int with the count.
+     */
+    public int getOpenConnections() {
+        if (this.nioTransport != null) {
+            return this.nioTransport.getOpenConnections();
+        }
+        return this.connections.size();
+    }
+
     /**
      * Loads properties with the provided property file name.
      * @param PropFile is a property file to load.
@@ -135,120 +461,345 @@ public class Server {
         this.setKeyStore(props.getProperty("keystore.file", ""));
         this.setKeyStorePassword(props.getProperty("keystore.password", ""));
 
+        String protocols = props.getProperty("tls.protocols", "");
+        if (!protocols.trim().equals("")) {
+            this.setProtocols(protocols.trim().split("\\s*,\\s*"));
+        }
+        String suites = props.getProperty("tls.cipherSuites", "");
+        if (!suites.trim().equals("")) {
+            this.setCipherSuites(suites.trim().split("\\s*,\\s*"));
+        }
+        this.setSessionCacheSize(Integer.parseInt(props.getProperty("tls.sessionCacheSize", "20480")));
+        this.setSessionTimeout(Integer.parseInt(props.getProperty("tls.sessionTimeout", "86400")));
+        this.setSessionTickets(Boolean.parseBoolean(props.getProperty("tls.sessionTickets", "true")));
+
+        this.setClientCerts(Boolean.parseBoolean(props.getProperty("clientCerts", "false")));
+        this.setClientCertIdentities(props.getProperty("clientCert.identities", ""));
+        this.setClientCertCacheTtl(Long.parseLong(props.getProperty("clientCert.cacheTtl", "300000")));
+        this.setClientCertCacheSize(Integer.parseInt(props.getProperty("clientCert.cacheSize", "10000")));
+        String certPaths = props.getProperty("clientCert.requiredPaths", "");
+        if (!certPaths.trim().equals("")) {
+            this.setClientCertRequiredPaths(certPaths.trim().split("\\s*,\\s*"));
+        }
+        certPaths = props.getProperty("clientCert.authorisedPaths", "");
+        if (!certPaths.trim().equals("")) {
+            this.setClientCertAuthorisedPaths(certPaths.trim().split("\\s*,\\s*"));
+        }
+
         this.setHost(props.getProperty("hostname", "localhost"));
         this.setPort(Integer.parseInt(props.getProperty("port", "1965")));
+        this.setReusePort(Boolean.parseBoolean(props.getProperty("reusePort", "false")));
+        this.setShutdownTimeout(Long.parseLong(props.getProperty("shutdownTimeout", "30000")));
 
         this.setMinThreads(Integer.parseInt(props.getProperty("minThreads", "10")));
         this.setMaxThreads(Integer.parseInt(props.getProperty("maxThreads", "100")));
+        this.setExecutor(props.getProperty("executor", "platform"));
+        this.setQueueDepth(Integer.parseInt(props.getProperty("queueDepth", "100")));
+        this.setQueueTimeout(Long.parseLong(props.getProperty("queueTimeout", "5000")));
+        this.setHandshakeTimeout(Integer.parseInt(props.getProperty("handshakeTimeout", "10000")));
+        this.setRequestTimeout(Integer.parseInt(props.getProperty("requestTimeout", "10000")));
+        this.setWriteTimeout(Integer.parseInt(props.getProperty("writeTimeout", "30000")));
+        this.setSlowDownSeconds(Integer.parseInt(props.getProperty("slowDownSeconds", "5")));
+        this.setClientMaxConnections(Integer.parseInt(props.getProperty("client.maxConnections", "10")));
+        this.setClientRequestRate(Double.parseDouble(props.getProperty("client.requestRate", "10")));
+        this.setClientBurst(Integer.parseInt(props.getProperty("client.burst", "20")));
+        this.setClientMaxTracked(Integer.parseInt(props.getProperty("client.maxTracked", "65536")));
+        this.setCapsuleTimeout(Long.parseLong(props.getProperty("capsuleTimeout", "30000")));
+        this.setCapsuleDir(props.getProperty("capsuleDir", ""));
+        this.setCapsuleScan(Boolean.parseBoolean(props.getProperty("capsuleScan", "false")));
 
         this.setHostDir(props.getProperty("hostDir", null));
+        this.setContentPack(props.getProperty("contentPack", ""));
+
+        String vhosts = props.getProperty("vhosts", "");
+        if (!vhosts.trim().equals("")) {
+            for (String name : vhosts.trim().split("\\s*,\\s*")) {
+                VirtualHost vh = new VirtualHost(name,
+                        props.getProperty("vhost." + name + ".hostDir", null),
+                        props.getProperty("vhost." + name + ".keyAlias", null));
+                vh.setContentPack(props.getProperty("vhost." + name + ".contentPack", null));
+                this.addVirtualHost(vh);
+            }
+        }
+        this.setFileCacheMaxBytes(Long.parseLong(props.getProperty("fileCache.maxBytes", "" + (64L * 1024 * 1024))));
+        this.setFileCacheMaxEntryBytes(Long.parseLong(props.getProperty("fileCache.maxEntryBytes", "" + (1024 * 1024))));
+        this.setCapsuleCacheMaxBytes(Long.parseLong(props.getProperty("capsuleCache.maxBytes", "" + (16L * 1024 * 1024))));
+        this.setCapsuleCacheMaxEntryBytes(Long.parseLong(props.getProperty("capsuleCache.maxEntryBytes", "" + (1024 * 1024))));
+
+        this.setTransport(props.getProperty("transport", "blocking"));
+        this.setEventLoops(Integer.parseInt(props.getProperty("eventLoops", "" + Runtime.getRuntime().availableProcessors())));
+
+        this.setMetricsPath(props.getProperty("metrics.path", ""));
+        this.setMetricsBind(props.getProperty("metrics.bind", "127.0.0.1"));
+        this.setMetricsPort(Integer.parseInt(props.getProperty("metrics.port", "0")));
+
+        this.setAccessLogFile(props.getProperty("accessLog.file", ""));
+        this.setAccessLogMaxBytes(Long.parseLong(props.getProperty("accessLog.maxBytes", "" + (10L * 1024 * 1024))));
+        this.setAccessLogMaxFiles(Integer.parseInt(props.getProperty("accessLog.maxFiles", "5")));
+        this.setAccessLogBufferSize(Integer.parseInt(props.getProperty("accessLog.bufferSize", "8192")));
     }
 
     /**
-     * Gets the available cipher suites. This list was obtained from
-     * the doc here: https://java.com/en/configure_crypto.html.
-     * @return An array of Strings with the available cipher suites.
+     * Gets the default cipher suites in order of preference. The TLS 1.3
+     * suites come first, then the ECDHE suites with AEAD ciphers, then
+     * ECDHE with CBC and DHE for older clients. Static RSA and ECDH key
+     * exchange aren't offered. Suites the JDK doesn't support are
+     * dropped when the SSLContext is built.
+     * @return An array of Strings with the cipher suites.
      */
-    private String[] getAvailableCipherSuites() {
+    private String[] getDefaultCipherSuites() {
         return new String[] {
-            "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384",
+            "TLS_AES_128_GCM_SHA256",
+            "TLS_AES_256_GCM_SHA384",
+            "TLS_CHACHA20_POLY1305_SHA256",
             "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256",
-            "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384",
+            "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384",
+            "TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256",
             "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
-            "TLS_DHE_RSA_WITH_AES_256_GCM_SHA384",
-            "TLS_DHE_DSS_WITH_AES_256_GCM_SHA384",
-            "TLS_DHE_RSA_WITH_AES_128_GCM_SHA256",
-            "TLS_DHE_DSS_WITH_AES_128_GCM_SHA256",
-            "TLS_ECDHE_ECDSA_WITH_AES_256_CBC_SHA384",
-            "TLS_ECDHE_RSA_WITH_AES_256_CBC_SHA384",
+            "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384",
+            "TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256",
             "TLS_ECDHE_ECDSA_WITH_AES_128_CBC_SHA256",
+            "TLS_ECDHE_ECDSA_WITH_AES_256_CBC_SHA384",
             "TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA256",
-            "TLS_DHE_RSA_WITH_AES_256_CBC_SHA256",
-            "TLS_DHE_DSS_WITH_AES_256_CBC_SHA256",
-            "TLS_DHE_RSA_WITH_AES_128_CBC_SHA256",
-            "TLS_DHE_DSS_WITH_AES_128_CBC_SHA256",
-            "TLS_ECDH_ECDSA_WITH_AES_256_GCM_SHA384",
-            "TLS_ECDH_RSA_WITH_AES_256_GCM_SHA384",
-            "TLS_ECDH_ECDSA_WITH_AES_128_GCM_SHA256",
-            "TLS_ECDH_RSA_WITH_AES_128_GCM_SHA256",
-            "TLS_ECDH_ECDSA_WITH_AES_256_CBC_SHA384",
-            "TLS_ECDH_RSA_WITH_AES_256_CBC_SHA384",
-            "TLS_ECDH_ECDSA_WITH_AES_128_CBC_SHA256",
-            "TLS_ECDH_RSA_WITH_AES_128_CBC_SHA256",
-            "TLS_ECDHE_ECDSA_WITH_AES_256_CBC_SHA",
-            "TLS_ECDHE_RSA_WITH_AES_256_CBC_SHA",
-            "TLS_ECDHE_ECDSA_WITH_AES_128_CBC_SHA",
-            "TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA",
-            "TLS_DHE_RSA_WITH_AES_256_CBC_SHA",
-            "TLS_DHE_DSS_WITH_AES_256_CBC_SHA",
-            "TLS_DHE_RSA_WITH_AES_128_CBC_SHA",
-            "TLS_DHE_DSS_WITH_AES_128_CBC_SHA",
-            "TLS_ECDH_ECDSA_WITH_AES_256_CBC_SHA",
-            "TLS_ECDH_RSA_WITH_AES_256_CBC_SHA",
-            "TLS_ECDH_ECDSA_WITH_AES_128_CBC_SHA",
-            "TLS_ECDH_RSA_WITH_AES_128_CBC_SHA",
-            "TLS_RSA_WITH_AES_256_GCM_SHA384",
-            "TLS_RSA_WITH_AES_128_GCM_SHA256",
-            "TLS_RSA_WITH_AES_256_CBC_SHA256",
-            "TLS_RSA_WITH_AES_128_CBC_SHA256",
-            "TLS_RSA_WITH_AES_256_CBC_SHA",
-            "TLS_RSA_WITH_AES_128_CBC_SHA",
+            "TLS_ECDHE_RSA_WITH_AES_256_CBC_SHA384",
+            "TLS_DHE_RSA_WITH_AES_128_GCM_SHA256",
+            "TLS_DHE_RSA_WITH_AES_256_GCM_SHA384",
             "TLS_EMPTY_RENEGOTIATION_INFO_SCSV"
         };
     }
 
     /**
-     * Initializes any capsules. This searches all classes for the @Capsule annotation
-     * and then puts them in the capsules Map which is used later to look up the
-     * class to use with the provided path.
+     * Initializes any capsules. This loads the capsule indexes generated at
+     * compile time, or searches all classes for the @Capsule annotation if
+     * there are none, and then creates a CapsuleHandler for each which the CapsuleRouter uses
+     * to look up the capsule to use with the provided path. All of the
+     * reflective lookups happen here once rather than on every request.
+     * Capsules in capsuleDir jars are loaded as well and reloaded when
+     * the jars change.
      */
     private void initCapsules() throws IOException {
-        ArrayList<Class> capsuleClasses = new ArrayList<Class>();
-        final AnnotationDetector.TypeReporter reporter = new AnnotationDetector.TypeReporter() {
-            @Override
-            public void reportTypeAnnotation(Class<? extends Annotation> aClass, String s) {
-                try {
-                    Class<?> c = Class.forName(s);
-                    capsuleClasses.add(c);
-                } catch (ClassNotFoundException e) {
-                    log.error(e.getMessage());
-                }
+        CapsuleScanner scanner = new CapsuleScanner(this.capsuleTimeout, this.capsuleScan);
+        this.capsules.addAll(scanner.scan());
+
+        if (this.metricsPath != null && !this.metricsPath.equals("")) {
+            log.info("Loaded capsule: " + MetricsCapsule.class.getName() + " (" + this.metricsPath + ", SINGLETON)");
+            this.capsules.add(new CapsuleHandler(new MetricsCapsule(this.metrics), this.metricsPath));
+        }
+
+        if (this.capsuleDir != null && !this.capsuleDir.equals("")) {
+            this.capsuleReloader = new CapsuleReloader(Paths.get(this.capsuleDir), scanner);
+            this.jarCapsules = this.capsuleReloader.load();
+        }
+
+        this.warnUnservedHosts();
+        this.router = this.createRouter(this.host);
+    }
+
+    /**
+     * Starts watching capsuleDir once the hosts are set up.
+     * @throws IOException
+     */
+    private void initCapsuleReloader() throws IOException {
+        if (this.capsuleReloader != null) {
+            this.capsuleReloader.start(this::updateCapsules);
+        }
+    }
+
+    /**
+     * Replaces the capsules loaded from capsuleDir and swaps in new
+     * routes for every host. Requests already routed keep running on
+     * the old handlers. Called on the reload thread.
+     * @param jarCapsules is the List of CapsuleHandler objects from the jars.
+     */
+    private synchronized void updateCapsules(List<CapsuleHandler> jarCapsules) {
+        this.jarCapsules = jarCapsules;
+        this.warnUnservedHosts();
+        this.router = this.createRouter(this.host);
+        this.requestHandler.getDefaultHost().setRouter(this.router);
+        for (VirtualHost vh : this.virtualHosts) {
+            vh.setRouter(this.createRouter(vh.getName()));
+        }
+        if (this.capsuleCache != null) {
+            this.capsuleCache.clear();
+        }
+        log.info("Capsule routes updated, " + this.router.size() + " routes on '" + this.host + "'.");
+    }
+
+    /**
+     * Logs capsules that are for a host the server doesn't serve.
+     */
+    private void warnUnservedHosts() {
+        for (CapsuleHandler h : this.getCapsules()) {
+            if (!h.getHost().equals("") && !this.isServedHost(h.getHost())) {
+                log.warn("Capsule '" + h.getCapsuleClass().getName() + "' is for host '" + h.getHost() + "' which isn't served, skipping.");
             }
-            @SuppressWarnings("unchecked")
-            @Override
-            public Class<? extends Annotation>[] annotations() {
-                return new Class[]{Capsule.class};
+        }
+    }
+
+    /**
+     * Gets every capsule, the ones found on the classpath followed by
+     * the ones loaded from capsuleDir.
+     * @return A List of CapsuleHandler objects.
+     */
+    private List<CapsuleHandler> getCapsules() {
+        List<CapsuleHandler> ret = new ArrayList<CapsuleHandler>(this.capsules);
+        ret.addAll(this.jarCapsules);
+        return ret;
+    }
+
+    /**
+     * Builds the routes for a host from the capsules served on it.
+     * @param name is the host name.
+     * @return A CapsuleRouter object.
+     */
+    private CapsuleRouter createRouter(String name) {
+        // Capsules for the host win over ones served on every host.
+        List<CapsuleHandler> all = this.getCapsules();
+        List<CapsuleHandler> handlers = new ArrayList<CapsuleHandler>();
+        HashSet<String> paths = new HashSet<String>();
+        for (CapsuleHandler h : all) {
+            if (!h.getHost().equals("") && h.isForHost(name)) {
+                handlers.add(h);
+                paths.add(h.getPath());
             }
-        };
-        final AnnotationDetector cf = new AnnotationDetector(reporter);
-        cf.detect();
+        }
+        for (CapsuleHandler h : all) {
+            if (h.getHost().equals("") && !paths.contains(h.getPath())) handlers.add(h);
+        }
+        return new CapsuleRouter(handlers);
+    }
 
-        for (Class c : capsuleClasses) {
-            try {
-                Method m = c.getMethod("handle", new Class[]{ GeminiRequest.class });
-                if (m == null) {
-                    log.warn("Capsule class '" + c.getName() + "' found but is missing a function: public GeminiResponse handle (GeminiRequest req)");
-                } else if (m.getReturnType() != GeminiResponse.class) {
-                    log.warn("Capsule class '" + c.getName() + "' handle function returns type '" + m.getReturnType().getName() + "' but expecting 'GeminiResponse'.");
-                } else if ((m.getModifiers() & Modifier.PUBLIC) == 0) {
-                    log.warn("Capsule class '" + c.getName() + "' handle function is not public.");
-                } else {
-                    Capsule capsule = (Capsule) c.getAnnotation(Capsule.class);
-                    String path = capsule.path();
-                    if (path == null || path.equals("")) {
-                        path = "/";
-                    }
-                    if (!path.startsWith("/")) path = "/" + path;
-                    if (path.length() > 1 && path.endsWith("/")) path = path.substring(0, path.length() - 1);
+    /**
+     * Checks if the provided host name is hostname or a virtual host.
+     * @param name is the host name.
+     * @return A boolean with true if served.
+     */
+    private boolean isServedHost(String name) {
+        if (name.equalsIgnoreCase(this.host)) return true;
+        for (VirtualHost vh : this.virtualHosts) {
+            if (name.equalsIgnoreCase(vh.getName())) return true;
+        }
+        return false;
+    }
 
-                    // Add the capsul
-                    log.info("Loaded capsule: " + c.getName() + " (" + path + ")");
-                    this.capsules.put(path, c);
-                }
-            } catch (NoSuchMethodException e) {
-                log.error(e.getMessage());
+    /**
+     * Sets up the routes and file cache of each virtual host and adds
+     * them to the request handler.
+     * @throws IOException
+     */
+    private void initVirtualHosts() throws IOException {
+        for (VirtualHost vh : this.virtualHosts) {
+            log.info("Adding virtual host '" + vh.getName() + "' with hostDir '" + vh.getHostDir() + "'"
+                    + (vh.getKeyAlias() == null ? "" : " and key alias '" + vh.getKeyAlias() + "'") + ".");
+            vh.setRouter(this.createRouter(vh.getName()));
+            vh.setFileCache(vh.hasContentPack() ? null : this.createFileCache(vh.getHostDir()));
+            this.initContentPack(vh);
+            this.requestHandler.addVirtualHost(vh);
+        }
+    }
+
+    /**
+     * Initializes the file cache if there's a hostDir and the cache
+     * isn't disabled.
+     * @throws IOException
+     */
+    private void initFileCache() throws IOException {
+        if (this.contentPack != null && !this.contentPack.equals("")) {
+            return;
+        }
+        this.fileCache = this.createFileCache(this.hostDir);
+    }
+
+    /**
+     * Maps the host's content pack if it has one and starts watching
+     * the file for a new pack.
+     * @param vh is the VirtualHost to set up.
+     * @throws IOException if the pack can't be opened.
+     */
+    private void initContentPack(VirtualHost vh) throws IOException {
+        if (!vh.hasContentPack()) {
+            return;
+        }
+        ContentPackReloader reloader = new ContentPackReloader(Paths.get(vh.getContentPack()), vh::setPack);
+        vh.setPack(reloader.load());
+        reloader.start();
+    }
+
+    /**
+     * Creates and starts a file cache for the provided directory.
+     * @param dir is the hostDir to cache.
+     * @return A FileCache or null if there's no dir or the cache is disabled.
+     * @throws IOException
+     */
+    private FileCache createFileCache(String dir) throws IOException {
+        if (dir == null || dir.equals("") || this.fileCacheMaxBytes <= 0) {
+            return null;
+        }
+        FileCache cache = new FileCache(Paths.get(dir), this.fileCacheMaxBytes, this.fileCacheMaxEntryBytes);
+        cache.start();
+        return cache;
+    }
+
+    /**
+     * Initializes the capsule response cache unless it's disabled. It's
+     * only used by capsules that set cacheTtl.
+     */
+    private void initCapsuleCache() {
+        if (this.capsuleCacheMaxBytes <= 0) {
+            return;
+        }
+        this.capsuleCache = new CapsuleCache(this.capsuleCacheMaxBytes, this.capsuleCacheMaxEntryBytes);
+        this.requestHandler.setCapsuleCache(this.capsuleCache);
+        this.metrics.setCapsuleCache(this.capsuleCache);
+    }
+
+    /**
+     * Sets up client certificate checks. With clientCerts on, resolved
+     * identities are cached and looked up in the identityStore, or the
+     * clientCert.identities file if no store was set.
+     * @throws IOException if the identities file can't be read.
+     */
+    private void initClientCerts() throws IOException {
+        this.requestHandler.setCertPaths(this.clientCertRequiredPaths, this.clientCertAuthorisedPaths);
+        if (!this.clientCerts) {
+            boolean used = this.clientCertRequiredPaths.length > 0 || this.clientCertAuthorisedPaths.length > 0;
+            for (CapsuleHandler c : this.capsules) {
+                if (c.getClientCert() != ClientCertPolicy.NONE) used = true;
+            }
+            if (used) {
+                log.warn("Client certificates are required by some paths but clientCerts is off, they'll all get 60.");
             }
+            return;
         }
+
+        if (this.identityStore == null && this.clientCertIdentities != null && !this.clientCertIdentities.equals("")) {
+            // Not read as Properties since ':' would end the key.
+            Map<String, String> names = new HashMap<String, String>();
+            for (String line : Files.readAllLines(Paths.get(this.clientCertIdentities), StandardCharsets.UTF_8)) {
+                int eq = line.indexOf('=');
+                if (line.trim().startsWith("#") || eq < 0) continue;
+                names.put(ClientIdentities.normalizeFingerprint(line.substring(0, eq)), line.substring(eq + 1).trim());
+            }
+            log.info("Loaded " + names.size() + " client identities from '" + this.clientCertIdentities + "'.");
+            this.identityStore = (fp, cert) -> names.get(fp);
+        }
+
+        this.clientIdentities = new ClientIdentities(this.identityStore, this.clientCertCacheTtl, this.clientCertCacheSize);
+        this.requestHandler.setIdentities(this.clientIdentities);
+        this.metrics.setIdentities(this.clientIdentities);
+    }
+
+    /**
+     * Initializes the access log if a file is set.
+     * @throws IOException
+     */
+    private void initAccessLog() throws IOException {
+        if (this.accessLogFile == null || this.accessLogFile.equals("")) {
+            return;
+        }
+        this.accessLog = new AccessLog(this.accessLogFile, this.accessLogMaxBytes, this.accessLogMaxFiles, this.accessLogBufferSize);
+        this.accessLog.start();
+        this.metrics.setAccessLog(this.accessLog);
     }
 
     /**
@@ -265,7 +816,21 @@ public class Server {
 
     public void setKeyStore(String keyStore) {
         this.keyStore = keyStore;
-        System.setProperty("javax.net.ssl.keyStore", this.keyStore);
+    }
+
+    /**
+     * Gets the port the server is listening on after init(). This is
+     * the port that was picked when port is set to 0.
+     * @return An int with the port or -1 if not listening.
+     */
+    public int getLocalPort() {
+        if (this.nioTransport != null) {
+            return this.nioTransport.getLocalPort();
+        }
+        if (this.inheritedChannel != null) {
+            return this.inheritedChannel.socket().getLocalPort();
+        }
+        return this.serverSocket == null ? -1 : this.serverSocket.getLocalPort();
     }
 
     public String getKeyStorePassword() {
@@ -274,7 +839,46 @@ public class Server {
 
     public void setKeyStorePassword(String keyStorePassword) {
         this.keyStorePassword = keyStorePassword;
-        System.setProperty("javax.net.ssl.keyStorePassword", this.keyStorePassword);
+    }
+
+    public String[] getProtocols() {
+        return protocols;
+    }
+
+    public void setProtocols(String[] protocols) {
+        this.protocols = protocols;
+    }
+
+    public String[] getCipherSuites() {
+        return cipherSuites;
+    }
+
+    public void setCipherSuites(String[] cipherSuites) {
+        this.cipherSuites = cipherSuites;
+    }
+
+    public int getSessionCacheSize() {
+        return sessionCacheSize;
+    }
+
+    public void setSessionCacheSize(int sessionCacheSize) {
+        this.sessionCacheSize = sessionCacheSize;
+    }
+
+    public int getSessionTimeout() {
+        return sessionTimeout;
+    }
+
+    public void setSessionTimeout(int sessionTimeout) {
+        this.sessionTimeout = sessionTimeout;
+    }
+
+    public boolean isSessionTickets() {
+        return sessionTickets;
+    }
+
+    public void setSessionTickets(boolean sessionTickets) {
+        this.sessionTickets = sessionTickets;
     }
 
     public String getHost() {
@@ -293,6 +897,35 @@ public class Server {
         this.port = port;
     }
 
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    public void setReusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+    }
+
+    public long getShutdownTimeout() {
+        return shutdownTimeout;
+    }
+
+    public void setShutdownTimeout(long shutdownTimeout) {
+        this.shutdownTimeout = shutdownTimeout;
+    }
+
+    public List<VirtualHost> getVirtualHosts() {
+        return virtualHosts;
+    }
+
+    /**
+     * Adds a virtual host to serve along with hostname. Must be called
+     * before init().
+     * @param vh is the VirtualHost to add.
+     */
+    public void addVirtualHost(VirtualHost vh) {
+        this.virtualHosts.add(vh);
+    }
+
     public String getHostDir() {
         return hostDir;
     }
@@ -301,6 +934,14 @@ public class Server {
         this.hostDir = hostDir;
     }
 
+    public String getContentPack() {
+        return contentPack;
+    }
+
+    public void setContentPack(String contentPack) {
+        this.contentPack = contentPack;
+    }
+
     public int getMinThreads() {
         return minThreads;
     }
@@ -317,6 +958,381 @@ public class Server {
         this.maxThreads = maxThreads;
     }
 
+    public long getFileCacheMaxBytes() {
+        return fileCacheMaxBytes;
+    }
+
+    public void setFileCacheMaxBytes(long fileCacheMaxBytes) {
+        this.fileCacheMaxBytes = fileCacheMaxBytes;
+    }
+
+    public long getFileCacheMaxEntryBytes() {
+        return fileCacheMaxEntryBytes;
+    }
+
+    public void setFileCacheMaxEntryBytes(long fileCacheMaxEntryBytes) {
+        this.fileCacheMaxEntryBytes = fileCacheMaxEntryBytes;
+    }
+
+    public long getCapsuleCacheMaxBytes() {
+        return capsuleCacheMaxBytes;
+    }
+
+    public void setCapsuleCacheMaxBytes(long capsuleCacheMaxBytes) {
+        this.capsuleCacheMaxBytes = capsuleCacheMaxBytes;
+    }
+
+    public long getCapsuleCacheMaxEntryBytes() {
+        return capsuleCacheMaxEntryBytes;
+    }
+
+    public void setCapsuleCacheMaxEntryBytes(long capsuleCacheMaxEntryBytes) {
+        this.capsuleCacheMaxEntryBytes = capsuleCacheMaxEntryBytes;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public void setQueueDepth(int queueDepth) {
+        this.queueDepth = queueDepth;
+    }
+
+    public long getQueueTimeout() {
+        return queueTimeout;
+    }
+
+    public void setQueueTimeout(long queueTimeout) {
+        this.queueTimeout = queueTimeout;
+    }
+
+    public int getHandshakeTimeout() {
+        return handshakeTimeout;
+    }
+
+    public void setHandshakeTimeout(int handshakeTimeout) {
+        this.handshakeTimeout = handshakeTimeout;
+    }
+
+    public int getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    public void setRequestTimeout(int requestTimeout) {
+        this.requestTimeout = requestTimeout;
+    }
+
+    public int getWriteTimeout() {
+        return writeTimeout;
+    }
+
+    public void setWriteTimeout(int writeTimeout) {
+        this.writeTimeout = writeTimeout;
+    }
+
+    public int getSlowDownSeconds() {
+        return slowDownSeconds;
+    }
+
+    public void setSlowDownSeconds(int slowDownSeconds) {
+        this.slowDownSeconds = slowDownSeconds;
+    }
+
+    public int getClientMaxConnections() {
+        return clientMaxConnections;
+    }
+
+    public void setClientMaxConnections(int clientMaxConnections) {
+        this.clientMaxConnections = clientMaxConnections;
+    }
+
+    public double getClientRequestRate() {
+        return clientRequestRate;
+    }
+
+    public void setClientRequestRate(double clientRequestRate) {
+        this.clientRequestRate = clientRequestRate;
+    }
+
+    public int getClientBurst() {
+        return clientBurst;
+    }
+
+    public void setClientBurst(int clientBurst) {
+        this.clientBurst = clientBurst;
+    }
+
+    public int getClientMaxTracked() {
+        return clientMaxTracked;
+    }
+
+    public void setClientMaxTracked(int clientMaxTracked) {
+        this.clientMaxTracked = clientMaxTracked;
+    }
+
+    public long getCapsuleTimeout() {
+        return capsuleTimeout;
+    }
+
+    public void setCapsuleTimeout(long capsuleTimeout) {
+        this.capsuleTimeout = capsuleTimeout;
+    }
+
+    public String getCapsuleDir() {
+        return capsuleDir;
+    }
+
+    public void setCapsuleDir(String capsuleDir) {
+        this.capsuleDir = capsuleDir;
+    }
+
+    public boolean isCapsuleScan() {
+        return capsuleScan;
+    }
+
+    public void setCapsuleScan(boolean capsuleScan) {
+        this.capsuleScan = capsuleScan;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public String getMetricsPath() {
+        return metricsPath;
+    }
+
+    public void setMetricsPath(String metricsPath) {
+        this.metricsPath = metricsPath;
+    }
+
+    public String getMetricsBind() {
+        return metricsBind;
+    }
+
+    public void setMetricsBind(String metricsBind) {
+        this.metricsBind = metricsBind;
+    }
+
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public void setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+    }
+
+    public String getAccessLogFile() {
+        return accessLogFile;
+    }
+
+    public void setAccessLogFile(String accessLogFile) {
+        this.accessLogFile = accessLogFile;
+    }
+
+    public long getAccessLogMaxBytes() {
+        return accessLogMaxBytes;
+    }
+
+    public void setAccessLogMaxBytes(long accessLogMaxBytes) {
+        this.accessLogMaxBytes = accessLogMaxBytes;
+    }
+
+    public int getAccessLogMaxFiles() {
+        return accessLogMaxFiles;
+    }
+
+    public void setAccessLogMaxFiles(int accessLogMaxFiles) {
+        this.accessLogMaxFiles = accessLogMaxFiles;
+    }
+
+    public int getAccessLogBufferSize() {
+        return accessLogBufferSize;
+    }
+
+    public void setAccessLogBufferSize(int accessLogBufferSize) {
+        this.accessLogBufferSize = accessLogBufferSize;
+    }
+
+    public String getExecutor() {
+        return executor;
+    }
+
+    public void setExecutor(String executor) {
+        this.executor = executor;
+    }
+
+    public boolean isClientCerts() {
+        return clientCerts;
+    }
+
+    public void setClientCerts(boolean clientCerts) {
+        this.clientCerts = clientCerts;
+    }
+
+    public String getClientCertIdentities() {
+        return clientCertIdentities;
+    }
+
+    public void setClientCertIdentities(String clientCertIdentities) {
+        this.clientCertIdentities = clientCertIdentities;
+    }
+
+    public long getClientCertCacheTtl() {
+        return clientCertCacheTtl;
+    }
+
+    public void setClientCertCacheTtl(long clientCertCacheTtl) {
+        this.clientCertCacheTtl = clientCertCacheTtl;
+    }
+
+    public int getClientCertCacheSize() {
+        return clientCertCacheSize;
+    }
+
+    public void setClientCertCacheSize(int clientCertCacheSize) {
+        this.clientCertCacheSize = clientCertCacheSize;
+    }
+
+    public String[] getClientCertRequiredPaths() {
+        return clientCertRequiredPaths;
+    }
+
+    public void setClientCertRequiredPaths(String[] clientCertRequiredPaths) {
+        this.clientCertRequiredPaths = clientCertRequiredPaths;
+    }
+
+    public String[] getClientCertAuthorisedPaths() {
+        return clientCertAuthorisedPaths;
+    }
+
+    public void setClientCertAuthorisedPaths(String[] clientCertAuthorisedPaths) {
+        this.clientCertAuthorisedPaths = clientCertAuthorisedPaths;
+    }
+
+    public IdentityStore getIdentityStore() {
+        return identityStore;
+    }
+
+    /**
+     * Sets the store client certificates are looked up in, replacing
+     * the clientCert.identities file. Must be called before init().
+     * @param identityStore is the IdentityStore to use.
+     */
+    public void setIdentityStore(IdentityStore identityStore) {
+        this.identityStore = identityStore;
+    }
+
+    public String getTransport() {
+        return transport;
+    }
+
+    public void setTransport(String transport) {
+        this.transport = transport;
+    }
+
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    public void setEventLoops(int eventLoops) {
+        this.eventLoops = eventLoops;
+    }
+
+    /**
+     * Builds the SSLContext from the keystore and the SSLParameters every
+     * connection uses. The server's cipher suite order is enforced rather
+     * than the client's. If no keystore is set the default SSLContext is
+     * used, which is configured with the javax.net.ssl system properties.
+     * @throws IOException if the keystore can't be loaded.
+     */
+    private void initTls() throws IOException {
+        // Read by the JDK when TLS is first used, so this only takes
+        // effect if nothing in the JVM has made a TLS connection yet.
+        System.setProperty("jdk.tls.server.enableSessionTicketExtension", "" + this.sessionTickets);
+
+        try {
+            if (this.keyStore == null || this.keyStore.equals("")) {
+                log.warn("No keystore set, using the default SSLContext.");
+                if (this.clientCerts) {
+                    log.warn("Client certificates are only accepted if trusted by the default SSLContext.");
+                }
+                this.sslContext = SSLContext.getDefault();
+            } else {
+                char[] password = this.keyStorePassword.toCharArray();
+                KeyStore ks = KeyStore.getInstance(new File(this.keyStore), password);
+                KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+                kmf.init(ks, password);
+                this.sslContext = SSLContext.getInstance("TLS");
+                TrustManager[] tms = this.clientCerts ? new TrustManager[] { new ClientCertTrustManager() } : null;
+                this.sslContext.init(this.wrapKeyManagers(kmf.getKeyManagers()), tms, null);
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to load keystore '" + this.keyStore + "': " + e.getMessage(), e);
+        }
+
+        SSLSessionContext sessions = this.sslContext.getServerSessionContext();
+        sessions.setSessionCacheSize(this.sessionCacheSize);
+        sessions.setSessionTimeout(this.sessionTimeout);
+
+        SSLParameters supported = this.sslContext.getSupportedSSLParameters();
+        SSLParameters params = this.sslContext.getDefaultSSLParameters();
+        params.setProtocols(this.filterSupported("protocol", this.protocols, supported.getProtocols()));
+        params.setCipherSuites(this.filterSupported("cipher suite", this.cipherSuites, supported.getCipherSuites()));
+        params.setUseCipherSuitesOrder(true);
+        params.setWantClientAuth(this.clientCerts);
+        this.sslParameters = params;
+
+        log.info("Using TLS protocols " + Arrays.toString(params.getProtocols()) + " with "
+                + params.getCipherSuites().length + " cipher suites, session cache size " + this.sessionCacheSize
+                + ", session timeout " + this.sessionTimeout + "s and session tickets "
+                + (this.sessionTickets ? "on" : "off") + ".");
+    }
+
+    /**
+     * Wraps the key managers in a SniKeyManager if any virtual host has
+     * a key alias, so the certificate is picked by the SNI host name.
+     * @param kms is the array of KeyManager objects from the factory.
+     * @return An array of KeyManager objects.
+     */
+    private KeyManager[] wrapKeyManagers(KeyManager[] kms) {
+        Map<String, String> aliases = new HashMap<String, String>();
+        for (VirtualHost vh : this.virtualHosts) {
+            if (vh.getKeyAlias() != null && !vh.getKeyAlias().equals("")) {
+                aliases.put(vh.getName().toLowerCase(Locale.ROOT), vh.getKeyAlias());
+            }
+        }
+        if (aliases.isEmpty()) {
+            return kms;
+        }
+        for (int i = 0; i < kms.length; i++) {
+            if (kms[i] instanceof X509KeyManager) {
+                kms[i] = new SniKeyManager((X509KeyManager) kms[i], aliases);
+            }
+        }
+        return kms;
+    }
+
+    /**
+     * Gets the wanted values that are supported, keeping their order.
+     * @param what is the name of the value type for the log.
+     * @param wanted is the array of wanted values.
+     * @param supported is the array of supported values.
+     * @return An array of Strings with the supported values.
+     */
+    private String[] filterSupported(String what, String[] wanted, String[] supported) {
+        HashSet<String> set = new HashSet<String>(Arrays.asList(supported));
+        List<String> ret = new ArrayList<String>();
+        for (String w : wanted) {
+            if (set.contains(w)) {
+                ret.add(w);
+            } else {
+                log.warn("TLS " + what + " '" + w + "' isn't supported, skipping.");
+            }
+        }
+        return ret.toArray(new String[0]);
+    }
+
     /**
      * Creates the server socket with the provided port number.
      * @param port is an int with the port number to bind to.
@@ -324,30 +1340,140 @@ public class Server {
      * @throws IOException
      */
     private SSLServerSocket createServerSocket(int port) throws IOException {
-        log.info("Creating SSLServerSocket on port " + port + ".");
-        SSLServerSocket soc = (SSLServerSocket) SSLServerSocketFactory.getDefault().createServerSocket(port);
+        log.info("Creating SSLServerSocket on port " + port + (this.reusePort ? " with SO_REUSEPORT" : "") + ".");
+        SSLServerSocket soc = (SSLServerSocket) this.sslContext.getServerSocketFactory().createServerSocket();
         soc.setReuseAddress(true);
-        soc.setEnabledProtocols(this.protocols);
-        soc.setEnabledCipherSuites(this.cipherSuites);
+        if (this.reusePort) {
+            if (soc.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                soc.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            } else {
+                log.warn("SO_REUSEPORT isn't supported on this platform.");
+            }
+        }
+        soc.setSSLParameters(this.sslParameters);
+        soc.bind(new InetSocketAddress(port));
         return soc;
     }
 
+    /**
+     * Creates and binds the NIO transport with the provided port number,
+     * or on the inherited channel if there is one.
+     * @param port is an int with the port number to bind to.
+     * @param inherited is the inherited ServerSocketChannel or null.
+     * @return A NioTransport object.
+     * @throws IOException
+     */
+    private NioTransport createNioTransport(int port, ServerSocketChannel inherited) throws IOException {
+        NioTransport nio = new NioTransport(this.sslContext, this.sslParameters, this.threadPool, this.requestHandler, this.admission);
+        nio.setLimiter(this.limiter);
+        if (inherited != null) {
+            nio.bind(inherited, this.eventLoops);
+        } else {
+            nio.bind(port, this.reusePort, this.eventLoops);
+        }
+        return nio;
+    }
+
+    /**
+     * Gets the listening socket passed in by systemd socket activation
+     * (StandardInput=socket) or inetd, so it stays open across restarts
+     * and connections wait in its backlog rather than being refused.
+     * @return A ServerSocketChannel or null if none was passed in.
+     * @throws IOException
+     */
+    private ServerSocketChannel getInheritedChannel() throws IOException {
+        Channel ch = System.inheritedChannel();
+        if (!(ch instanceof ServerSocketChannel)) {
+            return null;
+        }
+        ServerSocketChannel ssc = (ServerSocketChannel) ch;
+        log.info("Using inherited listening socket on " + ssc.getLocalAddress() + ", ignoring port " + this.port + ".");
+        return ssc;
+    }
+
+    /**
+     * Accepts the next connection for the blocking transport. On an
+     * inherited channel the accepted socket is wrapped in server mode TLS.
+     * @return An SSLSocket object or null once shutdown() has started.
+     * @throws IOException
+     */
+    private SSLSocket accept() throws IOException {
+        if (this.inheritedChannel == null) {
+            return (SSLSocket) this.serverSocket.accept();
+        }
+        SocketChannel ch = null;
+        while (ch == null) {
+            this.acceptSelector.select();
+            this.acceptSelector.selectedKeys().clear();
+            if (this.stopping) return null;
+            ch = this.inheritedChannel.accept();
+        }
+        ch.configureBlocking(true);
+        Socket plain = ch.socket();
+        SSLSocketFactory factory = this.sslContext.getSocketFactory();
+        SSLSocket soc = (SSLSocket) factory.createSocket(plain, null, true);
+        soc.setSSLParameters(this.sslParameters);
+        return soc;
+    }
+
+    /**
+     * Initializes the per client limits unless both are disabled.
+     */
+    private void initLimiter() {
+        if (this.clientMaxConnections <= 0 && this.clientRequestRate <= 0) {
+            return;
+        }
+        log.info("Limiting each client to " + (this.clientMaxConnections > 0 ? this.clientMaxConnections : "unlimited")
+                + " connections and " + (this.clientRequestRate > 0 ? this.clientRequestRate + " requests/s with a burst of " + this.clientBurst : "unlimited requests") + ".");
+        this.limiter = new ClientLimiter(this.clientMaxConnections, this.clientRequestRate, this.clientBurst, this.clientMaxTracked);
+        this.metrics.setLimiter(this.limiter);
+    }
+
     /**
      * Initializes the thread pool.
      */
     private void initThreadPool() {
-        log.info("Initializing server thread pool with min: " + this.minThreads + " and max: " + this.maxThreads + " threads.");
-        this.threadPool = new ThreadPoolExecutor(this.minThreads, this.maxThreads, 10, TimeUnit.SECONDS,
-                new SynchronousQueue<Runnable>(), new RejectedExecutionHandler()
-        {
-            @Override
-            public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor){
-                try {
-                    executor.getQueue().put(runnable);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
+        this.admission = new AdmissionControl(this.queueDepth, this.queueTimeout, this.handshakeTimeout,
+                this.requestTimeout, this.writeTimeout, this.slowDownSeconds);
+
+        if (this.executor.equals("virtual")) {
+            this.threadPool = this.createVirtualThreadExecutor();
+            if (this.threadPool != null) {
+                log.info("Initializing server executor with one virtual thread per task.");
+                return;
             }
-        });
+        }
+
+        log.info("Initializing server thread pool with min: " + this.minThreads + " and max: " + this.maxThreads
+                + " threads and a queue depth of " + this.queueDepth + ".");
+        BlockingQueue<Runnable> queue;
+        if (this.queueDepth > 0) {
+            queue = new AdmissionQueue(this.queueDepth);
+        } else {
+            queue = new SynchronousQueue<Runnable>();
+        }
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(this.minThreads, this.maxThreads, 10, TimeUnit.SECONDS,
+                queue, this.admission);
+        if (queue instanceof AdmissionQueue) {
+            ((AdmissionQueue) queue).setExecutor(pool);
+        }
+        this.threadPool = pool;
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for each task.
+     * This is looked up reflectively so the server still builds for
+     * Java 14 and only uses virtual threads when running on a JDK that
+     * has them.
+     * @return An ExecutorService or null if virtual threads aren't available.
+     */
+    private ExecutorService createVirtualThreadExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            log.warn("Virtual threads are not available on Java " + System.getProperty("java.version") + ", using the platform thread pool.");
+            return null;
+        }
     }
 }
@@ -22,225 +22,350 @@ import org.slf4j.LoggerFactory;
 
 import javax.net.ssl.SSLSocket;
 import java.io.*;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.nio.file.Files;
-import java.util.Map;
+import java.net.SocketTimeoutException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * ServerThread class implements the functionality of the server thread.
  */
-public class ServerThread implements Runnable {
+public class ServerThread implements Runnable, Sheddable {
     private final static Logger log = LoggerFactory.getLogger(Main.class);
 
     protected ServerInfo serverInfo = null;
     protected SSLSocket soc = null;
 
-    protected BufferedReader in = null;
-    protected PrintWriter out = null;
+    protected InputStream in = null;
+    protected OutputStream out = null;
 
-    // Reference to the capsule map.
-    private Map<String, Class> capsules;
+    // Reference to the shared request handler.
+    private RequestHandler handler;
+
+    // Admission control and the time this connection was queued.
+    private AdmissionControl admission;
+    private long enqueuedNanos = System.nanoTime();
+
+    // Executor this runs on, used again to write an async response.
+    private Executor executor;
+
+    // Set of open connections this is in until the socket is closed,
+    // or null if not tracked.
+    private Set<ServerThread> connections = null;
+
+    // Client limiter entry closed along with the socket, if any.
+    private final AtomicReference<ClientLimiter.Client> client = new AtomicReference<ClientLimiter.Client>();
+
+    // Request read from the client, for the access log.
+    private volatile GeminiRequest request = null;
+
+    // Response from an async capsule waiting to be written.
+    private volatile GeminiResponse response = null;
+
+    // Phase the connection is in and its deadline as a System.nanoTime(),
+    // checked by the ConnectionReaper. No phase while a capsule works.
+    private volatile TimeoutPhase phase = null;
+    private volatile long deadline = 0;
+
+    // Output being written and its byte count at the last check.
+    private volatile StreamResponseOutput output = null;
+    private long lastWritten = 0;
+
+    // Set once the connection has been closed for a timeout.
+    private final AtomicBoolean timedOut = new AtomicBoolean(false);
 
     /**
      * Default constructor.
      * @param SInfo is a ServerInfo object with the server information.
      * @param Soc is the SSLSocket to use.
+     * @param Handler is the RequestHandler that produces the response.
+     * @param Admission is the AdmissionControl with the queue and handshake timeouts.
+     * @param Exec is the Executor to write async responses on.
      */
-    public ServerThread(ServerInfo SInfo, SSLSocket Soc, Map<String, Class> Capsules) {
+    public ServerThread(ServerInfo SInfo, SSLSocket Soc, RequestHandler Handler, AdmissionControl Admission, Executor Exec) {
         this.serverInfo = SInfo;
         this.soc = Soc;
-        this.capsules = Capsules;
+        this.handler = Handler;
+        this.admission = Admission;
+        this.executor = Exec;
+    }
+
+    /**
+     * Creates a server thread that is kept in the provided set of open
+     * connections until its socket is closed.
+     * @param SInfo is a ServerInfo object with the server information.
+     * @param Soc is the SSLSocket to use.
+     * @param Handler is the RequestHandler that produces the response.
+     * @param Admission is the AdmissionControl with the queue and handshake timeouts.
+     * @param Exec is the Executor to write async responses on.
+     * @param Connections is the Set of open connections.
+     */
+    public ServerThread(ServerInfo SInfo, SSLSocket Soc, RequestHandler Handler, AdmissionControl Admission, Executor Exec, Set<ServerThread> Connections) {
+        this(SInfo, Soc, Handler, Admission, Exec);
+        this.connections = Connections;
+        this.connections.add(this);
+    }
+
+    /**
+     * Sets the client limiter entry to close along with the socket.
+     * @param c is the ClientLimiter.Client from ClientLimiter.open().
+     */
+    public void setClient(ClientLimiter.Client c) {
+        this.client.set(c);
     }
 
     /**
-     * Runs the server thread.
+     * Runs the server thread. When the request goes to an async capsule
+     * the thread is released while the capsule works and this is run
+     * again on the executor to write the response once it completes.
      */
     @Override
     public void run() {
-        log.info("ServerThread handling new request.");
+        if (this.response != null) {
+            this.sendResponse(this.response);
+            return;
+        }
+
+        if (this.admission.isExpired(this.enqueuedNanos)) {
+            log.warn("Connection waited longer than the queue timeout, shedding.");
+            this.shed(this.admission.unavailable());
+            return;
+        }
+
+        log.debug("ServerThread handling new request.");
+        // Once a response is on its way sendResponse closes the socket.
+        boolean responding = false;
         try {
-            this.in = new BufferedReader(new InputStreamReader(this.soc.getInputStream()));
-            this.out = new PrintWriter(this.soc.getOutputStream(), true);
+            // Run the handshake up front so a stalled client can't hold
+            // this thread longer than the handshake timeout.
+            this.enterPhase(TimeoutPhase.HANDSHAKE);
+            this.soc.setSoTimeout(this.admission.getHandshakeTimeout());
+            long start = System.nanoTime();
+            this.soc.startHandshake();
+            this.handler.getMetrics().handshake(System.nanoTime() - start);
+
+            this.enterPhase(TimeoutPhase.REQUEST);
+            this.soc.setSoTimeout(this.admission.getRequestTimeout());
+
+            this.in = this.soc.getInputStream();
+            this.out = this.soc.getOutputStream();
 
             // Read the request message
             GeminiRequest req = this.readRequest();
-            log.info("Received request: " + req.toString());
-
-            // Create the response
-            this.createResponse(req);
+            req.setSession(this.soc.getSession());
+            this.request = req;
+            this.phase = null;
+            if (log.isDebugEnabled()) {
+                log.debug("Received request: " + req.toString());
+            }
 
-            this.out.flush();
-            this.soc.close();
+            // Create the response, a failure gives 40 TEMPORARY FAILURE
+            CompletableFuture<GeminiResponse> f;
+            try {
+                f = this.handler.handleAsync(req).toCompletableFuture();
+            } catch (RuntimeException e) {
+                f = CompletableFuture.failedFuture(e);
+            }
+            responding = true;
+            if (!f.isDone()) {
+                f.whenComplete((resp, t) -> {
+                    this.response = RequestHandler.orFailure(resp, t);
+                    this.executor.execute(this);
+                });
+                return;
+            }
+            this.sendResponse(f.handle(RequestHandler::orFailure).join());
         } catch (IOException e) {
-            log.error(e.getMessage());
+            this.failed(e);
+        } finally {
+            if (!responding) this.abort();
         }
     }
 
     /**
-     * Reads in the request line and produces a
-     * GeminiRequest object.
-     * @return A GeminiRequest object.
-     * @throws IOException
+     * Checks the deadline of the current phase and closes the connection
+     * if it has passed. While writing, the deadline moves forward each
+     * time the client takes more of the response or the response is
+     * still being produced. Called from the ConnectionReaper.
+     * @param now is the current System.nanoTime().
      */
-    private GeminiRequest readRequest() throws IOException {
-        String line = in.readLine();
-        return new GeminiRequest(line.trim());
-    }
-
-    /**
-     * Creates the response with the provided request.
-     * @param req is a GeminiRequest object.
-     */
-    private void createResponse(GeminiRequest req) {
-        // Bad request
-        if (!this.isGoodRequest(req)) {
-            this.out.print(GeminiStatusCodeDetail.BAD_REQUEST.getValue() + " \r\n");
-            log.info("Response: " + GeminiStatusCodeDetail.BAD_REQUEST.toString());
-            return;
+    public void checkTimeout(long now) {
+        TimeoutPhase p = this.phase;
+        if (p == null) return;
+
+        if (p == TimeoutPhase.WRITE) {
+            StreamResponseOutput o = this.output;
+            if (o != null) {
+                long w = o.getBytesWritten();
+                if (w != this.lastWritten || !o.isWriting()) {
+                    this.lastWritten = w;
+                    this.deadline = now + TimeUnit.MILLISECONDS.toNanos(this.admission.getWriteTimeout());
+                    return;
+                }
+            }
         }
 
-        // Attempt to find a capsule and execute it
-        GeminiResponse resp = this.getCapsuleResponse(req);
-
-        // Didn't find a response with the module, let's try a file.
-        if (resp == null) {
-            resp = this.getFileResponse(req);
+        if (this.admission.getTimeout(p) > 0 && now - this.deadline >= 0) {
+            this.timeout(p);
         }
-
-        out.print(resp.build());
-        log.info("Response: " + resp.getStatus().toString());
     }
 
     /**
-     * Attempts to find a matching module and if so it executes the
-     * request and returns the response.
-     * @param req is the GeminiRequest object.
-     * @return A GeminiResponse object with the response if found and
-     * null if not.
+     * Starts a phase with its deadline.
+     * @param p is the TimeoutPhase.
      */
-    private GeminiResponse getCapsuleResponse(GeminiRequest req) {
-        GeminiResponse resp = null;
-
-        String reqPath = req.getPath();
-        if (reqPath.length() > 1 && reqPath.endsWith("/"))
-            reqPath = reqPath.substring(0, reqPath.length() - 1);
+    private void enterPhase(TimeoutPhase p) {
+        this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.admission.getTimeout(p));
+        this.phase = p;
+    }
 
-        Class c = this.capsules.get(reqPath);
-        if (c != null) {
-            try {
-                Object obj = c.getDeclaredConstructor().newInstance();
-                Method m = c.getMethod("handle", new Class[]{ GeminiRequest.class });
-                resp = (GeminiResponse) m.invoke(obj, req);
-            } catch (InstantiationException e) {
-                log.error(e.getMessage());
-            } catch (IllegalAccessException e) {
-                log.error(e.getMessage());
-            } catch (InvocationTargetException e) {
-                log.error(e.getMessage());
-            } catch (NoSuchMethodException e) {
-                log.error(e.getMessage());
+    /**
+     * Counts the timeout once and resets the connection, so any response
+     * data the client didn't read is dropped rather than kept in the
+     * kernel.
+     * @param p is the TimeoutPhase that timed out.
+     */
+    private void timeout(TimeoutPhase p) {
+        if (this.timedOut.compareAndSet(false, true)) {
+            this.handler.getMetrics().timeout(p);
+            if (log.isDebugEnabled()) {
+                log.debug("Closing connection from '" + this.soc.getInetAddress().getHostAddress() + "', " + p.getValue() + " timed out.");
             }
+            this.resetOnClose();
         }
-
-        return resp;
+        this.abort();
     }
 
     /**
-     * Attempts to find a matching file and if so it returns the response.
-     * @param req is the GeminiRequest object.
-     * @return A GeminiResponse object with the response if found and
-     * null if not.
+     * Makes the next close reset the connection, dropping any response
+     * data the client hasn't read yet.
      */
-    private GeminiResponse getFileResponse(GeminiRequest req) {
-        GeminiResponse resp = new GeminiResponse();
-
-        String data = null;
+    private void resetOnClose() {
         try {
-            resp.setData(this.getFileFromHostDir(req));
+            this.soc.setSoLinger(true, 0);
         } catch (IOException e) {
-            log.error(e.getMessage());
-            resp.setStatus(GeminiStatusCodeDetail.NOT_FOUND);
+            log.debug(e.getMessage());
         }
-
-        return resp;
     }
 
     /**
-     * Checks to see if the request is good and valid.
-     * @param req is the GeminiRequest object.
-     * @return A boolean with true for valid and false for not.
+     * Handles a failed read or write. A read that hit SO_TIMEOUT counts
+     * as a timeout of the current phase, and a socket closed by the
+     * reaper was already counted.
+     * @param e is the IOException.
      */
-    private boolean isGoodRequest(GeminiRequest req) {
-        if (req.getPath().contains("..")) {
-            log.info("Bad request: " + req.rawRequest);
-            return false;
-        } else if (
-                this.serverInfo.getHost() != null
-                && !this.serverInfo.getHost().equals("")
-                && !req.getHost().equals(this.serverInfo.getHost())
-        ) {
-            log.info("Invalid host: " + req.rawRequest);
-            return false;
+    private void failed(IOException e) {
+        TimeoutPhase p = this.phase;
+        if (e instanceof SocketTimeoutException && p != null) {
+            this.timeout(p);
+        } else if (!this.timedOut.get()) {
+            log.error(e.getMessage());
         }
-        return true;
     }
 
     /**
-     * Attempts to fetch a file from the host directory with the
-     * provided GeminiRequest object.
-     * @param req is the GeminiRequest object.
-     * @return A String with the file contents or empty String.
-     * @throws IOException
+     * Sends the provided response without reading the request and
+     * closes the socket. The handshake and write are bounded by the
+     * handshake timeout. If an async response is already waiting it's
+     * sent instead.
+     * @param resp is the GeminiResponse to send.
      */
-    private String getFileFromHostDir(GeminiRequest req) throws IOException {
-        String ret = "";
-        if (this.serverInfo.getHostDir() != null && !this.serverInfo.getHostDir().equals("")) {
-            File f = this.findGeminiFile(req);
-            if (f != null && f.exists()) {
-                // Read file and return the contents.
-                ret = Files.readString(f.toPath());
+    @Override
+    public void shed(GeminiResponse resp) {
+        if (this.response != null) {
+            try {
+                this.soc.setSoTimeout(this.admission.getHandshakeTimeout());
+            } catch (IOException e) {
+                log.error(e.getMessage());
             }
+            this.sendResponse(this.response);
+            return;
+        }
+        try {
+            this.soc.setSoTimeout(this.admission.getHandshakeTimeout());
+            OutputStream os = this.soc.getOutputStream();
+            byte[] bytes = resp.getBytes();
+            os.write(bytes);
+            os.flush();
+            this.handler.responseSent(this.soc.getInetAddress(), null, resp.getStatus(), bytes.length, this.enqueuedNanos);
+            log.debug("Response: {}", resp.getStatus());
+        } catch (IOException e) {
+            log.error(e.getMessage());
+        } finally {
+            this.abort();
         }
-        return ret;
     }
 
     /**
-     * Tries to find the requested file with the provided
-     * GeminiRequest object.
-     * @param req is the GeminiRequest object.
-     * @return A File object if found and null if not.
+     * Closes the socket.
      */
-    private File findGeminiFile(GeminiRequest req) {
-        File ret = null;
-
-        String fileBase = this.serverInfo.getHostDir();
-        if (req.getPath().length() > 0 && !req.getPath().equals("/")) {
-            fileBase += req.getPath();
-        } else {
-            fileBase += "/index";
+    @Override
+    public void abort() {
+        try {
+            this.soc.close();
+        } catch (IOException e) {
+            log.error(e.getMessage());
         }
-
-        // Remove any trailing slashes
-        while (fileBase.endsWith("/")) {
-            fileBase = fileBase.substring(0, fileBase.length()-2);
+        if (this.connections != null) {
+            this.connections.remove(this);
         }
-
-        File f = new File(fileBase + ".gmi");
-        if (f.exists()) {
-            return f;
+        ClientLimiter.Client c = this.client.getAndSet(null);
+        if (c != null) {
+            c.close();
         }
+    }
 
-        f = new File(fileBase + ".gmni");
-        if (f.exists()) {
-            return f;
+    /**
+     * Reads in the request line and produces a
+     * GeminiRequest object. At most MAX_LINE bytes plus the CRLF are
+     * read, a longer line or a connection closed before the line ends
+     * gives an invalid request.
+     * @return A GeminiRequest object.
+     * @throws IOException
+     */
+    private GeminiRequest readRequest() throws IOException {
+        byte[] buf = new byte[GeminiRequest.MAX_LINE + 2];
+        int len = 0;
+        while (len < buf.length) {
+            int n = this.in.read(buf, len, buf.length - len);
+            if (n < 0) break;
+            for (int i = len; i < len + n; i++) {
+                if (buf[i] == '\n') {
+                    long start = System.nanoTime();
+                    GeminiRequest req = GeminiRequest.parse(buf, 0, i);
+                    this.handler.getMetrics().parse(System.nanoTime() - start);
+                    return req;
+                }
+            }
+            len += n;
         }
+        return new GeminiRequest();
+    }
 
-        f = new File(fileBase + ".gemini");
-        if (f.exists()) {
-            return f;
+    /**
+     * Writes the response and closes the socket. If the response can't
+     * be written in full the connection is reset, so the client can't
+     * take what it got for the whole response.
+     * @param resp is the GeminiResponse to send.
+     */
+    private void sendResponse(GeminiResponse resp) {
+        try {
+            StreamResponseOutput output = new StreamResponseOutput(this.out);
+            this.output = output;
+            this.enterPhase(TimeoutPhase.WRITE);
+            resp.writeTo(output);
+            this.out.flush();
+            this.phase = null;
+            this.handler.responseSent(this.soc.getInetAddress(), this.request, resp.getStatus(), output.getBytesWritten(), this.enqueuedNanos);
+            log.debug("Response: {}", resp.getStatus());
+        } catch (IOException e) {
+            this.failed(e);
+            this.resetOnClose();
+        } finally {
+            this.abort();
         }
-
-        return ret;
     }
 }
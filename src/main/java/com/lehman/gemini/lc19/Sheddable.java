@@ -0,0 +1,36 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+/**
+ * Sheddable is implemented by connection tasks that can be turned away
+ * by admission control without reading or parsing their request.
+ */
+public interface Sheddable {
+    /**
+     * Sends the provided response and closes the connection.
+     * @param resp is the GeminiResponse to send.
+     */
+    void shed(GeminiResponse resp);
+
+    /**
+     * Closes the connection without sending anything. Used when the
+     * server is too busy to even send a shed response.
+     */
+    void abort();
+}
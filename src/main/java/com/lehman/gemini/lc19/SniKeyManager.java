@@ -0,0 +1,202 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+import javax.net.ssl.ExtendedSSLSession;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.StandardConstants;
+import javax.net.ssl.X509ExtendedKeyManager;
+import javax.net.ssl.X509KeyManager;
+import java.net.Socket;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * SniKeyManager picks the server certificate from the host name the
+ * client sent in the SNI extension. The name is looked up in a map of
+ * host name to keystore alias. Any other host name gets a key that
+ * isn't mapped to a host, so a virtual host's certificate is never sent
+ * for another name unless the keystore has nothing else.
+ */
+public class SniKeyManager extends X509ExtendedKeyManager {
+    // Key types checked for keys that aren't mapped to a host.
+    private final static String[] KEY_TYPES = { "RSA", "EC", "RSASSA-PSS", "EdDSA", "DSA" };
+
+    private final X509KeyManager delegate;
+
+    // Keystore alias by lower case host name.
+    private final Map<String, String> aliases;
+
+    // Lower case aliases that belong to a host.
+    private final Set<String> reserved = new HashSet<String>();
+
+    // Whether the keystore has a key that isn't mapped to a host.
+    private final boolean hasUnreserved;
+
+    /**
+     * Default constructor.
+     * @param Delegate is the X509KeyManager holding the keys.
+     * @param Aliases is a Map of lower case host name to keystore alias.
+     */
+    public SniKeyManager(X509KeyManager Delegate, Map<String, String> Aliases) {
+        this.delegate = Delegate;
+        this.aliases = Aliases;
+        for (String alias : Aliases.values()) {
+            this.reserved.add(alias.toLowerCase(Locale.ROOT));
+        }
+
+        boolean unreserved = false;
+        for (String keyType : KEY_TYPES) {
+            if (this.findUnreserved(keyType, null) != null) {
+                unreserved = true;
+                break;
+            }
+        }
+        this.hasUnreserved = unreserved;
+    }
+
+    @Override
+    public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+        SSLSession session = socket instanceof SSLSocket ? ((SSLSocket) socket).getHandshakeSession() : null;
+        String alias = this.getHostAlias(session);
+        if (alias != null) {
+            return this.findUsable(keyType, issuers, alias);
+        }
+        return this.hasUnreserved ? this.findUnreserved(keyType, issuers) : this.delegate.chooseServerAlias(keyType, issuers, socket);
+    }
+
+    @Override
+    public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+        String alias = this.getHostAlias(engine == null ? null : engine.getHandshakeSession());
+        if (alias != null) {
+            return this.findUsable(keyType, issuers, alias);
+        }
+        if (this.hasUnreserved) {
+            return this.findUnreserved(keyType, issuers);
+        }
+        if (this.delegate instanceof X509ExtendedKeyManager) {
+            return ((X509ExtendedKeyManager) this.delegate).chooseEngineServerAlias(keyType, issuers, engine);
+        }
+        return this.delegate.chooseServerAlias(keyType, issuers, null);
+    }
+
+    /**
+     * Gets the keystore alias mapped to the SNI host name of the handshake.
+     * @param session is the handshake session or null.
+     * @return A String with the alias or null if the host isn't mapped.
+     */
+    private String getHostAlias(SSLSession session) {
+        if (!(session instanceof ExtendedSSLSession)) return null;
+        for (SNIServerName sni : ((ExtendedSSLSession) session).getRequestedServerNames()) {
+            if (sni.getType() == StandardConstants.SNI_HOST_NAME) {
+                return this.aliases.get(((SNIHostName) sni).getAsciiName().toLowerCase(Locale.ROOT));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the key manager's name for the alias if its key can be used
+     * for the key type. Returning null lets the handshake try the next
+     * key type.
+     * @param keyType is the key algorithm being negotiated.
+     * @param issuers is the list of accepted issuers or null.
+     * @param alias is the keystore alias.
+     * @return A String with the alias or null if it doesn't fit.
+     */
+    private String findUsable(String keyType, Principal[] issuers, String alias) {
+        String[] usable = this.delegate.getServerAliases(keyType, issuers);
+        if (usable != null) {
+            for (String u : usable) {
+                if (matches(u, alias)) return u;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets a key of the provided type that isn't mapped to a host.
+     * @param keyType is the key algorithm being negotiated.
+     * @param issuers is the list of accepted issuers or null.
+     * @return A String with the alias or null if there's none.
+     */
+    private String findUnreserved(String keyType, Principal[] issuers) {
+        String[] usable = this.delegate.getServerAliases(keyType, issuers);
+        if (usable == null) return null;
+        for (String u : usable) {
+            boolean taken = false;
+            for (String alias : this.reserved) {
+                if (matches(u, alias)) {
+                    taken = true;
+                    break;
+                }
+            }
+            if (!taken) return u;
+        }
+        return null;
+    }
+
+    /**
+     * Checks if an alias from the key manager names the keystore alias.
+     * The PKIX key manager prefixes aliases with its own index and
+     * builder number, as in 1.0.alias.
+     * @param keyManagerAlias is the alias from the key manager.
+     * @param alias is the keystore alias.
+     * @return A boolean with true if it's the same entry.
+     */
+    private static boolean matches(String keyManagerAlias, String alias) {
+        if (keyManagerAlias.equalsIgnoreCase(alias)) return true;
+        int first = keyManagerAlias.indexOf('.');
+        int second = first < 0 ? -1 : keyManagerAlias.indexOf('.', first + 1);
+        return second > 0 && keyManagerAlias.substring(second + 1).equalsIgnoreCase(alias);
+    }
+
+    @Override
+    public String[] getServerAliases(String keyType, Principal[] issuers) {
+        return this.delegate.getServerAliases(keyType, issuers);
+    }
+
+    @Override
+    public String[] getClientAliases(String keyType, Principal[] issuers) {
+        return this.delegate.getClientAliases(keyType, issuers);
+    }
+
+    @Override
+    public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket) {
+        return this.delegate.chooseClientAlias(keyType, issuers, socket);
+    }
+
+    @Override
+    public X509Certificate[] getCertificateChain(String alias) {
+        return this.delegate.getCertificateChain(alias);
+    }
+
+    @Override
+    public PrivateKey getPrivateKey(String alias) {
+        return this.delegate.getPrivateKey(alias);
+    }
+}
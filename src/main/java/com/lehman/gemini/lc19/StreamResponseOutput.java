@@ -0,0 +1,147 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * StreamResponseOutput writes a response to a blocking OutputStream such
+ * as an SSLSocket's. File regions go through FileChannel.transferTo so
+ * they're copied in small chunks rather than loaded into the heap.
+ * Buffers written together that fit in one TLS record are copied into a
+ * pooled buffer and written at once, so a small response is sent as a
+ * single record rather than one for the header and one for the body.
+ *
+ * Large writes are split into WRITE_CHUNK sized pieces and the byte
+ * count is updated after each, so the connection reaper can tell a slow
+ * client from one that has stopped reading.
+ */
+public class StreamResponseOutput implements ResponseOutput {
+    // Chunk size used to copy direct buffers.
+    private final static int CHUNK = 8192;
+
+    // Max bytes handed to the stream in one call.
+    private final static int WRITE_CHUNK = 64 * 1024;
+
+    // Buffers used to gather small writes, sized to a TLS record.
+    private final static BufferPool GATHER = new BufferPool(16 * 1024, 64, false);
+
+    private final OutputStream out;
+    private WritableByteChannel channel = null;
+    // Written on the writing thread, read by the reaper.
+    private volatile long written = 0;
+    private volatile boolean writing = false;
+
+    /**
+     * Default constructor.
+     * @param Out is the OutputStream to write to.
+     */
+    public StreamResponseOutput(OutputStream Out) {
+        this.out = Out;
+    }
+
+    @Override
+    public void write(ByteBuffer buf) throws IOException {
+        this.writing = true;
+        try {
+            if (buf.hasArray()) {
+                while (buf.hasRemaining()) {
+                    int n = Math.min(WRITE_CHUNK, buf.remaining());
+                    this.out.write(buf.array(), buf.arrayOffset() + buf.position(), n);
+                    buf.position(buf.position() + n);
+                    this.written += n;
+                }
+            } else {
+                byte[] tmp = new byte[Math.min(CHUNK, buf.remaining())];
+                while (buf.hasRemaining()) {
+                    int n = Math.min(tmp.length, buf.remaining());
+                    buf.get(tmp, 0, n);
+                    this.out.write(tmp, 0, n);
+                    this.written += n;
+                }
+            }
+        } finally {
+            this.writing = false;
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer[] bufs) throws IOException {
+        long total = 0;
+        for (ByteBuffer buf : bufs) {
+            total += buf.remaining();
+        }
+        if (total > GATHER.getBufferSize()) {
+            for (ByteBuffer buf : bufs) {
+                this.write(buf);
+            }
+            return;
+        }
+
+        ByteBuffer gather = GATHER.acquire();
+        this.writing = true;
+        try {
+            for (ByteBuffer buf : bufs) {
+                gather.put(buf);
+            }
+            this.out.write(gather.array(), gather.arrayOffset(), gather.position());
+            this.written += total;
+        } finally {
+            this.writing = false;
+            GATHER.release(gather);
+        }
+    }
+
+    @Override
+    public void transferFrom(FileChannel ch, long position, long count) throws IOException {
+        if (this.channel == null) {
+            this.channel = Channels.newChannel(this.out);
+        }
+        long done = 0;
+        this.writing = true;
+        try {
+            while (done < count) {
+                long n = ch.transferTo(position + done, Math.min(WRITE_CHUNK, count - done), this.channel);
+                if (n <= 0) break;
+                done += n;
+                this.written += n;
+            }
+        } finally {
+            this.writing = false;
+        }
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return this.written;
+    }
+
+    /**
+     * Checks if a write to the stream is in progress, as opposed to the
+     * response still being produced.
+     * @return A boolean with true if writing.
+     */
+    public boolean isWriting() {
+        return this.writing;
+    }
+}
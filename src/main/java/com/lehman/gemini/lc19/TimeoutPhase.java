@@ -0,0 +1,50 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+/**
+ * TimeoutPhase is the part of a connection a timeout applies to.
+ */
+public enum TimeoutPhase {
+    /**
+     * The TLS handshake, bounded by handshakeTimeout.
+     */
+    HANDSHAKE("handshake"),
+
+    /**
+     * Reading the request line once the handshake is done, bounded by
+     * requestTimeout.
+     */
+    REQUEST("request"),
+
+    /**
+     * Writing the response, a client that reads nothing for
+     * writeTimeout is dropped.
+     */
+    WRITE("write");
+
+    private String value;
+
+    private TimeoutPhase(String value) {
+        this.value = value;
+    }
+
+    public String getValue() {
+        return value;
+    }
+}
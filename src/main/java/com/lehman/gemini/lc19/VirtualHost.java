@@ -0,0 +1,117 @@
+/*
+ * Copyright 2022 Austin Lehman. (cup_of_code@fastmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.lehman.gemini.lc19;
+
+/**
+ * VirtualHost is one host name the server answers for, with its own
+ * hostDir, capsule routes and file cache. The certificate for the host
+ * is picked during the handshake by SniKeyManager using keyAlias.
+ */
+public class VirtualHost {
+    private String name = "";
+    private String hostDir = null;
+    private String keyAlias = null;
+
+    // Swapped for a new one when capsuleDir jars are reloaded.
+    private volatile CapsuleRouter router = null;
+    private FileCache fileCache = null;
+
+    // Content pack file served instead of hostDir, null for none, and
+    // the pack currently mapped, swapped when the file is replaced.
+    private String contentPack = null;
+    private volatile ContentPack pack = null;
+
+    public VirtualHost() { }
+
+    /**
+     * Default constructor.
+     * @param Name is the host name requests are matched on.
+     * @param HostDir is the directory files are served from or null for none.
+     * @param KeyAlias is the keystore alias of the host's certificate or
+     * null to let the key manager choose.
+     */
+    public VirtualHost(String Name, String HostDir, String KeyAlias) {
+        this.name = Name;
+        this.hostDir = HostDir;
+        this.keyAlias = KeyAlias;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getHostDir() {
+        return hostDir;
+    }
+
+    public void setHostDir(String hostDir) {
+        this.hostDir = hostDir;
+    }
+
+    public String getKeyAlias() {
+        return keyAlias;
+    }
+
+    public void setKeyAlias(String keyAlias) {
+        this.keyAlias = keyAlias;
+    }
+
+    public CapsuleRouter getRouter() {
+        return router;
+    }
+
+    public void setRouter(CapsuleRouter router) {
+        this.router = router;
+    }
+
+    public FileCache getFileCache() {
+        return fileCache;
+    }
+
+    public void setFileCache(FileCache fileCache) {
+        this.fileCache = fileCache;
+    }
+
+    public String getContentPack() {
+        return contentPack;
+    }
+
+    public void setContentPack(String contentPack) {
+        this.contentPack = contentPack;
+    }
+
+    /**
+     * Checks if files are served from a content pack.
+     * @return A boolean with true if contentPack is set.
+     */
+    public boolean hasContentPack() {
+        return this.contentPack != null && !this.contentPack.equals("");
+    }
+
+    public ContentPack getPack() {
+        return pack;
+    }
+
+    public void setPack(ContentPack pack) {
+        this.pack = pack;
+    }
+}